@@ -5,26 +5,111 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
 
+import mtf.snifitapi.model.DataPathTrie;
+import mtf.snifitapi.model.HeapFootprint;
+import mtf.snifitapi.model.LinkReport;
+import mtf.snifitapi.model.ModelDiff;
+import mtf.snifitapi.model.ModelSnapshot;
+import mtf.snifitapi.model.NodeIndex;
+import mtf.snifitapi.model.NodeStore;
+import mtf.snifitapi.model.ReferenceIndex;
 import mtf.snifitapi.model.SnifitModel;
 import mtf.snifitapi.model.XmlNode;
+import mtf.snifitapi.parser.OnDemandNodeSource;
 import mtf.snifitapi.parser.SnifitParser;
 
 import mtf.snifitapi.codegen.CsModelGenerator;
 import mtf.snifitapi.codegen.CsSerdeGenerator;
 
 public class App {
+    private static final String OUTPUT_DIR = "/tmp/generated_cs";
+
     public static void main(String[] args) {
         String xmlsDir = "xmls";
         String fmtDefId = null;
+        int threads = 1;
+        int splitThreads = 1;
+        SnifitParser.Backend backend = SnifitParser.Backend.SAX;
+        NodeStore store = null;
+        Path snapshot = null;
+        int snapshotLevel = Deflater.BEST_SPEED;
+        boolean watch = false;
+        boolean onDemand = false;
+        String dependentsOf = null;
+        List<String> indexes = null;
+        String pathPrefix = null;
+        String diffAgainst = null;
+        boolean footprint = false;
+        List<String> pruneTo = null;
 
-        if (args.length > 0) {
-            xmlsDir = args[0];
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--parallel")) {
+                threads = Runtime.getRuntime().availableProcessors();
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--split-threads=")) {
+                splitThreads = Integer.parseInt(arg.substring("--split-threads=".length()));
+            } else if (arg.startsWith("--backend=")) {
+                backend = SnifitParser.Backend.valueOf(arg.substring("--backend=".length()).toUpperCase());
+            } else if (arg.startsWith("--snapshot=")) {
+                snapshot = Paths.get(arg.substring("--snapshot=".length()));
+            } else if (arg.startsWith("--snapshot-level=")) {
+                snapshotLevel = Integer.parseInt(arg.substring("--snapshot-level=".length()));
+            } else if (arg.equals("--on-demand")) {
+                onDemand = true;
+            } else if (arg.startsWith("--dependents=")) {
+                dependentsOf = arg.substring("--dependents=".length());
+            } else if (arg.startsWith("--paths=")) {
+                pathPrefix = arg.substring("--paths=".length());
+            } else if (arg.startsWith("--prune=")) {
+                pruneTo = Arrays.asList(arg.substring("--prune=".length()).split(","));
+            } else if (arg.equals("--footprint")) {
+                footprint = true;
+            } else if (arg.startsWith("--diff=")) {
+                diffAgainst = arg.substring("--diff=".length());
+            } else if (arg.startsWith("--index=")) {
+                indexes = Arrays.asList(arg.substring("--index=".length()).split(","));
+            } else if (arg.equals("--watch")) {
+                watch = true;
+            } else if (arg.equals("--store")) {
+                store = new NodeStore();
+            } else if (arg.equals("--store=offheap")) {
+                store = new NodeStore(true);
+            } else {
+                positional.add(arg);
+            }
         }
-        if (args.length > 1) {
-            fmtDefId = args[1];
+
+        if (!ModelSnapshot.isCompressionLevel(snapshotLevel)) {
+            System.err.println("--snapshot-level must be 0 (stored) to 9, not " + snapshotLevel);
+            return;
+        }
+        // Watch mode parses and updates the whole model, so it would quietly
+        // drop either of these
+        if (watch && onDemand) {
+            System.err.println("--on-demand cannot be combined with --watch");
+            return;
+        }
+        if (watch && pruneTo != null) {
+            System.err.println("--prune cannot be combined with --watch");
+            return;
+        }
+
+        if (positional.size() > 0) {
+            xmlsDir = positional.get(0);
+        }
+        if (positional.size() > 1) {
+            fmtDefId = positional.get(1);
         }
 
         File dir = new File(xmlsDir);
@@ -38,19 +123,164 @@ public class App {
             System.out.println("No XML files found in " + xmlsDir);
             return;
         }
+        // Sort so root node order and duplicate id resolution do not depend on the file system
+        Arrays.sort(files);
 
-        SnifitParser parser = new SnifitParser();
-        SnifitModel unifiedModel = new SnifitModel();
-
+        List<Path> paths = new ArrayList<>();
         for (File xmlFile : files) {
+            paths.add(xmlFile.toPath());
+        }
+
+        SnifitModel unifiedModel = null;
+        if (snapshot != null) {
+            long start = System.nanoTime();
+            try {
+                unifiedModel = SnifitModel.readSnapshot(snapshot, paths);
+            } catch (IOException e) {
+                System.err.println("Ignoring unreadable snapshot " + snapshot + ": " + e.getMessage());
+            }
+            if (unifiedModel != null) {
+                System.out.printf("Loaded snapshot %s in %.1f ms%n", snapshot, (System.nanoTime() - start) / 1e6);
+                // A snapshot always loads as an XmlNode model
+                store = null;
+            } else {
+                System.out.println("Snapshot " + snapshot + " missing or stale, parsing");
+            }
+        }
+
+        OnDemandNodeSource source = null;
+        if (unifiedModel == null && onDemand) {
+            SnifitParser parser = new SnifitParser();
+            try {
+                source = parser.prescan(paths);
+                unifiedModel = new SnifitModel(source);
+                System.out.println("Prescanned " + files.length + " files, " + source.getIndex().size()
+                        + " ids; parsing definitions on demand");
+                // Writing a snapshot would parse everything, so none is written
+                store = null;
+            } catch (IOException e) {
+                System.err.println("Cannot parse on demand, parsing everything: " + e.getMessage());
+            }
+        }
+
+        if (unifiedModel == null) {
+            // Keyed before parsing, so a file saved meanwhile invalidates the snapshot
+            ModelSnapshot.Key snapshotKey = null;
+            if (snapshot != null) {
+                try {
+                    snapshotKey = ModelSnapshot.keyOf(paths);
+                } catch (IOException e) {
+                    System.err.println("Cannot key snapshot " + snapshot + ", not writing it: " + e.getMessage());
+                }
+            }
+
+            unifiedModel = parse(files, paths, backend, threads, splitThreads, store);
+            if (unifiedModel == null) {
+                return;
+            }
+
+            if (snapshotKey != null) {
+                long start = System.nanoTime();
+                try {
+                    unifiedModel.writeSnapshot(snapshot, snapshotKey, snapshotLevel);
+                    System.out.printf("Wrote snapshot %s (%d KB) in %.1f ms%n", snapshot,
+                            Files.size(snapshot) / 1024, (System.nanoTime() - start) / 1e6);
+                } catch (IOException e) {
+                    System.err.println("Failed to write snapshot " + snapshot);
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        if (dependentsOf != null) {
+            printDependents(unifiedModel, dependentsOf);
+            return;
+        }
+
+        if (pruneTo != null) {
+            long start = System.nanoTime();
+            int before = unifiedModel.getIdToNodeMap().size();
             try {
-                System.out.println("Parsing " + xmlFile.getName() + "...");
-                parser.parseInto(xmlFile, unifiedModel);
+                unifiedModel = unifiedModel.prune(pruneTo);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Cannot prune: " + e.getMessage());
+                return;
+            }
+            System.out.printf("Pruned to %s: %d of %d definitions (%.1f ms)%n", pruneTo,
+                    unifiedModel.getIdToNodeMap().size(), before, (System.nanoTime() - start) / 1e6);
+            // The pruned model is frozen and linked, and holds plain nodes
+            store = null;
+            source = null;
+        }
+
+        if (footprint) {
+            // One JSON line, last, so runs can be collected and compared over time
+            System.out.println(HeapFootprint.measure(unifiedModel).toJson());
+            return;
+        }
+
+        if (diffAgainst != null) {
+            printDiff(diffAgainst, unifiedModel, backend, threads);
+            return;
+        }
+
+        if (pathPrefix != null) {
+            long start = System.nanoTime();
+            DataPathTrie trie = unifiedModel.getDataPathTrie();
+            long built = System.nanoTime();
+            List<String> dataPaths = trie.withPrefix(pathPrefix);
+            System.out.printf("%d data paths under '%s' of %d slots (trie %.1f ms, query %.1f us)%n",
+                    dataPaths.size(), pathPrefix, trie.size(), (built - start) / 1e6,
+                    (System.nanoTime() - built) / 1e3);
+            for (String path : dataPaths) {
+                System.out.println("  " + trie.slotOf(path) + " " + path);
+            }
+            return;
+        }
 
-            } catch (Exception e) {
-                System.err.println("Error parsing " + xmlFile.getName());
+        if (indexes != null) {
+            // "tag" and "dataName" pick those indexes, any other name an attribute
+            List<String> attributes = new ArrayList<>(indexes);
+            attributes.remove("tag");
+            attributes.remove("dataName");
+            NodeIndex index = unifiedModel.buildNodeIndex(indexes.contains("tag"), indexes.contains("dataName"),
+                    attributes);
+            System.out.println("Indexes:");
+            for (String line : index.getReport()) {
+                System.out.println("  " + line);
+            }
+        }
+
+        if ((watch || fmtDefId != null) && store == null && source == null) {
+            // Store-backed and on-demand models resolve references by lookup so
+            // that generating one fmtDef does not build the whole tree
+            LinkReport links = unifiedModel.link();
+            System.out.println("Linked " + links);
+            for (XmlNode reference : links.getDangling()) {
+                System.err.println("Dangling " + reference.getTagName() + " refId=" + reference.getRefId() + " at "
+                        + reference.getSourceFile() + ":" + reference.getLineNumber());
+            }
+            for (List<String> cycle : links.getCycles()) {
+                System.err.println("Reference cycle " + String.join(" -> ", cycle));
+            }
+        }
+
+        if (watch) {
+            // Without a fmtDefId every fmtDef is generated and kept up to date
+            SnifitParser parser = new SnifitParser();
+            parser.setBackend(backend);
+            List<String> targets = fmtDefId != null ? Collections.singletonList(fmtDefId) : null;
+            ModelWatcher watcher = new ModelWatcher(dir.toPath(), Paths.get(OUTPUT_DIR), unifiedModel, parser,
+                    targets);
+            try {
+                watcher.run();
+            } catch (IOException e) {
+                System.err.println("Watch mode failed");
                 e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            return;
         }
 
         if (fmtDefId != null) {
@@ -64,12 +294,16 @@ public class App {
             CsSerdeGenerator serdeGenerator = new CsSerdeGenerator(unifiedModel);
             generatedFiles.putAll(serdeGenerator.generate(fmtDefId));
 
-            String outputDirArgs = "/tmp/generated_cs";
+            String outputDirArgs = OUTPUT_DIR;
             File outDir = new File(outputDirArgs);
             if (!outDir.exists()) {
                 outDir.mkdirs();
             }
 
+            if (source != null) {
+                System.out.printf("Parsed %d of %d KB on demand (%d elements)%n", source.getLoadedBytes() / 1024,
+                        source.getIndex().getTotalBytes() / 1024, source.getLoadedCount());
+            }
             System.out.println("Writing " + generatedFiles.size() + " files to " + outputDirArgs);
 
             for (Map.Entry<String, String> entry : generatedFiles.entrySet()) {
@@ -85,6 +319,35 @@ public class App {
                 }
             }
 
+        } else if (store != null) {
+            // Walk the flat store directly so the XmlNode tree is never built
+            System.out.println("--------------------------------------------------");
+            System.out.println("Node store: " + store.size() + " nodes, " + store.estimateBytes() / 1024 + " KB"
+                    + (store.isOffHeap() ? " (off heap)" : ""));
+            System.out.println("Total Root Nodes: " + store.getRootCount());
+            System.out.println("Total Indexed Nodes (by ID): " + store.getIdIndex().size());
+
+            NodeStore.Cursor cursor = store.cursor();
+            for (int r = 0; r < store.getRootCount(); r++) {
+                cursor.moveTo(store.getRoot(r));
+                System.out.println("Root Node: " + cursor.getTagName() +
+                        (cursor.getId() != null ? " id=" + cursor.getId() : ""));
+
+                int direct = 0;
+                if (cursor.toFirstChild()) {
+                    do {
+                        direct++;
+                    } while (cursor.toNextSibling());
+                }
+                System.out.println("  Total direct children: " + direct);
+            }
+
+            XmlNode targetNode = unifiedModel.getNodeById("MTFC_Hitmakdut");
+            if (targetNode != null) {
+                System.out.println(targetNode.toJson());
+            } else {
+                System.out.println("Node MTFC_Hitmakdut not found.");
+            }
         } else {
             System.out.println("--------------------------------------------------");
             System.out.println("Total Root Nodes: " + unifiedModel.getRootNodes().size());
@@ -108,4 +371,105 @@ public class App {
             }
         }
     }
+
+    /**
+     * Prints the references to {@code id} and every definition that reaches it
+     * through references or containment.
+     */
+    private static void printDependents(SnifitModel model, String id) {
+        long start = System.nanoTime();
+        ReferenceIndex index = model.getReferenceIndex();
+        long built = System.nanoTime();
+        List<XmlNode> dependents = index.getDependents(id);
+        long queried = System.nanoTime();
+
+        if (index.ordinalOf(id) < 0) {
+            System.out.println(id + " is not declared");
+        }
+        List<XmlNode> referrers = index.getReferrers(id);
+        System.out.println("References to " + id + ": " + referrers.size());
+        for (XmlNode reference : referrers) {
+            System.out.println("  " + reference.getTagName() + " at " + reference.getSourceFile() + ":"
+                    + reference.getLineNumber());
+        }
+
+        Map<String, Integer> byTag = new TreeMap<>();
+        for (XmlNode node : dependents) {
+            byTag.merge(node.getTagName(), 1, Integer::sum);
+        }
+        System.out.printf("Dependents of %s: %d %s (index %.1f ms, query %.1f us)%n", id, dependents.size(), byTag,
+                (built - start) / 1e6, (queried - built) / 1e3);
+        for (XmlNode node : dependents) {
+            System.out.println("  " + node.getTagName() + " " + node.getId() + " at " + node.getSourceFile() + ":"
+                    + node.getLineNumber());
+        }
+    }
+
+    /**
+     * Prints the definitions that differ between the model parsed from
+     * {@code olderDir} and {@code model}.
+     */
+    private static void printDiff(String olderDir, SnifitModel model, SnifitParser.Backend backend, int threads) {
+        File[] files = new File(olderDir).listFiles((d, name) -> name.endsWith(".xml"));
+        if (files == null) {
+            System.err.println("Directory not found or is not a directory: " + olderDir);
+            return;
+        }
+        Arrays.sort(files);
+        List<Path> paths = new ArrayList<>();
+        for (File file : files) {
+            paths.add(file.toPath());
+        }
+        SnifitModel older = parse(files, paths, backend, threads, 1, null);
+        if (older == null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        older.getStructuralHashes();
+        model.getStructuralHashes();
+        long hashed = System.nanoTime();
+        ModelDiff diff = ModelDiff.compare(older, model);
+        System.out.printf("%d of %d definitions changed %s (hashing %.1f ms, diff %.1f ms)%n",
+                diff.getEntries().size(), diff.getCompared(), diff.getCounts(), (hashed - start) / 1e6,
+                diff.getNanos() / 1e6);
+        for (ModelDiff.Entry entry : diff.getEntries()) {
+            System.out.println("  " + entry);
+        }
+    }
+
+    /**
+     * Parses all files into a new model, reporting per-file errors.
+     *
+     * @return the model, or null if parsing was interrupted
+     */
+    private static SnifitModel parse(File[] files, List<Path> paths, SnifitParser.Backend backend, int threads,
+            int splitThreads, NodeStore store) {
+        SnifitParser parser = new SnifitParser();
+        parser.setBackend(backend);
+        parser.setSplitThreads(splitThreads);
+        SnifitModel model = store != null ? new SnifitModel(store) : new SnifitModel();
+
+        Map<?, Exception> failures;
+        if (threads > 1) {
+            System.out.println("Parsing " + files.length + " files on " + threads + " threads...");
+            try {
+                failures = parser.parseInto(Arrays.asList(files), model, threads);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.err.println("Interrupted while parsing");
+                return null;
+            }
+        } else {
+            System.out.println("Parsing " + files.length + " files...");
+            failures = parser.parseAll(paths, model);
+        }
+        for (Map.Entry<?, Exception> failure : failures.entrySet()) {
+            System.err.println("Error parsing " + failure.getKey());
+            failure.getValue().printStackTrace();
+        }
+        System.out.println("Parser " + parser.getStats());
+        System.out.println("Symbol table: " + parser.getSymbolTable());
+        return model;
+    }
 }
@@ -0,0 +1,184 @@
+package mtf.snifitapi;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import mtf.snifitapi.codegen.IncrementalGenerator;
+import mtf.snifitapi.model.SnifitModel;
+import mtf.snifitapi.model.XmlNode;
+import mtf.snifitapi.parser.SnifitParser;
+
+/**
+ * Long-running watch mode: waits for changes to the XML files in a directory,
+ * re-parses only the changed files, swaps their nodes in the model and
+ * regenerates only the C# outputs that depend on what changed.
+ */
+public class ModelWatcher {
+
+    // Editors often save in several steps; events closer together than this
+    // are handled as one cycle
+    private static final long SETTLE_MILLIS = 50;
+
+    private final Path dir;
+    private final Path outputDir;
+    private final SnifitModel model;
+    private final SnifitParser parser;
+    private final IncrementalGenerator generator;
+    private int cycle;
+
+    /**
+     * @param targets fmtDef ids to generate, or null for every fmtDef
+     */
+    public ModelWatcher(Path dir, Path outputDir, SnifitModel model, SnifitParser parser, List<String> targets) {
+        this.dir = dir;
+        this.outputDir = outputDir;
+        this.model = model;
+        this.parser = parser;
+        this.generator = new IncrementalGenerator(model, targets);
+    }
+
+    /**
+     * Generates every output once, then watches until interrupted.
+     */
+    public void run() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Map<String, String> outputs = generator.generateAll();
+        Files.createDirectories(outputDir);
+        for (Map.Entry<String, String> entry : outputs.entrySet()) {
+            write(entry.getKey(), entry.getValue());
+        }
+        System.out.printf("Generated %d files into %s in %.1f ms%n", outputs.size(), outputDir,
+                (System.nanoTime() - start) / 1e6);
+
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            System.out.println("Watching " + dir + " (Ctrl-C to stop)");
+
+            while (true) {
+                WatchKey key = watcher.take();
+                Set<String> changed = new TreeSet<>();
+                boolean overflow = false;
+                while (key != null) {
+                    overflow |= collect(key, changed);
+                    if (!key.reset()) {
+                        System.err.println("Watched directory " + dir + " is no longer accessible");
+                        return;
+                    }
+                    key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                if (overflow) {
+                    // Events were lost, so look at every file
+                    try (var files = Files.list(dir)) {
+                        files.map(p -> p.getFileName().toString()).filter(n -> n.endsWith(".xml"))
+                                .forEach(changed::add);
+                    }
+                    for (XmlNode root : model.getRootNodes()) {
+                        if (root.getSourceFile() != null) {
+                            changed.add(root.getSourceFile());
+                        }
+                    }
+                }
+                if (!changed.isEmpty()) {
+                    update(changed);
+                }
+            }
+        }
+    }
+
+    private static boolean collect(WatchKey key, Set<String> changed) {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            String name = ((Path) event.context()).getFileName().toString();
+            if (name.endsWith(".xml")) {
+                changed.add(name);
+            }
+        }
+        return overflow;
+    }
+
+    /**
+     * Runs one cycle for the given file names and reports its latency.
+     */
+    void update(Set<String> fileNames) throws IOException {
+        long start = System.nanoTime();
+        cycle++;
+
+        // A fresh symbol table per cycle: one kept for the life of the process
+        // would hold on to every value ever edited after the model drops it
+        if (parser.getSymbolTable() != null) {
+            parser.setInternSymbols(true);
+        }
+
+        // Parse first so a half-saved file leaves the model untouched
+        Map<String, List<XmlNode>> parsed = new TreeMap<>();
+        for (String name : fileNames) {
+            File file = dir.resolve(name).toFile();
+            if (!file.isFile()) {
+                parsed.put(name, Collections.emptyList());
+                continue;
+            }
+            try {
+                parsed.put(name, parser.parse(file).getRootNodes());
+            } catch (Exception e) {
+                System.err.println("Cycle " + cycle + ": keeping previous " + name + ", it does not parse: "
+                        + e.getMessage());
+            }
+        }
+        long parsedAt = System.nanoTime();
+        if (parsed.isEmpty()) {
+            return;
+        }
+
+        Set<String> changedIds = new HashSet<>();
+        for (Map.Entry<String, List<XmlNode>> entry : parsed.entrySet()) {
+            changedIds.addAll(model.replaceSourceFile(entry.getKey(), entry.getValue()));
+        }
+        long modelAt = System.nanoTime();
+
+        IncrementalGenerator.Delta delta = generator.update(changedIds);
+        long generatedAt = System.nanoTime();
+
+        for (Map.Entry<String, String> entry : delta.getWritten().entrySet()) {
+            write(entry.getKey(), entry.getValue());
+        }
+        for (String className : delta.getRemoved()) {
+            Files.deleteIfExists(outputDir.resolve(className + ".cs"));
+        }
+        long end = System.nanoTime();
+
+        System.out.printf("Cycle %d: %s changed, %d ids changed, %d/%d fmtDefs regenerated, %d files written,"
+                + " %d removed in %.1f ms (parse %.1f, model %.1f, generate %.1f, write %.1f)%n",
+                cycle, String.join(", ", parsed.keySet()), changedIds.size(), delta.getRegenerated().size(),
+                delta.getTargetCount(), delta.getWritten().size(), delta.getRemoved().size(),
+                (end - start) / 1e6, (parsedAt - start) / 1e6, (modelAt - parsedAt) / 1e6,
+                (generatedAt - modelAt) / 1e6, (end - generatedAt) / 1e6);
+    }
+
+    private void write(String className, String code) throws IOException {
+        Files.write(outputDir.resolve(className + ".cs"), code.getBytes());
+    }
+
+}
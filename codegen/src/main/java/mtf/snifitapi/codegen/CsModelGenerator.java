@@ -1,11 +1,16 @@
 package mtf.snifitapi.codegen;
 
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
+import mtf.snifitapi.model.NodeVisitor;
+import mtf.snifitapi.model.NodeWalker;
+import mtf.snifitapi.model.NodeWalker.RefPolicy;
 import mtf.snifitapi.model.SnifitModel;
+import mtf.snifitapi.model.TagKind;
 import mtf.snifitapi.model.XmlNode;
 
 public class CsModelGenerator {
@@ -14,9 +19,13 @@ public class CsModelGenerator {
     private final Map<String, String> generatedFiles = new HashMap<>();
     private final Set<String> processedClasses = new HashSet<>();
     private boolean includeSourceComments = true;
+    private final PropertyVisitor propertyVisitor = new PropertyVisitor();
+    // Nesting and refFmt chains are walked on the heap, nested classes included
+    private final NodeWalker walker;
 
     public CsModelGenerator(SnifitModel model) {
         this.model = model;
+        this.walker = new NodeWalker(model, RefPolicy.FOLLOW_ACYCLIC, EnumSet.of(TagKind.REF_FMT));
     }
 
     public void setIncludeSourceComments(boolean include) {
@@ -31,9 +40,12 @@ public class CsModelGenerator {
         }
 
         generateClass(rootId, root);
+        walker.run();
         return generatedFiles;
     }
 
+    // Schedules the class; the walk finishes it before resuming whatever
+    // asked for it
     private void generateClass(String className, XmlNode node) {
         String cleanClassName = sanitizeName(className);
 
@@ -54,67 +66,90 @@ public class CsModelGenerator {
         }
         classContent.append("public class ").append(cleanClassName).append(" {\n");
 
-        processChildren(node, classContent, existingFieldNames);
-
-        classContent.append("}\n");
-
-        generatedFiles.put(cleanClassName, classContent.toString());
+        walker.push(node, new Scope(classContent, existingFieldNames), () -> {
+            classContent.append("}\n");
+            generatedFiles.put(cleanClassName, classContent.toString());
+        });
     }
 
-    private void processChildren(XmlNode node, StringBuilder classContent, Set<String> existingFieldNames) {
-        if (node == null || node.getChildren() == null)
-            return;
+    // The class being written, passed to the visitor for each node the walk
+    // enters; the visitor sets descend to have the node's children walked
+    private final class Scope implements NodeWalker.Listener {
+        final StringBuilder classContent;
+        final Set<String> existingFieldNames;
+        XmlNode parentNode;
+        boolean descend;
+
+        Scope(StringBuilder classContent, Set<String> existingFieldNames) {
+            this.classContent = classContent;
+            this.existingFieldNames = existingFieldNames;
+        }
 
-        for (XmlNode child : node.getChildren()) {
-            processNode(child, classContent, node, existingFieldNames);
+        @Override
+        public boolean enter(XmlNode node, XmlNode parent) {
+            parentNode = parent;
+            descend = false;
+            node.accept(propertyVisitor, this);
+            return descend;
         }
-    }
 
-    private void processNode(XmlNode node, StringBuilder classContent, XmlNode parentNode,
-            Set<String> existingFieldNames) {
-        String tagName = node.getTagName();
-        String dataName = node.getAttributes().get("dataName");
-        String refId = node.getRefId();
+        @Override
+        public void skip(XmlNode reference, XmlNode parent, boolean cyclic) {
+            String refId = reference.getRefId();
+            if (cyclic) {
+                classContent.append(PropertyVisitor.INDENT).append("// Cyclic reference to '").append(refId)
+                        .append("' not expanded\n");
+            } else if (refId != null) {
+                classContent.append(PropertyVisitor.INDENT).append("// Error: Referenced ID '").append(refId)
+                        .append("' not found\n");
+            }
+        }
+    }
 
-        String indent = "    ";
+    // Emits the property, or nested class, for each kind of node
+    private final class PropertyVisitor implements NodeVisitor<Scope> {
+        private static final String INDENT = "    ";
 
-        if ("fCSRecord".equals(tagName) || "record".equals(tagName)) {
+        @Override
+        public void visitRecord(XmlNode node, Scope scope) {
+            String dataName = node.getAttribute("dataName");
             if (dataName != null) {
-                generateClass(dataName, node); // Recursive generation of separate class
+                generateClass(dataName, node); // Separate class, generated next
 
                 String typeName = sanitizeName(dataName);
                 String propertyName = typeName;
 
-                propertyName = getUniqueName(existingFieldNames, propertyName);
+                propertyName = getUniqueName(scope.existingFieldNames, propertyName);
 
-                if (includeSourceComments && node.getSourceFile() != null) {
-                    classContent.append(indent).append("// Source: ").append(node.getSourceFile())
-                            .append(" Line: ").append(node.getLineNumber()).append("\n");
-                }
+                appendSourceComment(node, scope.classContent);
 
                 boolean isList = false;
-                if (parentNode != null && parentNode.getAttributes().get("times") != null) {
+                if (scope.parentNode != null && scope.parentNode.getAttribute("times") != null) {
                     isList = true;
                 }
 
                 if (isList) {
-                    classContent.append(indent).append("public List<").append(typeName).append("> ")
+                    scope.classContent.append(INDENT).append("public List<").append(typeName).append("> ")
                             .append(propertyName).append(" { get; set; } = new List<").append(typeName)
                             .append(">();\n");
                 } else {
-                    classContent.append(indent).append("public ").append(typeName).append(" ")
+                    scope.classContent.append(INDENT).append("public ").append(typeName).append(" ")
                             .append(propertyName).append(" { get; set; }\n");
                 }
             } else {
-                processChildren(node, classContent, existingFieldNames);
+                scope.descend = true;
             }
-        } else if ("fCSList".equals(tagName) || "iCollF".equals(tagName)) {
+        }
+
+        @Override
+        public void visitList(XmlNode node, Scope scope) {
+            String dataName = node.getAttribute("dataName");
             if (dataName != null) {
                 XmlNode itemNode = findItemNode(node);
                 String itemType = "string";
 
                 if (itemNode != null) {
-                    String itemDataName = itemNode.getAttributes().get("dataName");
+                    String itemDataName = itemNode.getAttribute("dataName");
                     if (itemDataName != null) {
                         itemType = sanitizeName(itemDataName);
                         generateClass(itemType, itemNode);
@@ -125,46 +160,51 @@ public class CsModelGenerator {
                 }
 
                 String propertyName = sanitizeName(dataName);
-                propertyName = getUniqueName(existingFieldNames, propertyName);
+                propertyName = getUniqueName(scope.existingFieldNames, propertyName);
 
-                if (includeSourceComments && node.getSourceFile() != null) {
-                    classContent.append(indent).append("// Source: ").append(node.getSourceFile())
-                            .append(" Line: ").append(node.getLineNumber()).append("\n");
-                }
+                appendSourceComment(node, scope.classContent);
 
-                classContent.append(indent).append("public List<").append(itemType).append("> ")
+                scope.classContent.append(INDENT).append("public List<").append(itemType).append("> ")
                         .append(propertyName).append(" { get; set; } = new List<").append(itemType)
                         .append(">();\n");
             }
-        } else if ("fCSString".equals(tagName) || "fHostString".equals(tagName) || "fString".equals(tagName)
-                || "fCSMessage".equals(tagName) || "fCSDynXml".equals(tagName)) {
+        }
+
+        @Override
+        public void visitDataField(XmlNode node, Scope scope) {
+            String dataName = node.getAttribute("dataName");
             if (dataName != null) {
                 String propertyName = sanitizeName(dataName);
-                propertyName = getUniqueName(existingFieldNames, propertyName);
+                propertyName = getUniqueName(scope.existingFieldNames, propertyName);
 
-                if (includeSourceComments && node.getSourceFile() != null) {
-                    classContent.append(indent).append("// Source: ").append(node.getSourceFile())
-                            .append(" Line: ").append(node.getLineNumber()).append("\n");
-                }
+                appendSourceComment(node, scope.classContent);
 
-                classContent.append(indent).append("public string ").append(propertyName)
+                scope.classContent.append(INDENT).append("public string ").append(propertyName)
                         .append(" { get; set; }\n");
             }
-        } else if ("refFmt".equals(tagName)) {
-            if (refId != null) {
-                XmlNode referencedNode = model.getNodeById(refId);
-                if (referencedNode != null) {
-                    processChildren(referencedNode, classContent, existingFieldNames);
-                } else {
-                    classContent.append(indent).append("// Error: Referenced ID '").append(refId)
-                            .append("' not found\n");
-                }
-            }
-        } else if ("fmtDef".equals(tagName)) {
-            processChildren(node, classContent, existingFieldNames);
-        } else {
-            if (!node.getChildren().isEmpty()) {
-                processChildren(node, classContent, existingFieldNames);
+        }
+
+        @Override
+        public void visitRefFmt(XmlNode node, Scope scope) {
+            // Only references the walker could resolve get here; it walks the
+            // referenced fmtDef's children, and reports the rest to skip
+            scope.descend = true;
+        }
+
+        @Override
+        public void visitFmtDef(XmlNode node, Scope scope) {
+            scope.descend = true;
+        }
+
+        @Override
+        public void visitOther(XmlNode node, Scope scope) {
+            scope.descend = !node.getChildren().isEmpty();
+        }
+
+        private void appendSourceComment(XmlNode node, StringBuilder classContent) {
+            if (includeSourceComments && node.getSourceFile() != null) {
+                classContent.append(INDENT).append("// Source: ").append(node.getSourceFile())
+                        .append(" Line: ").append(node.getLineNumber()).append("\n");
             }
         }
     }
@@ -190,13 +230,13 @@ public class CsModelGenerator {
         if (listNode.getChildren() == null)
             return null;
         for (XmlNode child : listNode.getChildren()) {
-            if ("fCSRecord".equals(child.getTagName()) || "record".equals(child.getTagName())) {
+            TagKind kind = child.getKind();
+            if (kind == TagKind.FCS_RECORD || kind == TagKind.RECORD) {
                 return child;
             }
-            if ("refFmt".equals(child.getTagName())) {
-                String refId = child.getRefId();
-                if (refId != null) {
-                    return model.getNodeById(refId);
+            if (kind == TagKind.REF_FMT) {
+                if (child.getRefId() != null) {
+                    return model.resolve(child);
                 }
             }
         }
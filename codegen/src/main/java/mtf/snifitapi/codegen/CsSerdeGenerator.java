@@ -1,12 +1,17 @@
 package mtf.snifitapi.codegen;
 
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import mtf.snifitapi.model.NodeVisitor;
+import mtf.snifitapi.model.NodeWalker;
+import mtf.snifitapi.model.NodeWalker.RefPolicy;
 import mtf.snifitapi.model.SnifitModel;
+import mtf.snifitapi.model.SnifitModel.Decorator;
+import mtf.snifitapi.model.TagKind;
 import mtf.snifitapi.model.XmlNode;
 
 public class CsSerdeGenerator {
@@ -14,9 +19,14 @@ public class CsSerdeGenerator {
     private final SnifitModel model;
     private final Map<String, String> generatedFiles = new HashMap<>();
     private final Set<String> processedClasses = new HashSet<>();
+    private final SerializeVisitor serializeVisitor = new SerializeVisitor();
+    private final DeserializeVisitor deserializeVisitor = new DeserializeVisitor();
+    // Nesting and refFmt chains are walked on the heap, nested serializers included
+    private final NodeWalker walker;
 
     public CsSerdeGenerator(SnifitModel model) {
         this.model = model;
+        this.walker = new NodeWalker(model, RefPolicy.FOLLOW_ACYCLIC, EnumSet.of(TagKind.REF_FMT));
     }
 
     public Map<String, String> generate(String rootId) {
@@ -27,9 +37,12 @@ public class CsSerdeGenerator {
         }
 
         generateSerializerClass(rootId, root);
+        walker.run();
         return generatedFiles;
     }
 
+    // Schedules both passes over the class; the walk finishes them before
+    // resuming whatever asked for it
     private void generateSerializerClass(String className, XmlNode node) {
         String cleanClassName = sanitizeName(className);
         String serializerClassName = cleanClassName + "Serializer";
@@ -52,8 +65,12 @@ public class CsSerdeGenerator {
         sb.append("        StringBuilder sb = new StringBuilder();\n");
 
         Set<String> existingFieldNames = new HashSet<>();
-        processChildrenSerialize(node, sb, existingFieldNames, "obj");
+        walker.push(node, new Scope(serializeVisitor, sb, existingFieldNames, "obj"),
+                () -> finishSerializerClass(cleanClassName, serializerClassName, node, sb, existingFieldNames));
+    }
 
+    private void finishSerializerClass(String cleanClassName, String serializerClassName, XmlNode node,
+            StringBuilder sb, Set<String> existingFieldNames) {
         sb.append("        return sb.ToString();\n");
         sb.append("    }\n\n");
 
@@ -68,238 +85,218 @@ public class CsSerdeGenerator {
         sb.append("        var obj = new ").append(cleanClassName).append("();\n");
 
         existingFieldNames.clear(); // Reset for deserialize pass
-        processChildrenDeserialize(node, sb, existingFieldNames, "obj");
-
-        sb.append("        return obj;\n");
-        sb.append("    }\n");
+        walker.push(node, new Scope(deserializeVisitor, sb, existingFieldNames, "obj"), () -> {
+            sb.append("        return obj;\n");
+            sb.append("    }\n");
 
-        sb.append("}\n");
+            sb.append("}\n");
 
-        generatedFiles.put(serializerClassName, sb.toString());
+            generatedFiles.put(serializerClassName, sb.toString());
+        });
     }
 
-    private void processChildrenSerialize(XmlNode node, StringBuilder sb, Set<String> existingFieldNames,
-            String varName) {
-        if (node == null || node.getChildren() == null)
-            return;
-
-        List<XmlNode> children = node.getChildren();
-        for (int i = 0; i < children.size(); i++) {
-            XmlNode child = children.get(i);
-            processNodeSerialize(child, sb, existingFieldNames, varName, children, i);
+    // One pass over a class, passed to its visitor for each node the walk
+    // enters; the visitor sets descend to have the node's children walked
+    private static final class Scope implements NodeWalker.Listener {
+        final NodeVisitor<Scope> visitor;
+        final StringBuilder sb;
+        final Set<String> existingFieldNames;
+        final String varName;
+        boolean descend;
+
+        Scope(NodeVisitor<Scope> visitor, StringBuilder sb, Set<String> existingFieldNames, String varName) {
+            this.visitor = visitor;
+            this.sb = sb;
+            this.existingFieldNames = existingFieldNames;
+            this.varName = varName;
         }
-    }
 
-    private void processChildrenDeserialize(XmlNode node, StringBuilder sb, Set<String> existingFieldNames,
-            String varName) {
-        if (node == null || node.getChildren() == null)
-            return;
-
-        List<XmlNode> children = node.getChildren();
-        for (int i = 0; i < children.size(); i++) {
-            XmlNode child = children.get(i);
-            processNodeDeserialize(child, sb, existingFieldNames, varName, children, i);
+        @Override
+        public boolean enter(XmlNode node, XmlNode parent) {
+            descend = false;
+            node.accept(visitor, this);
+            return descend;
         }
     }
 
-    private void processNodeSerialize(XmlNode node, StringBuilder sb, Set<String> existingFieldNames, String varName,
-            List<XmlNode> siblings, int index) {
-        String tagName = node.getTagName();
-        String dataName = node.getAttributes().get("dataName");
-        String refId = node.getRefId();
-        String indent = "        ";
+    // Emits the Serialize statements for each kind of node
+    private final class SerializeVisitor implements NodeVisitor<Scope> {
+        private static final String INDENT = "        ";
 
-        if ("fCSRecord".equals(tagName) || "record".equals(tagName)) {
+        @Override
+        public void visitRecord(XmlNode node, Scope scope) {
+            String dataName = node.getAttribute("dataName");
             if (dataName != null) {
                 String typeName = sanitizeName(dataName);
-                String propertyName = getUniqueName(existingFieldNames, typeName);
+                String propertyName = getUniqueName(scope.existingFieldNames, typeName);
 
                 generateSerializerClass(dataName, node);
 
                 // Nested serialization
-                sb.append(indent).append("sb.Append(new ").append(typeName).append("Serializer().Serialize(")
-                        .append(varName).append(".").append(propertyName).append("));\n");
+                scope.sb.append(INDENT).append("sb.Append(new ").append(typeName).append("Serializer().Serialize(")
+                        .append(scope.varName).append(".").append(propertyName).append("));\n");
 
             } else {
-                processChildrenSerialize(node, sb, existingFieldNames, varName);
+                scope.descend = true;
             }
-        } else if ("fCSList".equals(tagName) || "iCollF".equals(tagName)) {
-            String timesStr = node.getAttributes().get("times");
+        }
+
+        @Override
+        public void visitList(XmlNode node, Scope scope) {
+            String dataName = node.getAttribute("dataName");
+            String timesStr = node.getAttribute("times");
             int times = 1;
-            boolean isList = false;
-            if (timesStr != null) {
-                if ("*".equals(timesStr)) {
-                    isList = true;
-                    // Assume dynamic list
-                } else {
-                    try {
-                        times = Integer.parseInt(timesStr);
-                        isList = true;
-                    } catch (NumberFormatException e) {
-                    }
+            if (timesStr != null && !"*".equals(timesStr)) {
+                // "*" is a dynamic list
+                try {
+                    times = Integer.parseInt(timesStr);
+                } catch (NumberFormatException e) {
                 }
             }
 
             if (dataName != null) {
                 String propertyName = sanitizeName(dataName);
-                propertyName = getUniqueName(existingFieldNames, propertyName);
-                String itemType = "string"; // Default
-
-                XmlNode itemNode = findItemNode(node);
-                if (itemNode != null) {
-                    String itemDataName = itemNode.getAttributes().get("dataName");
-                    if (itemDataName != null) {
-                        itemType = sanitizeName(itemDataName);
-                    } else {
-                        itemType = sanitizeName(dataName) + "Item";
-                    }
-                    generateSerializerClass(itemType, itemNode);
-                }
+                propertyName = getUniqueName(scope.existingFieldNames, propertyName);
+                String itemType = itemType(node, dataName);
+                StringBuilder sb = scope.sb;
+                String varName = scope.varName;
 
-                sb.append(indent).append("// List ").append(propertyName).append("\n");
+                sb.append(INDENT).append("// List ").append(propertyName).append("\n");
                 if ("*".equals(timesStr)) {
-                    sb.append(indent).append("if (").append(varName).append(".").append(propertyName)
+                    sb.append(INDENT).append("if (").append(varName).append(".").append(propertyName)
                             .append(" != null) {\n");
-                    sb.append(indent).append("    foreach (var item in ").append(varName).append(".")
+                    sb.append(INDENT).append("    foreach (var item in ").append(varName).append(".")
                             .append(propertyName).append(") {\n");
-                    sb.append(indent).append("        sb.Append(new ").append(itemType)
+                    sb.append(INDENT).append("        sb.Append(new ").append(itemType)
                             .append("Serializer().Serialize(item));\n");
-                    sb.append(indent).append("    }\n");
-                    sb.append(indent).append("}\n");
+                    sb.append(INDENT).append("    }\n");
+                    sb.append(INDENT).append("}\n");
                 } else {
-                    sb.append(indent).append("for (int i = 0; i < ").append(times).append("; i++) {\n");
-                    sb.append(indent).append("    if (").append(varName).append(".").append(propertyName)
+                    sb.append(INDENT).append("for (int i = 0; i < ").append(times).append("; i++) {\n");
+                    sb.append(INDENT).append("    if (").append(varName).append(".").append(propertyName)
                             .append(" != null && i < ").append(varName).append(".").append(propertyName)
                             .append(".Count) {\n");
-                    sb.append(indent).append("        sb.Append(new ").append(itemType)
+                    sb.append(INDENT).append("        sb.Append(new ").append(itemType)
                             .append("Serializer().Serialize(").append(varName).append(".").append(propertyName)
                             .append("[i]));\n");
-                    sb.append(indent).append("    } else {\n");
-                    sb.append(indent).append("        sb.Append(new ").append(itemType)
+                    sb.append(INDENT).append("    } else {\n");
+                    sb.append(INDENT).append("        sb.Append(new ").append(itemType)
                             .append("Serializer().Serialize(new ").append(itemType).append("()));\n");
-                    sb.append(indent).append("    }\n");
-                    sb.append(indent).append("}\n");
+                    sb.append(INDENT).append("    }\n");
+                    sb.append(INDENT).append("}\n");
                 }
-            } else {
-                // Inline list logic not supported well without Property, ignoring or recursing?
-                // If no dataName, and times is set, we can't iterate a property.
-                // We might just repeat the structure 'times' times relative to current obj?
-                // But CsModelGenerator ignores these.
             }
-        } else if (isDataField(tagName)) {
+            // A list without a dataName has no property to iterate, as in CsModelGenerator
+        }
+
+        @Override
+        public void visitDataField(XmlNode node, Scope scope) {
+            String dataName = node.getAttribute("dataName");
             if (dataName != null) {
                 String propertyName = sanitizeName(dataName);
-                propertyName = getUniqueName(existingFieldNames, propertyName);
+                propertyName = getUniqueName(scope.existingFieldNames, propertyName);
 
                 int length = 0;
                 String padChar = " ";
                 boolean rightJustify = false;
 
-                for (int k = index + 1; k < siblings.size(); k++) {
-                    XmlNode sibling = siblings.get(k);
-                    if (sibling.getTagName().endsWith("Decor")) {
-                        Map<String, String> attrs = sibling.getAttributes();
-                        if (attrs.containsKey("length")) {
-                            try {
-                                length = Integer.parseInt(attrs.get("length"));
-                            } catch (Exception e) {
-                            }
-                        }
-                        if (sibling.getTagName().startsWith("num") || sibling.getTagName().contains("decimal")) {
-                            padChar = "0";
-                            rightJustify = true;
-                        }
-                        break;
-                    }
-                    if (isDataField(sibling.getTagName()) || "record".equals(sibling.getTagName())
-                            || "fCSRecord".equals(sibling.getTagName())) {
-                        break;
+                Decorator decorator = node.getDecorator();
+                if (decorator != null) {
+                    length = decorator.getLength();
+                    if (decorator.getTagName().startsWith("num") || decorator.getTagName().contains("decimal")) {
+                        padChar = "0";
+                        rightJustify = true;
                     }
                 }
 
                 if (length > 0) {
-                    String valProp = varName + "." + propertyName;
-                    sb.append(indent).append("{\n");
-                    sb.append(indent).append("    string val = ").append(valProp).append(" ?? \"\";\n");
+                    StringBuilder sb = scope.sb;
+                    String valProp = scope.varName + "." + propertyName;
+                    sb.append(INDENT).append("{\n");
+                    sb.append(INDENT).append("    string val = ").append(valProp).append(" ?? \"\";\n");
                     if (rightJustify) {
-                        sb.append(indent).append("    if (val.Length > ").append(length)
+                        sb.append(INDENT).append("    if (val.Length > ").append(length)
                                 .append(") val = val.Substring(0, ").append(length).append(");\n");
-                        sb.append(indent).append("    else val = val.PadLeft(").append(length).append(", '")
+                        sb.append(INDENT).append("    else val = val.PadLeft(").append(length).append(", '")
                                 .append(padChar).append("');\n");
                     } else {
-                        sb.append(indent).append("    if (val.Length > ").append(length)
+                        sb.append(INDENT).append("    if (val.Length > ").append(length)
                                 .append(") val = val.Substring(0, ").append(length).append(");\n");
-                        sb.append(indent).append("    else val = val.PadRight(").append(length).append(", '")
+                        sb.append(INDENT).append("    else val = val.PadRight(").append(length).append(", '")
                                 .append(padChar).append("');\n");
                     }
-                    sb.append(indent).append("    sb.Append(val);\n");
-                    sb.append(indent).append("}\n");
+                    sb.append(INDENT).append("    sb.Append(val);\n");
+                    sb.append(INDENT).append("}\n");
                 }
             }
-        } else if ("constant".equals(tagName)) {
-            String constVal = node.getAttributes().get("value");
+        }
+
+        @Override
+        public void visitConstant(XmlNode node, Scope scope) {
+            String constVal = node.getAttribute("value");
             if (constVal == null)
                 constVal = "";
-            int length = 0;
-            for (int k = index + 1; k < siblings.size(); k++) {
-                XmlNode sibling = siblings.get(k);
-                if (sibling.getTagName().endsWith("Decor") && sibling.getAttributes().containsKey("length")) {
-                    length = Integer.parseInt(sibling.getAttributes().get("length"));
-                    break;
-                }
-                if (isDataField(sibling.getTagName()))
-                    break;
-            }
+            int length = hostLength(node);
             if (length > 0) {
-                sb.append(indent).append("sb.Append(\"").append(constVal).append("\".PadRight(").append(length)
+                scope.sb.append(INDENT).append("sb.Append(\"").append(constVal).append("\".PadRight(").append(length)
                         .append("));\n");
             }
-        } else if ("fixedLength".equals(tagName)) {
-            String lenStr = node.getAttributes().get("length");
+        }
+
+        @Override
+        public void visitFixedLength(XmlNode node, Scope scope) {
+            String lenStr = node.getAttribute("length");
             if (lenStr != null) {
-                sb.append(indent).append("sb.Append(new string(' ', ").append(lenStr).append("));\n");
-            }
-        } else if ("refFmt".equals(tagName)) {
-            if (refId != null) {
-                XmlNode referencedNode = model.getNodeById(refId);
-                if (referencedNode != null) {
-                    processChildrenSerialize(referencedNode, sb, existingFieldNames, varName);
-                }
-            }
-        } else if ("fmtDef".equals(tagName)) {
-            processChildrenSerialize(node, sb, existingFieldNames, varName);
-        } else {
-            if (node.getChildren().size() > 0 && !"fCSList".equals(tagName) && !"iCollF".equals(tagName)
-                    && !"fCSRecord".equals(tagName)) {
-                processChildrenSerialize(node, sb, existingFieldNames, varName);
+                scope.sb.append(INDENT).append("sb.Append(new string(' ', ").append(lenStr).append("));\n");
             }
         }
+
+        @Override
+        public void visitRefFmt(XmlNode node, Scope scope) {
+            // The walker follows it to the referenced fmtDef's children;
+            // references it cannot resolve never get here
+            scope.descend = true;
+        }
+
+        @Override
+        public void visitFmtDef(XmlNode node, Scope scope) {
+            scope.descend = true;
+        }
+
+        @Override
+        public void visitOther(XmlNode node, Scope scope) {
+            scope.descend = node.getChildren().size() > 0;
+        }
     }
 
-    private void processNodeDeserialize(XmlNode node, StringBuilder sb, Set<String> existingFieldNames, String varName,
-            List<XmlNode> siblings, int index) {
-        String tagName = node.getTagName();
-        String dataName = node.getAttributes().get("dataName");
-        String refId = node.getRefId();
-        String indent = "        ";
+    // Emits the Deserialize statements for each kind of node
+    private final class DeserializeVisitor implements NodeVisitor<Scope> {
+        private static final String INDENT = "        ";
 
-        if ("fCSRecord".equals(tagName) || "record".equals(tagName)) {
+        @Override
+        public void visitRecord(XmlNode node, Scope scope) {
+            String dataName = node.getAttribute("dataName");
             if (dataName != null) {
                 String typeName = sanitizeName(dataName);
-                String propertyName = getUniqueName(existingFieldNames, typeName);
+                String propertyName = getUniqueName(scope.existingFieldNames, typeName);
                 generateSerializerClass(dataName, node);
 
-                sb.append(indent).append("{\n");
-                sb.append(indent).append("    var serializer = new ").append(typeName).append("Serializer();\n");
-                sb.append(indent).append("    ").append(varName).append(".").append(propertyName)
+                StringBuilder sb = scope.sb;
+                sb.append(INDENT).append("{\n");
+                sb.append(INDENT).append("    var serializer = new ").append(typeName).append("Serializer();\n");
+                sb.append(INDENT).append("    ").append(scope.varName).append(".").append(propertyName)
                         .append(" = serializer.Deserialize(buffer, ref offset);\n");
-                sb.append(indent).append("}\n");
+                sb.append(INDENT).append("}\n");
 
             } else {
-                processChildrenDeserialize(node, sb, existingFieldNames, varName);
+                scope.descend = true;
             }
-        } else if ("fCSList".equals(tagName) || "iCollF".equals(tagName)) {
-            String timesStr = node.getAttributes().get("times");
+        }
+
+        @Override
+        public void visitList(XmlNode node, Scope scope) {
+            String dataName = node.getAttribute("dataName");
+            String timesStr = node.getAttribute("times");
             int times = 1;
             boolean isDynamic = false;
 
@@ -316,95 +313,100 @@ public class CsSerdeGenerator {
 
             if (dataName != null) {
                 String propertyName = sanitizeName(dataName);
-                propertyName = getUniqueName(existingFieldNames, propertyName);
-                String itemType = "string";
-                XmlNode itemNode = findItemNode(node);
-                if (itemNode != null) {
-                    String itemDataName = itemNode.getAttributes().get("dataName");
-                    if (itemDataName != null) {
-                        itemType = sanitizeName(itemDataName);
-                    } else {
-                        itemType = sanitizeName(dataName) + "Item";
-                    }
-                    generateSerializerClass(itemType, itemNode);
-                }
+                propertyName = getUniqueName(scope.existingFieldNames, propertyName);
+                String itemType = itemType(node, dataName);
+                StringBuilder sb = scope.sb;
+                String varName = scope.varName;
 
                 if (isDynamic) {
-                    sb.append(indent).append("while (offset < buffer.Length) {\n");
-                    sb.append(indent).append("    ").append(varName).append(".").append(propertyName)
+                    sb.append(INDENT).append("while (offset < buffer.Length) {\n");
+                    sb.append(INDENT).append("    ").append(varName).append(".").append(propertyName)
                             .append(".Add(new ").append(itemType)
                             .append("Serializer().Deserialize(buffer, ref offset));\n");
-                    sb.append(indent).append("}\n");
+                    sb.append(INDENT).append("}\n");
                 } else {
-                    sb.append(indent).append("for (int i = 0; i < ").append(times).append("; i++) {\n");
-                    sb.append(indent).append("    ").append(varName).append(".").append(propertyName)
+                    sb.append(INDENT).append("for (int i = 0; i < ").append(times).append("; i++) {\n");
+                    sb.append(INDENT).append("    ").append(varName).append(".").append(propertyName)
                             .append(".Add(new ").append(itemType)
                             .append("Serializer().Deserialize(buffer, ref offset));\n");
-                    sb.append(indent).append("}\n");
+                    sb.append(INDENT).append("}\n");
                 }
             }
-        } else if (isDataField(tagName)) {
+        }
+
+        @Override
+        public void visitDataField(XmlNode node, Scope scope) {
+            String dataName = node.getAttribute("dataName");
             if (dataName != null) {
                 String propertyName = sanitizeName(dataName);
-                propertyName = getUniqueName(existingFieldNames, propertyName);
+                propertyName = getUniqueName(scope.existingFieldNames, propertyName);
 
-                int length = 0;
-                for (int k = index + 1; k < siblings.size(); k++) {
-                    XmlNode sibling = siblings.get(k);
-                    if (sibling.getTagName().endsWith("Decor") && sibling.getAttributes().containsKey("length")) {
-                        length = Integer.parseInt(sibling.getAttributes().get("length"));
-                        break;
-                    }
-                    if (isDataField(sibling.getTagName()) || "record".equals(sibling.getTagName()))
-                        break;
-                }
+                int length = hostLength(node);
 
                 if (length > 0) {
-                    sb.append(indent).append("if (offset + ").append(length).append(" <= buffer.Length) {\n");
-                    sb.append(indent).append("    ").append(varName).append(".").append(propertyName)
+                    StringBuilder sb = scope.sb;
+                    sb.append(INDENT).append("if (offset + ").append(length).append(" <= buffer.Length) {\n");
+                    sb.append(INDENT).append("    ").append(scope.varName).append(".").append(propertyName)
                             .append(" = buffer.Substring(offset, ").append(length).append(").Trim();\n");
-                    sb.append(indent).append("    offset += ").append(length).append(";\n");
-                    sb.append(indent).append("}\n");
-                }
-            }
-        } else if ("constant".equals(tagName)) {
-            int length = 0;
-            for (int k = index + 1; k < siblings.size(); k++) {
-                XmlNode sibling = siblings.get(k);
-                if (sibling.getTagName().endsWith("Decor") && sibling.getAttributes().containsKey("length")) {
-                    length = Integer.parseInt(sibling.getAttributes().get("length"));
-                    break;
+                    sb.append(INDENT).append("    offset += ").append(length).append(";\n");
+                    sb.append(INDENT).append("}\n");
                 }
-                if (isDataField(sibling.getTagName()) || "record".equals(sibling.getTagName()))
-                    break;
             }
+        }
+
+        @Override
+        public void visitConstant(XmlNode node, Scope scope) {
+            int length = hostLength(node);
             if (length > 0) {
-                sb.append(indent).append("offset += ").append(length).append(";\n");
+                scope.sb.append(INDENT).append("offset += ").append(length).append(";\n");
             }
-        } else if ("fixedLength".equals(tagName)) {
-            String lenStr = node.getAttributes().get("length");
+        }
+
+        @Override
+        public void visitFixedLength(XmlNode node, Scope scope) {
+            String lenStr = node.getAttribute("length");
             if (lenStr != null) {
-                sb.append(indent).append("offset += ").append(lenStr).append(";\n");
+                scope.sb.append(INDENT).append("offset += ").append(lenStr).append(";\n");
             }
-        } else if ("refFmt".equals(tagName)) {
-            if (refId != null) {
-                XmlNode referencedNode = model.getNodeById(refId);
-                if (referencedNode != null) {
-                    processChildrenDeserialize(referencedNode, sb, existingFieldNames, varName);
-                }
-            }
-        } else if ("fmtDef".equals(tagName)) {
-            processChildrenDeserialize(node, sb, existingFieldNames, varName);
-        } else {
-            if (node.getChildren().size() > 0 && !"fCSList".equals(tagName) && !"iCollF".equals(tagName)) {
-                processChildrenDeserialize(node, sb, existingFieldNames, varName);
+        }
+
+        @Override
+        public void visitRefFmt(XmlNode node, Scope scope) {
+            // The walker follows it to the referenced fmtDef's children;
+            // references it cannot resolve never get here
+            scope.descend = true;
+        }
+
+        @Override
+        public void visitFmtDef(XmlNode node, Scope scope) {
+            scope.descend = true;
+        }
+
+        @Override
+        public void visitOther(XmlNode node, Scope scope) {
+            scope.descend = node.getChildren().size() > 0;
+        }
+    }
+
+    // The item type of a list, generating its serializer
+    private String itemType(XmlNode listNode, String dataName) {
+        String itemType = "string";
+        XmlNode itemNode = findItemNode(listNode);
+        if (itemNode != null) {
+            String itemDataName = itemNode.getAttribute("dataName");
+            if (itemDataName != null) {
+                itemType = sanitizeName(itemDataName);
+            } else {
+                itemType = sanitizeName(dataName) + "Item";
             }
+            generateSerializerClass(itemType, itemNode);
         }
+        return itemType;
     }
 
-    private boolean isDataField(String tagName) {
-        return "fCSString".equals(tagName) || "fHostString".equals(tagName) || "fString".equals(tagName)
-                || "fCSMessage".equals(tagName) || "fCSDynXml".equals(tagName);
+    private static int hostLength(XmlNode node) {
+        Decorator decorator = node.getDecorator();
+        return decorator != null ? decorator.getLength() : 0;
     }
 
     // Duplicate helper methods
@@ -429,13 +431,13 @@ public class CsSerdeGenerator {
         if (listNode.getChildren() == null)
             return null;
         for (XmlNode child : listNode.getChildren()) {
-            if ("fCSRecord".equals(child.getTagName()) || "record".equals(child.getTagName())) {
+            TagKind kind = child.getKind();
+            if (kind == TagKind.FCS_RECORD || kind == TagKind.RECORD) {
                 return child;
             }
-            if ("refFmt".equals(child.getTagName())) {
-                String refId = child.getRefId();
-                if (refId != null) {
-                    return model.getNodeById(refId);
+            if (kind == TagKind.REF_FMT) {
+                if (child.getRefId() != null) {
+                    return model.resolve(child);
                 }
             }
         }
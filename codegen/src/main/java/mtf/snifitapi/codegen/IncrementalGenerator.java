@@ -0,0 +1,219 @@
+package mtf.snifitapi.codegen;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import mtf.snifitapi.model.SnifitModel;
+import mtf.snifitapi.model.TagKind;
+import mtf.snifitapi.model.XmlNode;
+
+/**
+ * Runs {@link CsModelGenerator} and {@link CsSerdeGenerator} for a set of
+ * fmtDef ids and keeps their output, so that after a model change only the
+ * fmtDefs that read a changed definition are generated again.
+ * <p>
+ * A fmtDef depends on its own id and on every id reached through a
+ * {@code refId} ({@code refFmt}, {@code refData} and the like) from its
+ * subtree or from a referenced subtree. Ids that do not resolve are kept as
+ * dependencies too, so declaring them later regenerates the fmtDef.
+ */
+public class IncrementalGenerator {
+
+    private final SnifitModel model;
+    // Null means every fmtDef in the model
+    private final List<String> fixedTargets;
+
+    private final Map<String, Map<String, String>> outputsByTarget = new HashMap<>();
+    private final Map<String, Set<String>> dependenciesByTarget = new HashMap<>();
+    private Map<String, String> merged = new LinkedHashMap<>();
+
+    /**
+     * @param targets fmtDef ids to generate, or null to generate every fmtDef
+     *                in the model, including ones added later
+     */
+    public IncrementalGenerator(SnifitModel model, Collection<String> targets) {
+        this.model = model;
+        this.fixedTargets = targets != null ? new ArrayList<>(targets) : null;
+    }
+
+    /**
+     * Generates every target.
+     *
+     * @return class name to C# source for all targets
+     */
+    public Map<String, String> generateAll() {
+        outputsByTarget.clear();
+        dependenciesByTarget.clear();
+        for (String target : targets()) {
+            generate(target);
+        }
+        merged = merge();
+        return merged;
+    }
+
+    /**
+     * Generates again the targets that depend on any of {@code changedIds}, and
+     * any target added or removed by the change.
+     *
+     * @param changedIds ids whose definition or resolution changed in the model
+     */
+    public Delta update(Set<String> changedIds) {
+        Delta delta = new Delta();
+        List<String> targets = targets();
+
+        Set<String> stale = new HashSet<>(outputsByTarget.keySet());
+        stale.removeAll(targets);
+        for (String target : stale) {
+            outputsByTarget.remove(target);
+            dependenciesByTarget.remove(target);
+        }
+
+        for (String target : targets) {
+            Set<String> dependencies = dependenciesByTarget.get(target);
+            if (dependencies == null || !disjoint(dependencies, changedIds)) {
+                generate(target);
+                delta.regenerated.add(target);
+            }
+        }
+
+        Map<String, String> next = merge();
+        for (Map.Entry<String, String> entry : next.entrySet()) {
+            if (!entry.getValue().equals(merged.get(entry.getKey()))) {
+                delta.written.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String className : merged.keySet()) {
+            if (!next.containsKey(className)) {
+                delta.removed.add(className);
+            }
+        }
+        merged = next;
+        delta.targetCount = targets.size();
+        return delta;
+    }
+
+    /**
+     * Current output of all targets.
+     */
+    public Map<String, String> getOutputs() {
+        return merged;
+    }
+
+    /**
+     * Ids the last generation of {@code target} read, or null if it has not
+     * been generated.
+     */
+    public Set<String> getDependencies(String target) {
+        return dependenciesByTarget.get(target);
+    }
+
+    private List<String> targets() {
+        if (fixedTargets != null) {
+            return fixedTargets;
+        }
+        Set<String> fmtDefs = new TreeSet<>();
+        for (Map.Entry<String, XmlNode> entry : model.getIdToNodeMap().entrySet()) {
+            if (entry.getValue().getKind() == TagKind.FMT_DEF) {
+                fmtDefs.add(entry.getKey());
+            }
+        }
+        return new ArrayList<>(fmtDefs);
+    }
+
+    private void generate(String target) {
+        Map<String, String> files = new LinkedHashMap<>(new CsModelGenerator(model).generate(target));
+        files.putAll(new CsSerdeGenerator(model).generate(target));
+        outputsByTarget.put(target, files);
+        dependenciesByTarget.put(target, dependencies(target));
+    }
+
+    private Set<String> dependencies(String target) {
+        Set<String> ids = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        Deque<XmlNode> stack = new ArrayDeque<>();
+        pending.push(target);
+        while (!pending.isEmpty()) {
+            String id = pending.pop();
+            if (!ids.add(id)) {
+                continue;
+            }
+            XmlNode definition = model.getNodeById(id);
+            if (definition == null) {
+                continue;
+            }
+            stack.push(definition);
+            while (!stack.isEmpty()) {
+                XmlNode node = stack.pop();
+                if (node.getRefId() != null && !ids.contains(node.getRefId())) {
+                    pending.push(node.getRefId());
+                }
+                for (XmlNode child : node.getChildren()) {
+                    stack.push(child);
+                }
+            }
+        }
+        return ids;
+    }
+
+    private Map<String, String> merge() {
+        // Targets in order, later ones winning on a shared class name, as with a
+        // single generator run per target
+        Map<String, String> files = new LinkedHashMap<>();
+        for (String target : targets()) {
+            Map<String, String> output = outputsByTarget.get(target);
+            if (output != null) {
+                files.putAll(output);
+            }
+        }
+        return files;
+    }
+
+    private static boolean disjoint(Set<String> a, Set<String> b) {
+        Set<String> smaller = a.size() <= b.size() ? a : b;
+        Set<String> larger = smaller == a ? b : a;
+        for (String s : smaller) {
+            if (larger.contains(s)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Outcome of one {@link IncrementalGenerator#update(Set)}.
+     */
+    public static class Delta {
+        private final List<String> regenerated = new ArrayList<>();
+        private final Map<String, String> written = new LinkedHashMap<>();
+        private final List<String> removed = new ArrayList<>();
+        private int targetCount;
+
+        /** Targets generated again. */
+        public List<String> getRegenerated() {
+            return regenerated;
+        }
+
+        /** Class name to source for outputs that are new or changed. */
+        public Map<String, String> getWritten() {
+            return written;
+        }
+
+        /** Classes no target generates any more. */
+        public List<String> getRemoved() {
+            return removed;
+        }
+
+        public int getTargetCount() {
+            return targetCount;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package mtf.snifitapi.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trie of the dotted data paths a model uses: every {@code dataName} and
+ * every {@code from} and {@code to} of a {@code move}, split at the dots.
+ * Paths sharing a prefix such as {@code GLSG_GLBL.GKSG_KEY} share its nodes,
+ * which is the nesting a generator needs to emit one type per group.
+ * <p>
+ * Every node, prefixes included, gets a slot: its position in a depth-first
+ * walk with children sorted by name. Slots depend only on the set of paths,
+ * not on the order they appear in, and each subtree occupies a contiguous
+ * range of them, so a runtime can key values by slot and select everything
+ * under a prefix by range.
+ */
+public final class DataPathTrie {
+
+    /**
+     * One path segment and the path leading to it.
+     */
+    public static final class PathNode {
+        private static final PathNode[] LEAF = new PathNode[0];
+
+        private final String segment;
+        private final String path;
+        private Map<String, PathNode> building = new HashMap<>();
+        private PathNode[] children = LEAF;
+        private int uses;
+        private int slot;
+        private int slotEnd;
+
+        private PathNode(String segment, String path) {
+            this.segment = segment;
+            this.path = path;
+        }
+
+        public String getSegment() {
+            return segment;
+        }
+
+        /** The dotted path from the root, or the empty string for the root. */
+        public String getPath() {
+            return path;
+        }
+
+        /** Children sorted by segment. */
+        public List<PathNode> getChildren() {
+            return Collections.unmodifiableList(Arrays.asList(children));
+        }
+
+        /** How many attributes name exactly this path; 0 for pure prefixes. */
+        public int getUses() {
+            return uses;
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+
+        /** One past the last slot of this subtree. */
+        public int getSlotEnd() {
+            return slotEnd;
+        }
+    }
+
+    private final PathNode root = new PathNode("", "");
+    private PathNode[] bySlot;
+
+    private DataPathTrie() {
+    }
+
+    /**
+     * Collects the paths of the whole model. Use
+     * {@link SnifitModel#getDataPathTrie()} to share one trie until the model
+     * changes.
+     */
+    public static DataPathTrie build(SnifitModel model) {
+        DataPathTrie trie = new DataPathTrie();
+        Deque<XmlNode> stack = new ArrayDeque<>(model.getRootNodes());
+        while (!stack.isEmpty()) {
+            XmlNode node = stack.pop();
+            trie.add(node.getAttribute("dataName"));
+            if ("move".equals(node.getTagName())) {
+                trie.add(node.getAttribute("from"));
+                trie.add(node.getAttribute("to"));
+            }
+            for (XmlNode child : node.getChildren()) {
+                stack.push(child);
+            }
+        }
+        trie.assignSlots();
+        return trie;
+    }
+
+    private void add(String path) {
+        if (path == null || path.isEmpty()) {
+            return;
+        }
+        PathNode node = root;
+        int start = 0;
+        while (true) {
+            int dot = path.indexOf('.', start);
+            int end = dot >= 0 ? dot : path.length();
+            String segment = path.substring(start, end);
+            PathNode child = node.building.get(segment);
+            if (child == null) {
+                child = new PathNode(segment, path.substring(0, end));
+                node.building.put(segment, child);
+            }
+            node = child;
+            if (dot < 0) {
+                break;
+            }
+            start = dot + 1;
+        }
+        node.uses++;
+    }
+
+    private void assignSlots() {
+        List<PathNode> order = new ArrayList<>();
+        Deque<PathNode> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            PathNode node = pending.pop();
+            node.slot = order.size();
+            order.add(node);
+            PathNode[] children = node.building.values().toArray(new PathNode[0]);
+            Arrays.sort(children, (a, b) -> a.segment.compareTo(b.segment));
+            node.children = children.length > 0 ? children : PathNode.LEAF;
+            node.building = null;
+            for (int c = children.length - 1; c >= 0; c--) {
+                pending.push(children[c]);
+            }
+        }
+        bySlot = order.toArray(new PathNode[0]);
+        // A subtree ends where the next sibling, or an ancestor's, begins
+        for (int s = bySlot.length - 1; s >= 0; s--) {
+            PathNode node = bySlot[s];
+            node.slotEnd = node.children.length > 0 ? node.children[node.children.length - 1].slotEnd : s + 1;
+        }
+    }
+
+    public PathNode getRoot() {
+        return root;
+    }
+
+    /** Number of slots, the root's included. */
+    public int size() {
+        return bySlot.length;
+    }
+
+    /**
+     * The node for a dotted path or prefix, or null if no path in the model
+     * starts with it.
+     */
+    public PathNode getNode(String path) {
+        if (path.isEmpty()) {
+            return root;
+        }
+        PathNode node = root;
+        int start = 0;
+        while (node != null) {
+            int dot = path.indexOf('.', start);
+            int end = dot >= 0 ? dot : path.length();
+            node = child(node, path, start, end);
+            if (dot < 0) {
+                return node;
+            }
+            start = dot + 1;
+        }
+        return null;
+    }
+
+    // Binary search of the sorted children for path[start, end)
+    private static PathNode child(PathNode node, String path, int start, int end) {
+        PathNode[] children = node.children;
+        int low = 0;
+        int high = children.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(children[mid].segment, path, start, end);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return children[mid];
+            }
+        }
+        return null;
+    }
+
+    // String.compareTo of segment against path[start, end), without a substring
+    private static int compare(String segment, String path, int start, int end) {
+        int length = end - start;
+        int common = Math.min(segment.length(), length);
+        for (int i = 0; i < common; i++) {
+            int diff = segment.charAt(i) - path.charAt(start + i);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return segment.length() - length;
+    }
+
+    /** Slot of a path or prefix, or -1 if no path starts with it. */
+    public int slotOf(String path) {
+        PathNode node = getNode(path);
+        return node != null ? node.slot : -1;
+    }
+
+    public PathNode getNode(int slot) {
+        return bySlot[slot];
+    }
+
+    /**
+     * The paths the model uses at or under {@code prefix}, which is matched
+     * whole segments at a time, in slot order.
+     */
+    public List<String> withPrefix(String prefix) {
+        PathNode node = getNode(prefix);
+        if (node == null) {
+            return Collections.emptyList();
+        }
+        List<String> paths = new ArrayList<>();
+        for (int s = node.slot; s < node.slotEnd; s++) {
+            if (bySlot[s].uses > 0) {
+                paths.add(bySlot[s].path);
+            }
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,173 @@
+package mtf.snifitapi.model;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable model made by {@link SnifitModel#freeze()}. Its nodes reject
+ * changes, its lists and maps are read-only views returned as they are
+ * rather than copied, ids are found through a minimal perfect hash, and
+ * everything a reader might otherwise build on first use is built by the
+ * constructor. Once published, for example through a final field or an
+ * executor, any number of threads can generate from it without locking.
+ */
+public final class FrozenModel extends SnifitModel {
+
+    private final List<XmlNode> roots;
+    private final PerfectHashMap<XmlNode> ids;
+    private final LinkReport linkReport;
+    private final ReferenceIndex referenceIndex;
+    private final DataPathTrie dataPathTrie;
+    private final NodeIndex nodeIndex;
+    private final StructuralHashes structuralHashes;
+    private final int nodeCount;
+    private final long freezeNanos;
+
+    FrozenModel(List<XmlNode> roots, Map<String, XmlNode> ids, boolean tags, boolean dataNames,
+            Collection<String> attributeNames, long start) {
+        this.roots = List.copyOf(roots);
+        this.ids = new PerfectHashMap<>(ids);
+        this.linkReport = ModelLinker.link(this.roots, this.ids);
+        this.referenceIndex = ReferenceIndex.build(this);
+        this.dataPathTrie = DataPathTrie.build(this);
+        this.nodeIndex = tags || dataNames || !attributeNames.isEmpty()
+                ? NodeIndex.build(this, tags, dataNames, attributeNames)
+                : null;
+        this.structuralHashes = StructuralHashes.build(this);
+
+        int count = 0;
+        Deque<XmlNode> stack = new ArrayDeque<>(this.roots);
+        for (XmlNode node : ids.values()) {
+            // Definitions outside the tree, if any
+            stack.push(node);
+        }
+        while (!stack.isEmpty()) {
+            XmlNode node = stack.pop();
+            if (node.isFrozen()) {
+                continue;
+            }
+            for (XmlNode child : node.getChildren()) {
+                stack.push(child);
+            }
+            node.freeze();
+            count++;
+        }
+        this.nodeCount = count;
+        this.freezeNanos = System.nanoTime() - start;
+    }
+
+    @Override
+    public List<XmlNode> getRootNodes() {
+        return roots;
+    }
+
+    /** Read-only map over the perfect hash. */
+    @Override
+    public Map<String, XmlNode> getIdToNodeMap() {
+        return ids;
+    }
+
+    @Override
+    public XmlNode getNodeById(String id) {
+        return ids.get(id);
+    }
+
+    /** Already linked; returns the report of linking at freeze time. */
+    @Override
+    public LinkReport link() {
+        return linkReport;
+    }
+
+    @Override
+    public LinkReport getLinkReport() {
+        return linkReport;
+    }
+
+    @Override
+    public XmlNode resolve(XmlNode reference) {
+        return reference.getResolvedRef();
+    }
+
+    @Override
+    public ReferenceIndex getReferenceIndex() {
+        return referenceIndex;
+    }
+
+    @Override
+    public DataPathTrie getDataPathTrie() {
+        return dataPathTrie;
+    }
+
+    @Override
+    public StructuralHashes getStructuralHashes() {
+        return structuralHashes;
+    }
+
+    /** The secondary indexes chosen at freeze time, or null for none. */
+    @Override
+    public NodeIndex getNodeIndex() {
+        return nodeIndex;
+    }
+
+    @Override
+    public FrozenModel freeze() {
+        return this;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /** Bytes of the perfect hash arrays, not counting the ids and nodes. */
+    public long getIdIndexBytes() {
+        return ids.estimateBytes();
+    }
+
+    /** Time taken to copy, link, index and freeze. */
+    public long getFreezeNanos() {
+        return freezeNanos;
+    }
+
+    @Override
+    public void setRootNodes(List<XmlNode> rootNodes) {
+        throw frozen();
+    }
+
+    @Override
+    public void addRootNodes(List<XmlNode> newRootNodes) {
+        throw frozen();
+    }
+
+    @Override
+    public void addIdToNodeMap(Map<String, XmlNode> newIdMap) {
+        throw frozen();
+    }
+
+    @Override
+    public void setIdToNodeMap(Map<String, XmlNode> idToNodeMap) {
+        throw frozen();
+    }
+
+    @Override
+    public Set<String> replaceSourceFile(String sourceFile, List<XmlNode> newRoots) {
+        throw frozen();
+    }
+
+    @Override
+    public NodeIndex buildNodeIndex(boolean tags, boolean dataNames, Collection<String> attributeNames) {
+        throw frozen();
+    }
+
+    @Override
+    public XmlNode materialize(int node) {
+        throw new UnsupportedOperationException("A frozen model has no node store");
+    }
+
+    private static UnsupportedOperationException frozen() {
+        return new UnsupportedOperationException("Frozen model");
+    }
+}
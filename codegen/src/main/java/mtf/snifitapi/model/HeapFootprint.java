@@ -0,0 +1,367 @@
+package mtf.snifitapi.model;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Estimated heap retained by the nodes of a model, by node class. Sizes
+ * follow the usual 64-bit HotSpot layout with compressed references: 12-byte
+ * object headers, 16-byte array headers, 4-byte references, objects padded to
+ * 8 bytes, and compact strings holding one byte per char unless a char needs
+ * two. Node sizes come from the classes' fields; list and builder sizes from
+ * their length and capacity.
+ * <p>
+ * Every object is counted once: a string shared by many nodes, as the
+ * parser's symbol table arranges, is charged to the node class that reached
+ * it first. Separately, strings equal to one already seen but a different
+ * instance are counted as duplicates, which is what interning would save.
+ * The id map is reported apart from the nodes; indexes built on the model
+ * are not counted.
+ */
+public final class HeapFootprint {
+
+    private static final int HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+    private static final int STRING = 24;
+    private static final int STRING_BUILDER = 24;
+    private static final int ARRAY_LIST = 24;
+    private static final int IMMUTABLE_LIST = 16;
+    // Per entry of a HashMap: the node object plus its table slot
+    private static final int MAP_ENTRY = 32 + REFERENCE;
+    private static final int MAP = 48;
+    private static final int TOP_DUPLICATES = 20;
+
+    /**
+     * Bytes retained by the nodes of one class, by what holds them.
+     */
+    public static final class TypeFootprint {
+        private int count;
+        private long nodeBytes;
+        private long attributeBytes;
+        private long childrenBytes;
+        private long textBytes;
+        private long stringBytes;
+
+        public int getCount() {
+            return count;
+        }
+
+        /** The node objects themselves. */
+        public long getNodeBytes() {
+            return nodeBytes;
+        }
+
+        /** Attribute arrays, not the strings in them. */
+        public long getAttributeBytes() {
+            return attributeBytes;
+        }
+
+        /** Children lists and their arrays. */
+        public long getChildrenBytes() {
+            return childrenBytes;
+        }
+
+        /** Text builders and their arrays. */
+        public long getTextBytes() {
+            return textBytes;
+        }
+
+        /** Tag names, ids, refIds, attribute names and values first reached here. */
+        public long getStringBytes() {
+            return stringBytes;
+        }
+
+        public long getTotalBytes() {
+            return nodeBytes + attributeBytes + childrenBytes + textBytes + stringBytes;
+        }
+    }
+
+    /**
+     * Instances of one string value beyond the first.
+     */
+    public static final class Duplicate {
+        private final String value;
+        private final int copies;
+        private final long bytes;
+
+        private Duplicate(String value, int copies, long bytes) {
+            this.value = value;
+            this.copies = copies;
+            this.bytes = bytes;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        /** Instances beyond the first. */
+        public int getCopies() {
+            return copies;
+        }
+
+        /** Bytes held by those instances. */
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    private final Map<String, TypeFootprint> types = new TreeMap<>();
+    private final Map<Object, Boolean> seen = new IdentityHashMap<>();
+    // First instance of each string value, and how many other instances hold it
+    private final Map<String, String> firstInstance = new HashMap<>();
+    private final Map<String, Integer> copies = new HashMap<>();
+    private final Map<Class<?>, Integer> shallowSizes = new HashMap<>();
+    private int nodeCount;
+    private int stringCount;
+    private long duplicateBytes;
+    private long idIndexBytes;
+    private List<Duplicate> topDuplicates;
+    private long nanos;
+
+    private HeapFootprint() {
+    }
+
+    /**
+     * Walks every node of the model, in the tree or only in the id map.
+     */
+    public static HeapFootprint measure(SnifitModel model) {
+        long start = System.nanoTime();
+        HeapFootprint footprint = new HeapFootprint();
+        Deque<XmlNode> stack = new ArrayDeque<>(model.getRootNodes());
+        Map<String, XmlNode> ids = model.getIdToNodeMap();
+        stack.addAll(ids.values());
+        while (!stack.isEmpty()) {
+            XmlNode node = stack.pop();
+            if (footprint.seen.put(node, Boolean.TRUE) != null) {
+                continue;
+            }
+            footprint.add(node);
+            stack.addAll(node.getChildren());
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(1, ids.size() * 4 / 3)) * 2;
+        footprint.idIndexBytes = MAP + array(capacity, REFERENCE) + (long) ids.size() * MAP_ENTRY;
+        for (String id : ids.keySet()) {
+            footprint.idIndexBytes += footprint.string(id);
+        }
+        footprint.topDuplicates = footprint.topDuplicates();
+        footprint.nanos = System.nanoTime() - start;
+        return footprint;
+    }
+
+    private void add(XmlNode node) {
+        nodeCount++;
+        TypeFootprint type = types.computeIfAbsent(node.getClass().getSimpleName(), k -> new TypeFootprint());
+        type.count++;
+        type.nodeBytes += shallowSize(node.getClass());
+
+        String[] attributes = node.attributeArray();
+        if (attributes.length > 0 && seen.put(attributes, Boolean.TRUE) == null) {
+            type.attributeBytes += array(attributes.length, REFERENCE);
+        }
+        List<XmlNode> children = node.getChildren();
+        if (!children.isEmpty() && seen.put(children, Boolean.TRUE) == null) {
+            // Capacity is not visible, so ArrayLists are counted as if trimmed
+            type.childrenBytes += (children instanceof ArrayList ? ARRAY_LIST : IMMUTABLE_LIST)
+                    + array(children.size(), REFERENCE);
+        }
+        StringBuilder text = node.textBuilder();
+        if (text != null) {
+            type.textBytes += STRING_BUILDER + array(text.capacity(), latin1(text) ? 1 : 2);
+        }
+
+        type.stringBytes += string(node.getTagName()) + string(node.getId()) + string(node.getRefId());
+        for (String value : attributes) {
+            type.stringBytes += string(value);
+        }
+    }
+
+    // Bytes of s if this is the first time the instance is reached, else 0
+    private long string(String s) {
+        if (s == null || seen.put(s, Boolean.TRUE) != null) {
+            return 0;
+        }
+        stringCount++;
+        long bytes = STRING + array(s.length(), latin1(s) ? 1 : 2);
+        String first = firstInstance.putIfAbsent(s, s);
+        if (first != null) {
+            copies.merge(s, 1, Integer::sum);
+            duplicateBytes += bytes;
+        }
+        return bytes;
+    }
+
+    private List<Duplicate> topDuplicates() {
+        List<Duplicate> duplicates = new ArrayList<>(copies.size());
+        for (Map.Entry<String, Integer> entry : copies.entrySet()) {
+            String value = entry.getKey();
+            long bytes = entry.getValue() * (STRING + array(value.length(), latin1(value) ? 1 : 2));
+            duplicates.add(new Duplicate(value, entry.getValue(), bytes));
+        }
+        duplicates.sort((a, b) -> Long.compare(b.bytes, a.bytes));
+        return duplicates.subList(0, Math.min(TOP_DUPLICATES, duplicates.size()));
+    }
+
+    private int shallowSize(Class<?> type) {
+        Integer size = shallowSizes.get(type);
+        if (size == null) {
+            long bytes = HEADER;
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        bytes += fieldSize(field.getType());
+                    }
+                }
+            }
+            size = (int) align(bytes);
+            shallowSizes.put(type, size);
+        }
+        return size;
+    }
+
+    private static int fieldSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        if (type == byte.class || type == boolean.class) {
+            return 1;
+        }
+        return REFERENCE;
+    }
+
+    private static boolean latin1(CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long array(int length, int elementSize) {
+        return align(ARRAY_HEADER + (long) length * elementSize);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /** By node class simple name, sorted. */
+    public Map<String, TypeFootprint> getTypes() {
+        return Collections.unmodifiableMap(types);
+    }
+
+    /** Everything the nodes retain, the id map excluded. */
+    public long getNodeTotalBytes() {
+        long total = 0;
+        for (TypeFootprint type : types.values()) {
+            total += type.getTotalBytes();
+        }
+        return total;
+    }
+
+    /** The id map, and the id strings no node holds. */
+    public long getIdIndexBytes() {
+        return idIndexBytes;
+    }
+
+    public long getTotalBytes() {
+        return getNodeTotalBytes() + idIndexBytes;
+    }
+
+    /** Distinct string instances reached. */
+    public int getStringCount() {
+        return stringCount;
+    }
+
+    /** Distinct string values reached. */
+    public int getDistinctStrings() {
+        return firstInstance.size();
+    }
+
+    /** Instances whose value an earlier instance already had. */
+    public int getDuplicateStrings() {
+        return stringCount - firstInstance.size();
+    }
+
+    public long getDuplicateBytes() {
+        return duplicateBytes;
+    }
+
+    /** The values wasting the most bytes in duplicates, most first. */
+    public List<Duplicate> getTopDuplicates() {
+        return Collections.unmodifiableList(topDuplicates);
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * The report as one JSON object, for tracking over time.
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"nodes\":").append(nodeCount)
+                .append(",\"totalBytes\":").append(getTotalBytes())
+                .append(",\"nodeBytes\":").append(getNodeTotalBytes())
+                .append(",\"idIndexBytes\":").append(idIndexBytes)
+                .append(",\"types\":{");
+        boolean first = true;
+        for (Map.Entry<String, TypeFootprint> entry : types.entrySet()) {
+            TypeFootprint type = entry.getValue();
+            if (!first) {
+                sb.append(",");
+            }
+            first = false;
+            sb.append("\"").append(XmlNode.escapeJson(entry.getKey())).append("\":{")
+                    .append("\"count\":").append(type.count)
+                    .append(",\"nodeBytes\":").append(type.nodeBytes)
+                    .append(",\"attributeBytes\":").append(type.attributeBytes)
+                    .append(",\"childrenBytes\":").append(type.childrenBytes)
+                    .append(",\"textBytes\":").append(type.textBytes)
+                    .append(",\"stringBytes\":").append(type.stringBytes)
+                    .append(",\"totalBytes\":").append(type.getTotalBytes())
+                    .append("}");
+        }
+        sb.append("},\"strings\":{")
+                .append("\"instances\":").append(stringCount)
+                .append(",\"distinct\":").append(getDistinctStrings())
+                .append(",\"duplicates\":").append(getDuplicateStrings())
+                .append(",\"duplicateBytes\":").append(duplicateBytes)
+                .append(",\"topDuplicates\":[");
+        first = true;
+        for (Duplicate duplicate : topDuplicates) {
+            if (!first) {
+                sb.append(",");
+            }
+            first = false;
+            sb.append("{\"value\":\"").append(XmlNode.escapeJson(duplicate.value))
+                    .append("\",\"copies\":").append(duplicate.copies)
+                    .append(",\"bytes\":").append(duplicate.bytes)
+                    .append("}");
+        }
+        sb.append("]}}");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,72 @@
+package mtf.snifitapi.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable int array, kept either on the Java heap or in a direct buffer
+ * outside of it. One column of a {@link NodeStore}.
+ */
+final class IntColumn {
+    private int[] heap;
+    private IntBuffer direct;
+    private int size;
+
+    IntColumn(boolean offHeap, int capacity) {
+        if (offHeap) {
+            direct = allocateDirect(capacity);
+        } else {
+            heap = new int[capacity];
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(int index) {
+        return heap != null ? heap[index] : direct.get(index);
+    }
+
+    void set(int index, int value) {
+        if (heap != null) {
+            heap[index] = value;
+        } else {
+            direct.put(index, value);
+        }
+    }
+
+    void add(int value) {
+        if (size == capacity()) {
+            grow();
+        }
+        set(size++, value);
+    }
+
+    long capacityBytes() {
+        return 4L * capacity();
+    }
+
+    private int capacity() {
+        return heap != null ? heap.length : direct.capacity();
+    }
+
+    private void grow() {
+        int capacity = Math.max(16, capacity() * 2);
+        if (heap != null) {
+            heap = Arrays.copyOf(heap, capacity);
+        } else {
+            IntBuffer grown = allocateDirect(capacity);
+            for (int i = 0; i < size; i++) {
+                grown.put(i, direct.get(i));
+            }
+            direct = grown;
+        }
+    }
+
+    private static IntBuffer allocateDirect(int capacity) {
+        return ByteBuffer.allocateDirect(4 * Math.max(1, capacity)).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+}
@@ -0,0 +1,70 @@
+package mtf.snifitapi.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of {@link SnifitModel#link()}: how many references were resolved,
+ * which ones name an id no file declares, and which close a cycle.
+ */
+public class LinkReport {
+    private final List<XmlNode> dangling = new ArrayList<>();
+    private final List<XmlNode> cyclic = new ArrayList<>();
+    private final List<List<String>> cycles = new ArrayList<>();
+    private int references;
+    private long nanos;
+
+    void recordReference() {
+        references++;
+    }
+
+    void recordDangling(XmlNode reference) {
+        dangling.add(reference);
+    }
+
+    void recordCycle(XmlNode reference, List<String> ids) {
+        cyclic.add(reference);
+        cycles.add(Collections.unmodifiableList(ids));
+    }
+
+    void setNanos(long nanos) {
+        this.nanos = nanos;
+    }
+
+    /** Reference nodes seen, resolved or not. */
+    public int getReferences() {
+        return references;
+    }
+
+    /** Reference nodes whose refId is not declared anywhere. */
+    public List<XmlNode> getDangling() {
+        return Collections.unmodifiableList(dangling);
+    }
+
+    /**
+     * Reference nodes left unresolved because following them would lead back
+     * to a definition being expanded, in the order they were found.
+     */
+    public List<XmlNode> getCyclic() {
+        return Collections.unmodifiableList(cyclic);
+    }
+
+    /**
+     * For each of {@link #getCyclic()}, the ids around the cycle, starting and
+     * ending with the id that reference points back to.
+     */
+    public List<List<String>> getCycles() {
+        return Collections.unmodifiableList(cycles);
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d references, %d dangling, %d cycles in %.1f ms", references, dangling.size(),
+                cycles.size(), nanos / 1e6);
+    }
+}
@@ -0,0 +1,180 @@
+package mtf.snifitapi.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Definitions that differ between two versions of a model, matched by id and
+ * compared by {@link StructuralHashes}: one hash lookup per id, so the diff is
+ * linear in the number of definitions once both models are hashed.
+ */
+public final class ModelDiff {
+
+    public enum Change {
+        ADDED,
+        REMOVED,
+        /** The definition's own subtree differs. */
+        MODIFIED,
+        /** Only something the definition reaches through references differs. */
+        REFERENCE_CHANGED
+    }
+
+    /**
+     * One changed definition.
+     */
+    public static final class Entry {
+        private final String id;
+        private final String tagName;
+        private final Change change;
+        private final List<String> via;
+
+        private Entry(String id, String tagName, Change change, List<String> via) {
+            this.id = id;
+            this.tagName = tagName;
+            this.change = change;
+            this.via = via;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /** Tag of the definition in the newer model, or in the older if removed. */
+        public String getTagName() {
+            return tagName;
+        }
+
+        public Change getChange() {
+            return change;
+        }
+
+        /**
+         * For {@link Change#REFERENCE_CHANGED}, the refIds in the definition
+         * whose targets changed, in document order; empty otherwise.
+         */
+        public List<String> getVia() {
+            return via;
+        }
+
+        @Override
+        public String toString() {
+            return change + " " + tagName + " " + id + (via.isEmpty() ? "" : " via " + String.join(", ", via));
+        }
+    }
+
+    private final List<Entry> entries;
+    private final int compared;
+    private final long nanos;
+
+    private ModelDiff(List<Entry> entries, int compared, long nanos) {
+        this.entries = entries;
+        this.compared = compared;
+        this.nanos = nanos;
+    }
+
+    /**
+     * Compares every id declared by either model.
+     */
+    public static ModelDiff compare(SnifitModel before, SnifitModel after) {
+        long start = System.nanoTime();
+        Map<String, XmlNode> oldIds = before.getIdToNodeMap();
+        Map<String, XmlNode> newIds = after.getIdToNodeMap();
+        StructuralHashes oldHashes = before.getStructuralHashes();
+        StructuralHashes newHashes = after.getStructuralHashes();
+
+        List<Entry> entries = new ArrayList<>();
+        for (Map.Entry<String, XmlNode> entry : newIds.entrySet()) {
+            String id = entry.getKey();
+            XmlNode node = entry.getValue();
+            XmlNode old = oldIds.get(id);
+            if (old == null) {
+                entries.add(new Entry(id, node.getTagName(), Change.ADDED, Collections.emptyList()));
+            } else if (oldHashes.getContentHash(old) != newHashes.getContentHash(node)) {
+                entries.add(new Entry(id, node.getTagName(), Change.MODIFIED, Collections.emptyList()));
+            } else if (oldHashes.getDeepHash(old) != newHashes.getDeepHash(node)) {
+                entries.add(new Entry(id, node.getTagName(), Change.REFERENCE_CHANGED,
+                        via(node, before, after, oldHashes, newHashes)));
+            }
+        }
+        int compared = newIds.size();
+        for (Map.Entry<String, XmlNode> entry : oldIds.entrySet()) {
+            if (!newIds.containsKey(entry.getKey())) {
+                entries.add(new Entry(entry.getKey(), entry.getValue().getTagName(), Change.REMOVED,
+                        Collections.emptyList()));
+                compared++;
+            }
+        }
+        entries.sort(Comparator.comparing(Entry::getId));
+        return new ModelDiff(entries, compared, System.nanoTime() - start);
+    }
+
+    // The references in the subtree whose targets differ in deep hash, or
+    // exist in only one of the models
+    private static List<String> via(XmlNode node, SnifitModel before, SnifitModel after, StructuralHashes oldHashes,
+            StructuralHashes newHashes) {
+        Set<String> via = new LinkedHashSet<>();
+        Deque<XmlNode> stack = new ArrayDeque<>();
+        stack.push(node);
+        while (!stack.isEmpty()) {
+            XmlNode current = stack.pop();
+            if (current.getRefId() != null) {
+                XmlNode oldTarget = before.getNodeById(current.getRefId());
+                XmlNode newTarget = after.getNodeById(current.getRefId());
+                if ((oldTarget == null) != (newTarget == null) || (oldTarget != null
+                        && oldHashes.getDeepHash(oldTarget) != newHashes.getDeepHash(newTarget))) {
+                    via.add(current.getRefId());
+                }
+            }
+            List<XmlNode> children = current.getChildren();
+            for (int c = children.size() - 1; c >= 0; c--) {
+                stack.push(children.get(c));
+            }
+        }
+        return new ArrayList<>(via);
+    }
+
+    /** Changed definitions, sorted by id. */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    public List<Entry> getEntries(Change change) {
+        List<Entry> matching = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.change == change) {
+                matching.add(entry);
+            }
+        }
+        return matching;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /** Number of ids compared. */
+    public int getCompared() {
+        return compared;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    /** Counts of changed definitions by change and tag, for a summary line. */
+    public Map<Change, Map<String, Integer>> getCounts() {
+        Map<Change, Map<String, Integer>> counts = new TreeMap<>();
+        for (Entry entry : entries) {
+            counts.computeIfAbsent(entry.change, c -> new TreeMap<>()).merge(entry.tagName, 1, Integer::sum);
+        }
+        return counts;
+    }
+}
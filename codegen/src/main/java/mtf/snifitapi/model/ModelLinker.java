@@ -0,0 +1,113 @@
+package mtf.snifitapi.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The link pass behind {@link SnifitModel#link()}. One depth-first walk over
+ * the tree, following each reference into its definition the first time that
+ * definition is reached, resolves every reference and finds every cycle: a
+ * reference back to a definition still on the walk's path is one.
+ * <p>
+ * Frozen nodes belong to the shared base of an {@link OverlayModel} and were
+ * linked when it was frozen; references into them are resolved but the walk
+ * does not enter them.
+ */
+final class ModelLinker {
+
+    private ModelLinker() {
+    }
+
+    static LinkReport link(List<XmlNode> roots, Map<String, XmlNode> ids) {
+        long start = System.nanoTime();
+        LinkReport report = new LinkReport();
+
+        // Absent until reached, false while on the path, true once finished
+        Map<XmlNode, Boolean> done = new IdentityHashMap<>();
+        // Explicit path so that deep reference chains cannot overflow the stack;
+        // next[i] is the next successor of path[i] to visit, the reference
+        // target coming after the children
+        List<XmlNode> path = new ArrayList<>();
+        int[] next = new int[64];
+
+        for (XmlNode root : roots) {
+            if (done.containsKey(root)) {
+                continue;
+            }
+            done.put(root, Boolean.FALSE);
+            path.add(root);
+            next[0] = 0;
+            while (!path.isEmpty()) {
+                int top = path.size() - 1;
+                XmlNode node = path.get(top);
+                List<XmlNode> children = node.getChildren();
+                int i = next[top]++;
+
+                XmlNode successor;
+                if (i < children.size()) {
+                    successor = children.get(i);
+                } else if (i == children.size() && node instanceof SnifitModel.Reference) {
+                    successor = resolve((SnifitModel.Reference) node, ids, done, path, next, report);
+                } else {
+                    done.put(node, Boolean.TRUE);
+                    path.remove(top);
+                    continue;
+                }
+
+                if (successor != null && !successor.isFrozen() && !done.containsKey(successor)) {
+                    done.put(successor, Boolean.FALSE);
+                    if (path.size() == next.length) {
+                        next = Arrays.copyOf(next, next.length * 2);
+                    }
+                    next[path.size()] = 0;
+                    path.add(successor);
+                }
+            }
+        }
+
+        report.setNanos(System.nanoTime() - start);
+        return report;
+    }
+
+    private static XmlNode resolve(SnifitModel.Reference reference, Map<String, XmlNode> ids,
+            Map<XmlNode, Boolean> done, List<XmlNode> path, int[] next, LinkReport report) {
+        report.recordReference();
+        reference.setResolvedRef(null);
+        String refId = reference.getRefId();
+        if (refId == null) {
+            return null;
+        }
+        XmlNode target = ids.get(refId);
+        if (target == null) {
+            report.recordDangling(reference);
+            return null;
+        }
+        if (done.get(target) == Boolean.FALSE) {
+            report.recordCycle(reference, cycle(target, path, next));
+            return null;
+        }
+        reference.setResolvedRef(target);
+        return target;
+    }
+
+    // The target's id, then the refId of every reference being followed
+    // between it and the top of the path
+    private static List<String> cycle(XmlNode target, List<XmlNode> path, int[] next) {
+        int from = path.size() - 1;
+        while (path.get(from) != target) {
+            from--;
+        }
+        List<String> ids = new ArrayList<>();
+        ids.add(target.getId());
+        for (int i = from + 1; i < path.size(); i++) {
+            XmlNode node = path.get(i);
+            if (node instanceof SnifitModel.Reference && next[i] > node.getChildren().size()) {
+                ids.add(node.getRefId());
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,423 @@
+package mtf.snifitapi.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Binary snapshot of a parsed {@link SnifitModel}, so that a run over unchanged
+ * inputs can skip XML parsing altogether.
+ * <p>
+ * A snapshot holds a {@link Key} describing every input file (path, size,
+ * mtime and SHA-256 of the content), a string table, the nodes in pre-order
+ * with their source locations, and the id index. It is only loaded when the
+ * key still matches the inputs: same files in the same order and the same
+ * sizes, and for every file either the same mtime or, if the mtime moved (a
+ * checkout, a touch), the same content hash.
+ * <p>
+ * The key is taken before the inputs are parsed. A file saved while the parse
+ * runs then no longer matches the key, and the next run parses again instead
+ * of trusting a model built from the older content.
+ */
+public final class ModelSnapshot {
+
+    private static final int MAGIC = 0x534E4653; // "SNFS"
+    private static final int VERSION = 1;
+
+    private ModelSnapshot() {
+    }
+
+    /**
+     * Size, mtime and content hash of each input, as they were when taken.
+     */
+    public static final class Key {
+        private final List<String> paths;
+        private final long[] sizes;
+        private final long[] mtimes;
+        private final byte[][] hashes;
+
+        private Key(int count) {
+            this.paths = new ArrayList<>(count);
+            this.sizes = new long[count];
+            this.mtimes = new long[count];
+            this.hashes = new byte[count][];
+        }
+    }
+
+    /**
+     * Takes the key of {@code inputs}; take it before parsing them, so the
+     * snapshot written afterwards cannot claim content newer than the model.
+     */
+    public static Key keyOf(List<Path> inputs) throws IOException {
+        Key key = new Key(inputs.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            Path input = inputs.get(i);
+            key.paths.add(input.toAbsolutePath().normalize().toString());
+            // Size and mtime first, so a save during hashing moves the mtime
+            // past the one recorded and forces the hash check on reading
+            key.sizes[i] = Files.size(input);
+            key.mtimes[i] = Files.getLastModifiedTime(input).toMillis();
+            key.hashes[i] = contentHash(input);
+        }
+        return key;
+    }
+
+    /**
+     * Writes {@code model} to {@code snapshot}, keyed by {@code key}. The file
+     * is written next to the target and moved into place, so a reader never
+     * sees a partial snapshot, and removed again if writing fails.
+     *
+     * @param key              taken from the inputs before they were parsed
+     * @param compressionLevel a {@link Deflater} level from 1 to 9, or
+     *                         {@link Deflater#NO_COMPRESSION} to store the body
+     *                         as is
+     */
+    public static void write(SnifitModel model, Key key, Path snapshot, int compressionLevel) throws IOException {
+        if (!isCompressionLevel(compressionLevel)) {
+            throw new IllegalArgumentException("Compression level " + compressionLevel + " is not 0 to 9");
+        }
+        Path tmp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        try {
+            writeTo(tmp, model, key, compressionLevel);
+            Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    /**
+     * Whether {@code level} is one {@link #write} takes.
+     */
+    public static boolean isCompressionLevel(int level) {
+        return level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION;
+    }
+
+    private static void writeTo(Path tmp, SnifitModel model, Key key, int compressionLevel) throws IOException {
+        try (OutputStream file = Files.newOutputStream(tmp)) {
+            DataOutputStream header = new DataOutputStream(file);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeByte(compressionLevel);
+
+            Deflater deflater = compressionLevel != Deflater.NO_COMPRESSION ? new Deflater(compressionLevel) : null;
+            try {
+                OutputStream body = deflater != null ? new DeflaterOutputStream(file, deflater, 1 << 16) : file;
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(body, 1 << 16));
+                writeKey(out, key);
+                writeModel(out, model);
+                out.flush();
+                if (body instanceof DeflaterOutputStream) {
+                    ((DeflaterOutputStream) body).finish();
+                }
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the model stored in {@code snapshot} if it was written for the same
+     * {@code inputs}.
+     *
+     * @return the model, or null if there is no snapshot or it is stale
+     * @throws IOException if the snapshot exists but cannot be read or is
+     *                     corrupt
+     */
+    public static SnifitModel read(Path snapshot, List<Path> inputs) throws IOException {
+        if (!Files.isRegularFile(snapshot)) {
+            return null;
+        }
+        try (InputStream file = Files.newInputStream(snapshot)) {
+            DataInputStream header = new DataInputStream(file);
+            if (header.readInt() != MAGIC || header.readInt() != VERSION) {
+                return null;
+            }
+            int compressionLevel = header.readByte();
+
+            // Closing the inflating stream frees its native inflater now
+            // rather than whenever it is collected
+            try (InputStream body = compressionLevel != Deflater.NO_COMPRESSION ? new InflaterInputStream(file) : file;
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(body, 1 << 16))) {
+                if (!keyMatches(in, inputs)) {
+                    return null;
+                }
+                return readModel(in);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated snapshot " + snapshot, e);
+        } catch (RuntimeException e) {
+            // Whatever the checks in readModel miss still means a bad file,
+            // not a bug to stop the run for
+            throw new IOException("Corrupt snapshot " + snapshot, e);
+        }
+    }
+
+    // ---- key ----
+
+    private static void writeKey(DataOutputStream out, Key key) throws IOException {
+        out.writeInt(key.paths.size());
+        for (int i = 0; i < key.paths.size(); i++) {
+            writeString(out, key.paths.get(i));
+            out.writeLong(key.sizes[i]);
+            out.writeLong(key.mtimes[i]);
+            out.write(key.hashes[i]);
+        }
+    }
+
+    private static boolean keyMatches(DataInputStream in, List<Path> inputs) throws IOException {
+        if (in.readInt() != inputs.size()) {
+            return false;
+        }
+        byte[] hash = new byte[32];
+        for (Path input : inputs) {
+            String path = readString(in);
+            long size = in.readLong();
+            long mtime = in.readLong();
+            in.readFully(hash);
+
+            if (!path.equals(input.toAbsolutePath().normalize().toString()) || !Files.isRegularFile(input)
+                    || size != Files.size(input)) {
+                return false;
+            }
+            if (mtime != Files.getLastModifiedTime(input).toMillis() && !Arrays.equals(hash, contentHash(input))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static byte[] contentHash(Path input) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(input)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return digest.digest();
+    }
+
+    // ---- model ----
+
+    private static void writeModel(DataOutputStream out, SnifitModel model) throws IOException {
+        List<XmlNode> roots = model.getRootNodes();
+
+        // Number the nodes in pre-order and collect their strings
+        Map<XmlNode, Integer> ordinals = new IdentityHashMap<>();
+        List<XmlNode> nodes = new ArrayList<>();
+        Map<String, Integer> strings = new HashMap<>();
+        List<String> stringTable = new ArrayList<>();
+        Deque<XmlNode> stack = new ArrayDeque<>();
+        for (int r = roots.size() - 1; r >= 0; r--) {
+            stack.push(roots.get(r));
+        }
+        while (!stack.isEmpty()) {
+            XmlNode node = stack.pop();
+            ordinals.put(node, nodes.size());
+            nodes.add(node);
+
+            intern(strings, stringTable, node.getTagName());
+            intern(strings, stringTable, node.getId());
+            intern(strings, stringTable, node.getRefId());
+            intern(strings, stringTable, node.getSourceFile());
+            for (Map.Entry<String, String> attribute : node.getAttributes().entrySet()) {
+                intern(strings, stringTable, attribute.getKey());
+                intern(strings, stringTable, attribute.getValue());
+            }
+            String text = node.getTextContent();
+            intern(strings, stringTable, text.isEmpty() ? null : text);
+
+            List<XmlNode> children = node.getChildren();
+            for (int c = children.size() - 1; c >= 0; c--) {
+                stack.push(children.get(c));
+            }
+        }
+
+        out.writeInt(stringTable.size());
+        for (String s : stringTable) {
+            writeString(out, s);
+        }
+
+        out.writeInt(roots.size());
+        out.writeInt(nodes.size());
+        for (XmlNode node : nodes) {
+            out.writeInt(ref(strings, node.getTagName()));
+            out.writeInt(ref(strings, node.getId()));
+            out.writeInt(ref(strings, node.getRefId()));
+            out.writeInt(ref(strings, node.getSourceFile()));
+            out.writeInt(node.getLineNumber());
+            Map<String, String> attributes = node.getAttributes();
+            out.writeInt(attributes.size());
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                out.writeInt(ref(strings, attribute.getKey()));
+                out.writeInt(ref(strings, attribute.getValue()));
+            }
+            String text = node.getTextContent();
+            out.writeInt(ref(strings, text.isEmpty() ? null : text));
+            out.writeInt(node.getChildren().size());
+        }
+
+        Map<String, XmlNode> idMap = model.getIdToNodeMap();
+        out.writeInt(idMap.size());
+        for (Map.Entry<String, XmlNode> entry : idMap.entrySet()) {
+            Integer ordinal = ordinals.get(entry.getValue());
+            if (ordinal == null) {
+                throw new IOException("Id '" + entry.getKey() + "' points at a node outside the model tree");
+            }
+            writeString(out, entry.getKey());
+            out.writeInt(ordinal);
+        }
+    }
+
+    // Every count and string reference is checked, since a damaged file
+    // must fail as an IOException for the caller to parse instead
+    private static SnifitModel readModel(DataInputStream in) throws IOException {
+        int stringCount = readCount(in);
+        List<String> strings = new ArrayList<>(Math.min(stringCount, 1 << 16));
+        for (int i = 0; i < stringCount; i++) {
+            strings.add(readString(in));
+        }
+
+        int rootCount = readCount(in);
+        int nodeCount = readCount(in);
+        List<XmlNode> nodes = new ArrayList<>(Math.min(nodeCount, 1 << 16));
+        List<XmlNode> roots = new ArrayList<>(Math.min(rootCount, 1 << 16));
+
+        // Pre-order with child counts: keep the open parents and how many
+        // children each is still waiting for
+        Deque<XmlNode> parents = new ArrayDeque<>();
+        Deque<Integer> remaining = new ArrayDeque<>();
+        for (int n = 0; n < nodeCount; n++) {
+            XmlNode node = SnifitModel.createNode(requiredString(strings, in.readInt()));
+            node.setId(string(strings, in.readInt()));
+            node.setRefId(string(strings, in.readInt()));
+            String sourceFile = string(strings, in.readInt());
+            int line = in.readInt();
+            if (sourceFile != null || line != 0) {
+                node.setSourceLocation(sourceFile, line);
+            }
+            int attributeCount = readCount(in);
+            for (int a = 0; a < attributeCount; a++) {
+                node.addAttribute(requiredString(strings, in.readInt()), requiredString(strings, in.readInt()));
+            }
+            node.setTextContent(string(strings, in.readInt()));
+            int childCount = readCount(in);
+            nodes.add(node);
+
+            if (parents.isEmpty()) {
+                roots.add(node);
+            } else {
+                parents.peek().addChild(node);
+                remaining.push(remaining.pop() - 1);
+            }
+            if (childCount > 0) {
+                parents.push(node);
+                remaining.push(childCount);
+            }
+            while (!remaining.isEmpty() && remaining.peek() == 0) {
+                parents.pop();
+                remaining.pop();
+            }
+        }
+        if (roots.size() != rootCount || !parents.isEmpty()) {
+            throw new IOException("Corrupt snapshot: node tree does not add up");
+        }
+
+        Map<String, XmlNode> idMap = new HashMap<>();
+        int idCount = readCount(in);
+        for (int i = 0; i < idCount; i++) {
+            String id = readString(in);
+            int ordinal = in.readInt();
+            if (ordinal < 0 || ordinal >= nodes.size()) {
+                throw new IOException("Corrupt snapshot: id '" + id + "' points at node " + ordinal + " of "
+                        + nodes.size());
+            }
+            idMap.put(id, nodes.get(ordinal));
+        }
+
+        SnifitModel model = new SnifitModel();
+        model.addRootNodes(roots);
+        model.addIdToNodeMap(idMap);
+        return model;
+    }
+
+    private static void intern(Map<String, Integer> strings, List<String> table, String s) {
+        if (s != null && !strings.containsKey(s)) {
+            strings.put(s, table.size());
+            table.add(s);
+        }
+    }
+
+    private static int ref(Map<String, Integer> strings, String s) {
+        return s != null ? strings.get(s) : -1;
+    }
+
+    private static String string(List<String> strings, int ref) throws IOException {
+        return ref == -1 ? null : requiredString(strings, ref);
+    }
+
+    private static String requiredString(List<String> strings, int ref) throws IOException {
+        if (ref < 0 || ref >= strings.size()) {
+            throw new IOException("Corrupt snapshot: string " + ref + " of " + strings.size());
+        }
+        return strings.get(ref);
+    }
+
+    // Collections are sized from counts only up to a bound, so a damaged
+    // count runs into the end of the file rather than out of memory
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Corrupt snapshot: count " + count);
+        }
+        return count;
+    }
+
+    // writeUTF is limited to 64 KB, which long attribute values could exceed
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readCount(in);
+        // readNBytes grows its buffer as it reads, unlike new byte[length]
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length != length) {
+            throw new EOFException();
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
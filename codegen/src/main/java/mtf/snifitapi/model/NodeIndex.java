@@ -0,0 +1,249 @@
+package mtf.snifitapi.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optional secondary indexes over a model: by tag, by {@code dataName} and
+ * by the values of chosen attributes. Nodes are numbered in document order
+ * and every key maps to a sorted posting list of those ordinals, so lookups
+ * and intersections never walk the tree. Since the ordinals are pre-order,
+ * {@link #containing(int[], int[])} also answers "which fmtDefs contain a
+ * field named GL_SNIF" from two posting lists.
+ * <p>
+ * Posting lists are shared, not copied; callers must not modify them.
+ */
+public final class NodeIndex {
+
+    private static final int[] NONE = new int[0];
+
+    private final XmlNode[] nodes;
+    // Ordinal one past the last node of each node's subtree
+    private final int[] subtreeEnd;
+    private final Map<String, int[]> byTag;
+    private final Map<String, int[]> byDataName;
+    private final Map<String, Map<String, int[]>> byAttribute = new LinkedHashMap<>();
+    private final List<String> report = new ArrayList<>();
+
+    private NodeIndex(XmlNode[] nodes, int[] subtreeEnd, boolean tags, boolean dataNames,
+            Collection<String> attributeNames, long walkNanos) {
+        this.nodes = nodes;
+        this.subtreeEnd = subtreeEnd;
+        report.add(String.format("nodes: %d, %d KB, %.1f ms", nodes.length, (8L * nodes.length) / 1024,
+                walkNanos / 1e6));
+
+        long start = System.nanoTime();
+        this.byTag = tags ? postings(null) : null;
+        if (tags) {
+            report("tag", byTag, start);
+        }
+        start = System.nanoTime();
+        this.byDataName = dataNames ? postings("dataName") : null;
+        if (dataNames) {
+            report("dataName", byDataName, start);
+        }
+        for (String name : attributeNames) {
+            start = System.nanoTime();
+            Map<String, int[]> index = postings(name);
+            byAttribute.put(name, index);
+            report("@" + name, index, start);
+        }
+    }
+
+    /**
+     * Indexes the whole model.
+     *
+     * @param tags           whether to index nodes by tag
+     * @param dataNames      whether to index nodes by {@code dataName}
+     * @param attributeNames attributes to index by value
+     */
+    public static NodeIndex build(SnifitModel model, boolean tags, boolean dataNames,
+            Collection<String> attributeNames) {
+        long start = System.nanoTime();
+        List<XmlNode> order = new ArrayList<>();
+        int[] ends = new int[1024];
+
+        // Pre-order with an explicit path; next[i] is the next child of path[i]
+        // and ordinal[i] its ordinal
+        List<XmlNode> path = new ArrayList<>();
+        int[] next = new int[64];
+        int[] ordinal = new int[64];
+        for (XmlNode root : model.getRootNodes()) {
+            path.add(root);
+            next[0] = 0;
+            ordinal[0] = order.size();
+            order.add(root);
+            while (!path.isEmpty()) {
+                int top = path.size() - 1;
+                List<XmlNode> children = path.get(top).getChildren();
+                if (next[top] < children.size()) {
+                    XmlNode child = children.get(next[top]++);
+                    if (path.size() == next.length) {
+                        next = Arrays.copyOf(next, next.length * 2);
+                        ordinal = Arrays.copyOf(ordinal, ordinal.length * 2);
+                    }
+                    next[path.size()] = 0;
+                    ordinal[path.size()] = order.size();
+                    path.add(child);
+                    order.add(child);
+                } else {
+                    path.remove(top);
+                    if (ordinal[top] >= ends.length) {
+                        ends = Arrays.copyOf(ends, Math.max(ends.length * 2, ordinal[top] + 1));
+                    }
+                    ends[ordinal[top]] = order.size();
+                }
+            }
+        }
+        return new NodeIndex(order.toArray(new XmlNode[0]), Arrays.copyOf(ends, order.size()), tags, dataNames,
+                attributeNames, System.nanoTime() - start);
+    }
+
+    // Posting lists keyed by the tag when attribute is null, else by the
+    // attribute's value
+    private Map<String, int[]> postings(String attribute) {
+        Map<String, Postings> building = new HashMap<>();
+        for (int n = 0; n < nodes.length; n++) {
+            String key = attribute == null ? nodes[n].getTagName() : nodes[n].getAttribute(attribute);
+            if (key != null) {
+                building.computeIfAbsent(key, k -> new Postings()).add(n);
+            }
+        }
+        Map<String, int[]> lists = new HashMap<>(building.size() * 2);
+        for (Map.Entry<String, Postings> entry : building.entrySet()) {
+            Postings postings = entry.getValue();
+            lists.put(entry.getKey(), Arrays.copyOf(postings.ordinals, postings.size));
+        }
+        return lists;
+    }
+
+    private static final class Postings {
+        int[] ordinals = new int[4];
+        int size;
+
+        void add(int ordinal) {
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+            }
+            ordinals[size++] = ordinal;
+        }
+    }
+
+    private void report(String name, Map<String, int[]> index, long start) {
+        long postings = 0;
+        for (int[] list : index.values()) {
+            postings += list.length;
+        }
+        // Array header and map entry per key; the key strings belong to the model
+        long bytes = 4 * postings + (16 + 48) * (long) index.size();
+        report.add(String.format("%s: %d keys, %d postings, %d KB, %.1f ms", name, index.size(), postings,
+                bytes / 1024, (System.nanoTime() - start) / 1e6));
+    }
+
+    /** Number of nodes. */
+    public int size() {
+        return nodes.length;
+    }
+
+    public XmlNode getNode(int ordinal) {
+        return nodes[ordinal];
+    }
+
+    /**
+     * Nodes with tag {@code tagName}, in document order.
+     *
+     * @throws IllegalStateException if the tag index was not built
+     */
+    public int[] byTag(String tagName) {
+        if (byTag == null) {
+            throw new IllegalStateException("No tag index");
+        }
+        return byTag.getOrDefault(tagName, NONE);
+    }
+
+    /**
+     * Nodes whose {@code dataName} is {@code dataName}, in document order.
+     *
+     * @throws IllegalStateException if the dataName index was not built
+     */
+    public int[] byDataName(String dataName) {
+        if (byDataName == null) {
+            throw new IllegalStateException("No dataName index");
+        }
+        return byDataName.getOrDefault(dataName, NONE);
+    }
+
+    /**
+     * Nodes whose attribute {@code name} is {@code value}, in document order.
+     *
+     * @throws IllegalStateException if {@code name} was not indexed
+     */
+    public int[] byAttribute(String name, String value) {
+        Map<String, int[]> index = byAttribute.get(name);
+        if (index == null) {
+            throw new IllegalStateException("No index on attribute " + name);
+        }
+        return index.getOrDefault(value, NONE);
+    }
+
+    /**
+     * Ordinals in both sorted lists.
+     */
+    public static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int size = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length;) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, size);
+    }
+
+    /**
+     * The nodes of {@code outer} whose subtree, themselves excluded, holds a
+     * node of {@code inner}.
+     */
+    public int[] containing(int[] outer, int[] inner) {
+        int[] out = new int[outer.length];
+        int size = 0;
+        for (int o : outer) {
+            int at = Arrays.binarySearch(inner, o + 1);
+            if (at < 0) {
+                at = -at - 1;
+            }
+            if (at < inner.length && inner[at] < subtreeEnd[o]) {
+                out[size++] = o;
+            }
+        }
+        return Arrays.copyOf(out, size);
+    }
+
+    public List<XmlNode> nodes(int[] ordinals) {
+        List<XmlNode> list = new ArrayList<>(ordinals.length);
+        for (int ordinal : ordinals) {
+            list.add(nodes[ordinal]);
+        }
+        return list;
+    }
+
+    /**
+     * One line per index built: keys, postings, estimated memory and build
+     * time, after a line for the node table all indexes share.
+     */
+    public List<String> getReport() {
+        return Collections.unmodifiableList(report);
+    }
+}
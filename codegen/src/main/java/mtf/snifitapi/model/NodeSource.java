@@ -0,0 +1,20 @@
+package mtf.snifitapi.model;
+
+/**
+ * Supplies definitions to a {@link SnifitModel} that is not parsed up front.
+ * Failures to read or parse are reported as unchecked exceptions, since they
+ * surface from {@link SnifitModel#getNodeById(String)}.
+ */
+public interface NodeSource {
+
+    /**
+     * The node declaring {@code id}, with its subtree, or null if no file
+     * declares it. Duplicate ids resolve as in a full parse.
+     */
+    XmlNode load(String id);
+
+    /**
+     * Parses everything, for callers that need the whole tree.
+     */
+    SnifitModel loadAll();
+}
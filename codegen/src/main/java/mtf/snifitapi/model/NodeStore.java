@@ -0,0 +1,423 @@
+package mtf.snifitapi.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Struct-of-arrays node storage for large definition corpora. Every node is an
+ * ordinal into a set of int columns (tag, parent, first child, next sibling,
+ * attribute range, id, refId, source file and line), and all strings are
+ * symbols in a per-store table. There is no object per node, so a store costs
+ * a handful of arrays regardless of how many nodes it holds, and the columns
+ * can live outside the Java heap.
+ * <p>
+ * Nodes are appended in document order through {@link #beginElement},
+ * {@link #attribute}, {@link #appendText} and {@link #endElement}. Reading is
+ * done by ordinal or through a {@link Cursor}; {@link SnifitModel} turns
+ * ordinals back into {@link XmlNode}s for callers that need the object tree.
+ * A store is not safe for concurrent writes.
+ */
+public final class NodeStore {
+
+    /** Ordinal meaning "no node" and symbol meaning "no value". */
+    public static final int NONE = -1;
+
+    private final boolean offHeap;
+
+    // Per node
+    private final IntColumn tag;
+    private final IntColumn parent;
+    private final IntColumn firstChild;
+    private final IntColumn nextSibling;
+    private final IntColumn attrStart;
+    private final IntColumn idSymbol;
+    private final IntColumn refIdSymbol;
+    private final IntColumn file;
+    private final IntColumn line;
+
+    // Per attribute, grouped by node in document order
+    private final IntColumn attrName;
+    private final IntColumn attrValue;
+
+    private final IntColumn roots;
+    private final List<String> symbols = new ArrayList<>();
+    private final Map<String, Integer> symbolIndex = new HashMap<>();
+    private final Map<String, Integer> idIndex = new HashMap<>();
+    private final Map<Integer, StringBuilder> text = new HashMap<>();
+
+    // Open elements while building, with the last child appended to each
+    private int[] open = new int[16];
+    private int[] lastChild = new int[16];
+    private int depth;
+
+    public NodeStore() {
+        this(false);
+    }
+
+    /**
+     * @param offHeap keep the columns in direct buffers instead of int arrays
+     */
+    public NodeStore(boolean offHeap) {
+        this.offHeap = offHeap;
+        int capacity = 1024;
+        tag = new IntColumn(offHeap, capacity);
+        parent = new IntColumn(offHeap, capacity);
+        firstChild = new IntColumn(offHeap, capacity);
+        nextSibling = new IntColumn(offHeap, capacity);
+        attrStart = new IntColumn(offHeap, capacity);
+        idSymbol = new IntColumn(offHeap, capacity);
+        refIdSymbol = new IntColumn(offHeap, capacity);
+        file = new IntColumn(offHeap, capacity);
+        line = new IntColumn(offHeap, capacity);
+        attrName = new IntColumn(offHeap, capacity);
+        attrValue = new IntColumn(offHeap, capacity);
+        roots = new IntColumn(false, 16);
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    // ---- building ----
+
+    /**
+     * Appends a node as the last child of the innermost open element, or as a
+     * new root, and opens it.
+     *
+     * @param fileIndex index from {@link XmlNode#sourceFileIndex(String)}, or -1
+     * @return the new node's ordinal
+     */
+    public int beginElement(String tagName, int fileIndex, int lineNumber) {
+        int node = tag.size();
+        int parentNode = depth > 0 ? open[depth - 1] : NONE;
+
+        tag.add(symbol(tagName));
+        parent.add(parentNode);
+        firstChild.add(NONE);
+        nextSibling.add(NONE);
+        attrStart.add(attrName.size());
+        idSymbol.add(NONE);
+        refIdSymbol.add(NONE);
+        file.add(fileIndex);
+        line.add(lineNumber);
+
+        if (parentNode == NONE) {
+            roots.add(node);
+        } else if (lastChild[depth - 1] == NONE) {
+            firstChild.set(parentNode, node);
+        } else {
+            nextSibling.set(lastChild[depth - 1], node);
+        }
+        if (depth > 0) {
+            lastChild[depth - 1] = node;
+        }
+
+        if (depth == open.length) {
+            open = Arrays.copyOf(open, depth * 2);
+            lastChild = Arrays.copyOf(lastChild, depth * 2);
+        }
+        open[depth] = node;
+        lastChild[depth] = NONE;
+        depth++;
+        return node;
+    }
+
+    /**
+     * Adds an attribute to the element opened last. Must come before any child
+     * of that element. {@code id} and {@code refId} are kept apart from the
+     * other attributes, as on {@link XmlNode}, and ids are indexed with the last
+     * declaration winning.
+     */
+    public void attribute(String name, String value) {
+        int node = currentNode();
+        if (node != tag.size() - 1) {
+            throw new IllegalStateException("Attributes must precede the children of node " + node);
+        }
+
+        if ("id".equals(name)) {
+            idSymbol.set(node, symbol(value));
+            idIndex.put(value, node);
+        } else if ("refId".equals(name)) {
+            refIdSymbol.set(node, symbol(value));
+        } else {
+            int nameSymbol = symbol(name);
+            for (int a = attrStart.get(node); a < attrName.size(); a++) {
+                if (attrName.get(a) == nameSymbol) {
+                    attrValue.set(a, symbol(value));
+                    return;
+                }
+            }
+            attrName.add(nameSymbol);
+            attrValue.add(symbol(value));
+        }
+    }
+
+    public void appendText(String content) {
+        text.computeIfAbsent(currentNode(), n -> new StringBuilder()).append(content);
+    }
+
+    public void endElement() {
+        if (depth == 0) {
+            throw new IllegalStateException("No open element");
+        }
+        depth--;
+    }
+
+    /**
+     * Innermost open element, or {@link #NONE}.
+     */
+    public int currentNode() {
+        return depth > 0 ? open[depth - 1] : NONE;
+    }
+
+    /**
+     * Appends every node of {@code other} after the nodes of this store, as if
+     * its documents had been parsed into this one. Ids in {@code other} shadow
+     * equal ids already here. Used to merge stores built per file on separate
+     * threads.
+     */
+    public void append(NodeStore other) {
+        if (depth != 0 || other.depth != 0) {
+            throw new IllegalStateException("Cannot append while elements are open");
+        }
+        int nodeBase = tag.size();
+        int attrBase = attrName.size();
+        int[] symbolMap = new int[other.symbols.size()];
+        for (int s = 0; s < symbolMap.length; s++) {
+            symbolMap[s] = symbol(other.symbols.get(s));
+        }
+
+        for (int n = 0; n < other.size(); n++) {
+            tag.add(symbolMap[other.tag.get(n)]);
+            parent.add(shift(other.parent.get(n), nodeBase));
+            firstChild.add(shift(other.firstChild.get(n), nodeBase));
+            nextSibling.add(shift(other.nextSibling.get(n), nodeBase));
+            attrStart.add(other.attrStart.get(n) + attrBase);
+            int id = other.idSymbol.get(n);
+            idSymbol.add(id == NONE ? NONE : symbolMap[id]);
+            int refId = other.refIdSymbol.get(n);
+            refIdSymbol.add(refId == NONE ? NONE : symbolMap[refId]);
+            file.add(other.file.get(n));
+            line.add(other.line.get(n));
+        }
+        for (int a = 0; a < other.attrName.size(); a++) {
+            attrName.add(symbolMap[other.attrName.get(a)]);
+            attrValue.add(symbolMap[other.attrValue.get(a)]);
+        }
+        for (int r = 0; r < other.roots.size(); r++) {
+            roots.add(other.roots.get(r) + nodeBase);
+        }
+        for (Map.Entry<String, Integer> entry : other.idIndex.entrySet()) {
+            idIndex.put(entry.getKey(), entry.getValue() + nodeBase);
+        }
+        for (Map.Entry<Integer, StringBuilder> entry : other.text.entrySet()) {
+            text.put(entry.getKey() + nodeBase, new StringBuilder(entry.getValue()));
+        }
+    }
+
+    private static int shift(int node, int base) {
+        return node == NONE ? NONE : node + base;
+    }
+
+    private int symbol(String s) {
+        Integer symbol = symbolIndex.get(s);
+        if (symbol == null) {
+            symbol = symbols.size();
+            symbols.add(s);
+            symbolIndex.put(s, symbol);
+        }
+        return symbol;
+    }
+
+    // ---- reading ----
+
+    public int size() {
+        return tag.size();
+    }
+
+    public int getRootCount() {
+        return roots.size();
+    }
+
+    public int getRoot(int index) {
+        return roots.get(index);
+    }
+
+    /**
+     * Ordinal of the node declaring {@code id}, or {@link #NONE}.
+     */
+    public int getNodeById(String id) {
+        Integer node = idIndex.get(id);
+        return node != null ? node : NONE;
+    }
+
+    /**
+     * Every indexed id with its node ordinal.
+     */
+    public Map<String, Integer> getIdIndex() {
+        return Collections.unmodifiableMap(idIndex);
+    }
+
+    public String getTagName(int node) {
+        return symbols.get(tag.get(node));
+    }
+
+    public int getParent(int node) {
+        return parent.get(node);
+    }
+
+    public int getFirstChild(int node) {
+        return firstChild.get(node);
+    }
+
+    public int getNextSibling(int node) {
+        return nextSibling.get(node);
+    }
+
+    public String getId(int node) {
+        return symbolOrNull(idSymbol.get(node));
+    }
+
+    public String getRefId(int node) {
+        return symbolOrNull(refIdSymbol.get(node));
+    }
+
+    public String getSourceFile(int node) {
+        return XmlNode.sourceFileName(file.get(node));
+    }
+
+    public int getSourceFileIndex(int node) {
+        return file.get(node);
+    }
+
+    public int getLineNumber(int node) {
+        return line.get(node);
+    }
+
+    /**
+     * First attribute slot of {@code node}; slots up to
+     * {@link #getAttributeEnd(int)} belong to it.
+     */
+    public int getAttributeStart(int node) {
+        return attrStart.get(node);
+    }
+
+    public int getAttributeEnd(int node) {
+        return node + 1 < tag.size() ? attrStart.get(node + 1) : attrName.size();
+    }
+
+    public String getAttributeName(int slot) {
+        return symbols.get(attrName.get(slot));
+    }
+
+    public String getAttributeValue(int slot) {
+        return symbols.get(attrValue.get(slot));
+    }
+
+    public String getAttribute(int node, String name) {
+        Integer nameSymbol = symbolIndex.get(name);
+        if (nameSymbol == null) {
+            return null;
+        }
+        for (int a = getAttributeStart(node), end = getAttributeEnd(node); a < end; a++) {
+            if (attrName.get(a) == nameSymbol) {
+                return symbols.get(attrValue.get(a));
+            }
+        }
+        return null;
+    }
+
+    public String getTextContent(int node) {
+        StringBuilder content = text.get(node);
+        return content != null ? content.toString() : "";
+    }
+
+    private String symbolOrNull(int symbol) {
+        return symbol == NONE ? null : symbols.get(symbol);
+    }
+
+    /**
+     * Approximate bytes held by the columns (on or off heap) and the symbol
+     * table.
+     */
+    public long estimateBytes() {
+        long bytes = tag.capacityBytes() + parent.capacityBytes() + firstChild.capacityBytes()
+                + nextSibling.capacityBytes() + attrStart.capacityBytes() + idSymbol.capacityBytes()
+                + refIdSymbol.capacityBytes() + file.capacityBytes() + line.capacityBytes()
+                + attrName.capacityBytes() + attrValue.capacityBytes() + roots.capacityBytes();
+        for (String symbol : symbols) {
+            // String, its array, and the list and map entries pointing at it
+            bytes += 24 + 16 + symbol.length() + 48;
+        }
+        return bytes + 48L * idIndex.size();
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Flyweight positioned on one node at a time. Navigation methods return
+     * false and leave the cursor in place when there is nowhere to go.
+     */
+    public final class Cursor {
+        private int node = NONE;
+
+        public int getNode() {
+            return node;
+        }
+
+        public Cursor moveTo(int node) {
+            this.node = node;
+            return this;
+        }
+
+        public boolean toFirstChild() {
+            return move(getFirstChild(node));
+        }
+
+        public boolean toNextSibling() {
+            return move(getNextSibling(node));
+        }
+
+        public boolean toParent() {
+            return move(getParent(node));
+        }
+
+        private boolean move(int target) {
+            if (target == NONE) {
+                return false;
+            }
+            node = target;
+            return true;
+        }
+
+        public String getTagName() {
+            return NodeStore.this.getTagName(node);
+        }
+
+        public String getId() {
+            return NodeStore.this.getId(node);
+        }
+
+        public String getRefId() {
+            return NodeStore.this.getRefId(node);
+        }
+
+        public String getAttribute(String name) {
+            return NodeStore.this.getAttribute(node, name);
+        }
+
+        public String getSourceFile() {
+            return NodeStore.this.getSourceFile(node);
+        }
+
+        public int getLineNumber() {
+            return NodeStore.this.getLineNumber(node);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package mtf.snifitapi.model;
+
+/**
+ * Callbacks for {@link XmlNode#accept(NodeVisitor, Object)}, one per group of
+ * {@link TagKind}s the generators treat alike. Every method defaults to
+ * {@link #visitOther}.
+ *
+ * @param <P> what the caller passes down with each node
+ */
+public interface NodeVisitor<P> {
+
+    /** {@code record} and {@code fCSRecord}. */
+    default void visitRecord(XmlNode node, P arg) {
+        visitOther(node, arg);
+    }
+
+    /** {@code fCSList} and {@code iCollF}. */
+    default void visitList(XmlNode node, P arg) {
+        visitOther(node, arg);
+    }
+
+    /**
+     * {@code fCSString}, {@code fHostString}, {@code fString},
+     * {@code fCSMessage} and {@code fCSDynXml}.
+     */
+    default void visitDataField(XmlNode node, P arg) {
+        visitOther(node, arg);
+    }
+
+    default void visitConstant(XmlNode node, P arg) {
+        visitOther(node, arg);
+    }
+
+    default void visitFixedLength(XmlNode node, P arg) {
+        visitOther(node, arg);
+    }
+
+    default void visitRefFmt(XmlNode node, P arg) {
+        visitOther(node, arg);
+    }
+
+    default void visitFmtDef(XmlNode node, P arg) {
+        visitOther(node, arg);
+    }
+
+    /** Every other kind. */
+    void visitOther(XmlNode node, P arg);
+}
@@ -0,0 +1,164 @@
+package mtf.snifitapi.model;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Depth-first walk over the children of nodes, kept on an explicit stack
+ * instead of the call stack, so nesting depth and reference chains cost heap
+ * rather than thread stack.
+ * <p>
+ * {@link #push} schedules the children of a container, each passed to a
+ * {@link Listener}; {@link #run()} walks until nothing is left. A listener
+ * may push more work from its callbacks, and since the stack is last in,
+ * first out, that work is done before the walk it interrupted resumes,
+ * exactly as a recursive call would be. When a followed reference is
+ * entered, the children of the definition it resolves to are walked in its
+ * place, subject to the {@link RefPolicy}; a reference that cannot be
+ * followed is passed to {@link Listener#skip} instead.
+ * <p>
+ * Linking leaves the reference that closes a cycle unresolved. The walker
+ * looks such a reference up by id, so a linked model is walked like an
+ * unlinked one, and reports it as cyclic under {@link RefPolicy#FOLLOW}.
+ */
+public final class NodeWalker {
+
+    public enum RefPolicy {
+        /** Walk a reference's own children, which it normally has none of. */
+        NONE,
+        /** Walk the children of the definition the reference resolves to. */
+        FOLLOW,
+        /**
+         * As {@link #FOLLOW}, except for a reference to a definition whose
+         * children are already being walked since the last {@link #push},
+         * which would never end.
+         */
+        FOLLOW_ACYCLIC
+    }
+
+    /**
+     * Callbacks for the nodes of a walk.
+     */
+    public interface Listener {
+
+        /**
+         * Called for each child of {@code parent} in order.
+         *
+         * @return whether to walk the node's children, or for a followed
+         *         reference its definition's, before its next sibling
+         */
+        boolean enter(XmlNode node, XmlNode parent);
+
+        /**
+         * Called instead of {@link #enter} for a followed reference whose
+         * definition is not walked: {@code cyclic} if walking it would never
+         * end, otherwise because no definition has its refId.
+         */
+        default void skip(XmlNode reference, XmlNode parent, boolean cyclic) {
+        }
+
+        /**
+         * Called after the children of a node {@link #enter} chose to walk.
+         */
+        default void exit(XmlNode node) {
+        }
+    }
+
+    private static final class Frame {
+        // The node entered to get here, or null for a pushed container
+        final XmlNode owner;
+        final XmlNode container;
+        final List<XmlNode> children;
+        final Listener listener;
+        final Runnable done;
+        int next;
+
+        Frame(XmlNode owner, XmlNode container, Listener listener, Runnable done) {
+            this.owner = owner;
+            this.container = container;
+            this.children = container.getChildren();
+            this.listener = listener;
+            this.done = done;
+        }
+    }
+
+    private final SnifitModel model;
+    private final RefPolicy policy;
+    private final Set<TagKind> followed;
+    private final Deque<Frame> stack = new ArrayDeque<>();
+
+    /**
+     * @param model    resolves the references to follow
+     * @param followed kinds of reference to follow; others are walked as
+     *                 ordinary nodes
+     */
+    public NodeWalker(SnifitModel model, RefPolicy policy, Set<TagKind> followed) {
+        this.model = model;
+        this.policy = policy;
+        this.followed = followed.isEmpty() ? EnumSet.noneOf(TagKind.class) : EnumSet.copyOf(followed);
+    }
+
+    /**
+     * Schedules the children of {@code container} for {@code listener}, then
+     * {@code done}, which may be null, once they are all walked.
+     */
+    public void push(XmlNode container, Listener listener, Runnable done) {
+        stack.push(new Frame(null, container, listener, done));
+    }
+
+    /**
+     * Walks everything pushed, including what is pushed along the way.
+     */
+    public void run() {
+        while (!stack.isEmpty()) {
+            Frame frame = stack.peek();
+            if (frame.next == frame.children.size()) {
+                stack.pop();
+                if (frame.owner != null) {
+                    frame.listener.exit(frame.owner);
+                }
+                if (frame.done != null) {
+                    frame.done.run();
+                }
+                continue;
+            }
+            XmlNode node = frame.children.get(frame.next++);
+            XmlNode container = node;
+            if (policy != RefPolicy.NONE && followed.contains(node.getKind())) {
+                container = model.resolve(node);
+                boolean cyclic = false;
+                if (container == null && node.getRefId() != null) {
+                    container = model.getNodeById(node.getRefId());
+                    cyclic = container != null && policy == RefPolicy.FOLLOW;
+                }
+                if (container != null && policy == RefPolicy.FOLLOW_ACYCLIC && walking(container)) {
+                    cyclic = true;
+                }
+                if (container == null || cyclic) {
+                    frame.listener.skip(node, frame.container, cyclic);
+                    continue;
+                }
+            }
+            if (frame.listener.enter(node, frame.container)) {
+                stack.push(new Frame(node, container, frame.listener, null));
+            }
+        }
+    }
+
+    // Whether the container's children are on the stack since the last push;
+    // a pushed walk, such as a nested class, may go through them again
+    private boolean walking(XmlNode container) {
+        for (Frame frame : stack) {
+            if (frame.container == container) {
+                return true;
+            }
+            if (frame.owner == null) {
+                return false;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,187 @@
+package mtf.snifitapi.model;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A thin, changeable layer over a shared {@link FrozenModel}. Files parsed
+ * into the overlay go to the layer only, and ids the layer declares shadow
+ * the base's, so a variant that overrides a few definitions costs the parse
+ * time and memory of those overrides, while any number of variants share one
+ * copy of the rest.
+ * <p>
+ * {@link #getNodeById(String)} and {@link #resolve(XmlNode)} look in the layer
+ * first and fall through to the base, also for references made by base
+ * nodes. {@link #getRootNodes()} and {@link #getIdToNodeMap()} are read-only
+ * views of the base followed by the layer; a walk of the roots still meets
+ * shadowed base definitions. The setters, {@link #replaceSourceFile} and
+ * {@link #link()} work on the layer, and linking never changes the base.
+ */
+public class OverlayModel extends SnifitModel {
+
+    private final FrozenModel base;
+    private final List<XmlNode> roots = new AbstractList<XmlNode>() {
+        @Override
+        public XmlNode get(int index) {
+            List<XmlNode> baseRoots = base.getRootNodes();
+            return index < baseRoots.size() ? baseRoots.get(index) : getLayerRootNodes().get(index - baseRoots.size());
+        }
+
+        @Override
+        public int size() {
+            return base.getRootNodes().size() + getLayerRootNodes().size();
+        }
+    };
+    private final Map<String, XmlNode> ids = new MergedIds();
+
+    public OverlayModel(FrozenModel base) {
+        this.base = base;
+    }
+
+    public FrozenModel getBase() {
+        return base;
+    }
+
+    /** The roots parsed into this layer, without the base's. */
+    public List<XmlNode> getLayerRootNodes() {
+        return super.getRootNodes();
+    }
+
+    /** The ids declared by this layer, without the base's. */
+    public Map<String, XmlNode> getLayerIdToNodeMap() {
+        return super.getIdToNodeMap();
+    }
+
+    @Override
+    public List<XmlNode> getRootNodes() {
+        return roots;
+    }
+
+    @Override
+    public Map<String, XmlNode> getIdToNodeMap() {
+        return ids;
+    }
+
+    @Override
+    public XmlNode getNodeById(String id) {
+        XmlNode node = getLayerIdToNodeMap().get(id);
+        return node != null ? node : base.getNodeById(id);
+    }
+
+    @Override
+    public XmlNode resolve(XmlNode reference) {
+        String refId = reference.getRefId();
+        if (refId == null) {
+            return null;
+        }
+        XmlNode own = getLayerIdToNodeMap().get(refId);
+        if (own != null) {
+            return own;
+        }
+        if (reference.isFrozen()) {
+            // A base reference to an id the layer does not shadow
+            return base.resolve(reference);
+        }
+        return getLinkReport() != null ? reference.getResolvedRef() : base.getNodeById(refId);
+    }
+
+    /**
+     * Copies the base and the layer into one frozen model, shadowed ids
+     * resolving to the layer.
+     */
+    @Override
+    public FrozenModel freeze(boolean tags, boolean dataNames, Collection<String> attributeNames) {
+        SnifitModel flat = new SnifitModel();
+        flat.setRootNodes(new ArrayList<>(roots));
+        flat.setIdToNodeMap(new HashMap<>(ids));
+        return flat.freeze(tags, dataNames, attributeNames);
+    }
+
+    @Override
+    public XmlNode materialize(int node) {
+        throw new UnsupportedOperationException("An overlay model has no node store");
+    }
+
+    // The layer's ids, then the base's that the layer does not shadow
+    private final class MergedIds extends AbstractMap<String, XmlNode> {
+
+        @Override
+        public XmlNode get(Object key) {
+            XmlNode node = getLayerIdToNodeMap().get(key);
+            return node != null ? node : base.getIdToNodeMap().get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return getLayerIdToNodeMap().containsKey(key) || base.getIdToNodeMap().containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            int size = base.getIdToNodeMap().size();
+            for (String id : getLayerIdToNodeMap().keySet()) {
+                if (!base.getIdToNodeMap().containsKey(id)) {
+                    size++;
+                }
+            }
+            return size;
+        }
+
+        @Override
+        public Set<Map.Entry<String, XmlNode>> entrySet() {
+            return new AbstractSet<Map.Entry<String, XmlNode>>() {
+                @Override
+                public int size() {
+                    return MergedIds.this.size();
+                }
+
+                @Override
+                public Iterator<Map.Entry<String, XmlNode>> iterator() {
+                    Iterator<Map.Entry<String, XmlNode>> layer = getLayerIdToNodeMap().entrySet().iterator();
+                    Iterator<Map.Entry<String, XmlNode>> below = base.getIdToNodeMap().entrySet().iterator();
+                    return new Iterator<Map.Entry<String, XmlNode>>() {
+                        private Map.Entry<String, XmlNode> next = advance();
+
+                        private Map.Entry<String, XmlNode> advance() {
+                            if (layer.hasNext()) {
+                                Map.Entry<String, XmlNode> entry = layer.next();
+                                return new SimpleImmutableEntry<>(entry);
+                            }
+                            while (below.hasNext()) {
+                                Map.Entry<String, XmlNode> entry = below.next();
+                                if (!getLayerIdToNodeMap().containsKey(entry.getKey())) {
+                                    return entry;
+                                }
+                            }
+                            return null;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return next != null;
+                        }
+
+                        @Override
+                        public Map.Entry<String, XmlNode> next() {
+                            if (next == null) {
+                                throw new NoSuchElementException();
+                            }
+                            Map.Entry<String, XmlNode> entry = next;
+                            next = advance();
+                            return entry;
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
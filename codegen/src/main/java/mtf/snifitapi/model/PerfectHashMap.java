@@ -0,0 +1,234 @@
+package mtf.snifitapi.model;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable string-keyed map over a minimal perfect hash: n keys sit in an
+ * array of exactly n slots, and a lookup mixes the key's cached hash code,
+ * reads one seed for the key's bucket and compares one key, usually the
+ * same instance. Built with hash and displace:
+ * buckets are placed largest first, each trying seeds until all its keys
+ * land in free slots, and single-key buckets take a free slot directly.
+ * <p>
+ * Nothing changes after construction, so any number of threads can read it
+ * once it is safely published.
+ */
+final class PerfectHashMap<V> extends AbstractMap<String, V> {
+
+    // Average keys per bucket; smaller means more seeds to store but fewer
+    // attempts to place each bucket
+    private static final int BUCKET_SIZE = 3;
+    private static final int MAX_SEED = 1 << 20;
+
+    private final String[] keys;
+    private final Object[] values;
+    // Per bucket: the seed for its keys, or -(slot + 1) for a single key
+    private final int[] seeds;
+    private final long salt;
+    // Keys whose hash code an earlier key already has, usually null
+    private final Map<String, V> overflow;
+
+    PerfectHashMap(Map<String, ? extends V> map) {
+        // Keys are hashed from String.hashCode(), which strings cache, so keys
+        // sharing a hash code can never be told apart by a seed; all but the
+        // first of those go to a plain map instead
+        Map<Integer, String> byHashCode = new HashMap<>(map.size() * 2);
+        List<String> sourceKeys = new ArrayList<>(map.size());
+        Map<String, V> overflow = new HashMap<>();
+        for (Map.Entry<String, ? extends V> entry : map.entrySet()) {
+            if (byHashCode.putIfAbsent(entry.getKey().hashCode(), entry.getKey()) == null) {
+                sourceKeys.add(entry.getKey());
+            } else {
+                overflow.put(entry.getKey(), entry.getValue());
+            }
+        }
+        int n = sourceKeys.size();
+
+        long salt = 0;
+        int[] placed = place(sourceKeys, n, salt);
+        while (placed == null) {
+            placed = place(sourceKeys, n, ++salt);
+        }
+        this.salt = salt;
+        this.seeds = placed;
+        this.keys = new String[n];
+        this.values = new Object[n];
+        this.overflow = overflow.isEmpty() ? null : overflow;
+        for (String key : sourceKeys) {
+            int slot = slot(key);
+            keys[slot] = key;
+            values[slot] = map.get(key);
+        }
+    }
+
+    private static int[] place(List<String> keys, int n, long salt) {
+        int bucketCount = Math.max(1, (n + BUCKET_SIZE - 1) / BUCKET_SIZE);
+        int[] seeds = new int[bucketCount];
+        if (n == 0) {
+            return seeds;
+        }
+
+        long[] hashes = new long[n];
+        int[] bucketSizes = new int[bucketCount];
+        for (int k = 0; k < n; k++) {
+            hashes[k] = hash(keys.get(k), salt);
+            bucketSizes[bucket(hashes[k], bucketCount)]++;
+        }
+        // Keys grouped by bucket: bucketStart[b] .. bucketStart[b + 1]
+        int[] bucketStart = new int[bucketCount + 1];
+        for (int b = 0; b < bucketCount; b++) {
+            bucketStart[b + 1] = bucketStart[b] + bucketSizes[b];
+        }
+        int[] fill = Arrays.copyOf(bucketStart, bucketCount);
+        long[] grouped = new long[n];
+        for (int k = 0; k < n; k++) {
+            grouped[fill[bucket(hashes[k], bucketCount)]++] = hashes[k];
+        }
+
+        Integer[] order = new Integer[bucketCount];
+        for (int b = 0; b < bucketCount; b++) {
+            order[b] = b;
+        }
+        Arrays.sort(order, (a, b) -> bucketSizes[b] - bucketSizes[a]);
+
+        boolean[] taken = new boolean[n];
+        int[] slots = new int[BUCKET_SIZE * 8];
+        int nextFree = 0;
+        for (int b : order) {
+            int size = bucketSizes[b];
+            if (size == 0) {
+                break;
+            }
+            if (size == 1) {
+                while (taken[nextFree]) {
+                    nextFree++;
+                }
+                taken[nextFree] = true;
+                seeds[b] = -(nextFree + 1);
+                continue;
+            }
+            if (slots.length < size) {
+                slots = new int[size];
+            }
+            int seed = 1;
+            search: for (; seed < MAX_SEED; seed++) {
+                for (int i = 0; i < size; i++) {
+                    int slot = slot(grouped[bucketStart[b] + i], seed, n);
+                    if (taken[slot]) {
+                        for (int j = 0; j < i; j++) {
+                            taken[slots[j]] = false;
+                        }
+                        continue search;
+                    }
+                    taken[slot] = true;
+                    slots[i] = slot;
+                }
+                break;
+            }
+            if (seed == MAX_SEED) {
+                return null;
+            }
+            seeds[b] = seed;
+        }
+        return seeds;
+    }
+
+    private int slot(String key) {
+        long hash = hash(key, salt);
+        int seed = seeds[bucket(hash, seeds.length)];
+        return seed < 0 ? -seed - 1 : slot(hash, seed, keys.length);
+    }
+
+    private static int bucket(long hash, int bucketCount) {
+        return (int) ((hash >>> 32) % bucketCount);
+    }
+
+    private static int slot(long hash, int seed, int n) {
+        long h = hash + seed * 0x9E3779B97F4A7C15L;
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return (int) Math.floorMod(h ^ (h >>> 33), (long) n);
+    }
+
+    private static long hash(String key, long salt) {
+        long h = key.hashCode() + salt * 0x9E3779B97F4A7C15L;
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (!(key instanceof String) || keys.length == 0) {
+            return null;
+        }
+        int slot = slot((String) key);
+        if (keys[slot].equals(key)) {
+            return (V) values[slot];
+        }
+        return overflow != null ? overflow.get(key) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (!(key instanceof String) || keys.length == 0) {
+            return false;
+        }
+        return keys[slot((String) key)].equals(key) || (overflow != null && overflow.containsKey(key));
+    }
+
+    @Override
+    public int size() {
+        return keys.length + (overflow != null ? overflow.size() : 0);
+    }
+
+    /** Bytes held by the key, value and seed arrays, not by the keys and values. */
+    long estimateBytes() {
+        return 16 + 4L * keys.length + 16 + 4L * values.length + 16 + 4L * seeds.length;
+    }
+
+    @Override
+    public Set<Map.Entry<String, V>> entrySet() {
+        return new AbstractSet<Map.Entry<String, V>>() {
+            @Override
+            public int size() {
+                return PerfectHashMap.this.size();
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, V>> iterator() {
+                Iterator<Map.Entry<String, V>> rest = overflow != null ? overflow.entrySet().iterator()
+                        : Collections.emptyIterator();
+                return new Iterator<Map.Entry<String, V>>() {
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < keys.length || rest.hasNext();
+                    }
+
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public Map.Entry<String, V> next() {
+                        if (next < keys.length) {
+                            int slot = next++;
+                            return new SimpleImmutableEntry<>(keys[slot], (V) values[slot]);
+                        }
+                        Map.Entry<String, V> entry = rest.next();
+                        return new SimpleImmutableEntry<>(entry.getKey(), entry.getValue());
+                    }
+                };
+            }
+        };
+    }
+}
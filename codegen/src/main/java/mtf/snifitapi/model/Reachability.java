@@ -0,0 +1,268 @@
+package mtf.snifitapi.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a set of definitions needs: everything in their subtrees, and
+ * transitively everything their references point at, through
+ * {@code refFmt}, {@code refFormat}, {@code refOpSteps}, {@code refKColl},
+ * {@code refData} and an operation's {@code context} attribute.
+ * <p>
+ * Nodes are numbered in document order, so a subtree is a range of ordinals
+ * and a closure is a {@link BitSet} filled a range at a time; references are
+ * kept as arrays sorted by the ordinal of the referring node, so the ones
+ * inside a newly reached range are found by binary search.
+ */
+public final class Reachability {
+
+    private final XmlNode[] nodes;
+    // Ordinal one past the last node of each node's subtree
+    private final int[] subtreeEnd;
+    // Number of ordinals that belong to the tree; id map nodes outside it follow
+    private final int treeSize;
+    private final Map<XmlNode, Integer> ordinals;
+    private final Map<String, XmlNode> ids;
+    // Edges sorted by source: edgeSource[e] refers to edgeTarget[e]
+    private final int[] edgeSource;
+    private final int[] edgeTarget;
+
+    private Reachability(XmlNode[] nodes, int[] subtreeEnd, int treeSize, Map<XmlNode, Integer> ordinals,
+            Map<String, XmlNode> ids, int[] edgeSource, int[] edgeTarget) {
+        this.nodes = nodes;
+        this.subtreeEnd = subtreeEnd;
+        this.treeSize = treeSize;
+        this.ordinals = ordinals;
+        this.ids = ids;
+        this.edgeSource = edgeSource;
+        this.edgeTarget = edgeTarget;
+    }
+
+    /**
+     * Numbers the nodes of the model and collects its reference edges.
+     */
+    public static Reachability build(SnifitModel model) {
+        Map<String, XmlNode> ids = model.getIdToNodeMap();
+        List<XmlNode> order = new ArrayList<>();
+        Map<XmlNode, Integer> ordinals = new IdentityHashMap<>();
+        int[] ends = new int[1024];
+
+        List<XmlNode> roots = new ArrayList<>(model.getRootNodes());
+        int treeRoots = roots.size();
+        // Definitions only the id map holds, as on-demand models may have
+        roots.addAll(ids.values());
+        int treeSize = -1;
+        // Pre-order with an explicit path; next[i] is the next child of path[i]
+        // and ordinal[i] its ordinal
+        List<XmlNode> path = new ArrayList<>();
+        int[] next = new int[64];
+        int[] ordinal = new int[64];
+        for (int r = 0; r < roots.size(); r++) {
+            if (r == treeRoots) {
+                treeSize = order.size();
+            }
+            XmlNode root = roots.get(r);
+            if (ordinals.containsKey(root)) {
+                continue;
+            }
+            path.add(root);
+            next[0] = 0;
+            ordinal[0] = order.size();
+            ordinals.put(root, order.size());
+            order.add(root);
+            while (!path.isEmpty()) {
+                int top = path.size() - 1;
+                List<XmlNode> children = path.get(top).getChildren();
+                if (next[top] < children.size()) {
+                    XmlNode child = children.get(next[top]++);
+                    if (path.size() == next.length) {
+                        next = Arrays.copyOf(next, next.length * 2);
+                        ordinal = Arrays.copyOf(ordinal, ordinal.length * 2);
+                    }
+                    next[path.size()] = 0;
+                    ordinal[path.size()] = order.size();
+                    path.add(child);
+                    ordinals.put(child, order.size());
+                    order.add(child);
+                } else {
+                    path.remove(top);
+                    if (ordinal[top] >= ends.length) {
+                        ends = Arrays.copyOf(ends, Math.max(ends.length * 2, ordinal[top] + 1));
+                    }
+                    ends[ordinal[top]] = order.size();
+                }
+            }
+        }
+        if (treeSize < 0) {
+            treeSize = order.size();
+        }
+
+        // Sources come out in document order, so the edges are already sorted
+        int[] sources = new int[256];
+        int[] targets = new int[256];
+        int edges = 0;
+        for (int o = 0; o < order.size(); o++) {
+            XmlNode node = order.get(o);
+            for (int a = 0; a < 2; a++) {
+                String id = a == 0 ? node.getRefId() : contextOf(node);
+                XmlNode target = id != null ? ids.get(id) : null;
+                Integer t = target != null ? ordinals.get(target) : null;
+                if (t != null) {
+                    if (edges == sources.length) {
+                        sources = Arrays.copyOf(sources, edges * 2);
+                        targets = Arrays.copyOf(targets, edges * 2);
+                    }
+                    sources[edges] = o;
+                    targets[edges] = t;
+                    edges++;
+                }
+            }
+        }
+        return new Reachability(order.toArray(new XmlNode[0]), Arrays.copyOf(ends, order.size()), treeSize,
+                ordinals, ids, Arrays.copyOf(sources, edges), Arrays.copyOf(targets, edges));
+    }
+
+    private static String contextOf(XmlNode node) {
+        return node.getKind() == TagKind.OPERATION ? node.getAttribute("context") : null;
+    }
+
+    /** Number of nodes. */
+    public int size() {
+        return nodes.length;
+    }
+
+    public XmlNode getNode(int ordinal) {
+        return nodes[ordinal];
+    }
+
+    /**
+     * Ordinals of everything the definitions of {@code rootIds} need, their
+     * own included.
+     *
+     * @throws IllegalArgumentException if an id is not declared
+     */
+    public BitSet closure(Collection<String> rootIds) {
+        BitSet reached = new BitSet(nodes.length);
+        int[] queue = new int[16];
+        int tail = 0;
+        for (String id : rootIds) {
+            XmlNode node = ids.get(id);
+            if (node == null) {
+                throw new IllegalArgumentException("Unknown id " + id);
+            }
+            queue = enqueue(queue, tail++, ordinals.get(node));
+        }
+        for (int head = 0; head < tail; head++) {
+            int from = queue[head];
+            if (reached.get(from)) {
+                continue;
+            }
+            int to = subtreeEnd[from];
+            // A reached node has its whole subtree reached, so parts reached
+            // before are skipped whole, along with their edges
+            int o = from;
+            while (o < to) {
+                if (reached.get(o)) {
+                    o = subtreeEnd[o];
+                    continue;
+                }
+                int end = reached.nextSetBit(o);
+                end = end < 0 || end > to ? to : end;
+                reached.set(o, end);
+                for (int e = firstEdge(o); e < edgeSource.length && edgeSource[e] < end; e++) {
+                    if (!reached.get(edgeTarget[e])) {
+                        queue = enqueue(queue, tail++, edgeTarget[e]);
+                    }
+                }
+                o = end;
+            }
+        }
+        return reached;
+    }
+
+    private static int[] enqueue(int[] queue, int index, int ordinal) {
+        if (index == queue.length) {
+            queue = Arrays.copyOf(queue, queue.length * 2);
+        }
+        queue[index] = ordinal;
+        return queue;
+    }
+
+    // Index of the first edge whose source is at or after ordinal
+    private int firstEdge(int ordinal) {
+        int at = Arrays.binarySearch(edgeSource, ordinal);
+        if (at < 0) {
+            return -at - 1;
+        }
+        while (at > 0 && edgeSource[at - 1] == ordinal) {
+            at--;
+        }
+        return at;
+    }
+
+    public List<XmlNode> nodes(BitSet closure) {
+        List<XmlNode> list = new ArrayList<>(closure.cardinality());
+        for (int o = closure.nextSetBit(0); o >= 0; o = closure.nextSetBit(o + 1)) {
+            list.add(nodes[o]);
+        }
+        return list;
+    }
+
+    /**
+     * A frozen model of just the {@code closure}. The nodes keep their
+     * document order; ancestors outside the closure, such as a file's root
+     * element, are kept as containers holding only what was reached, but
+     * their ids are left out of the id map.
+     */
+    public FrozenModel prune(BitSet closure) {
+        long start = System.nanoTime();
+        // Keep what was reached and every ancestor of it
+        BitSet kept = (BitSet) closure.clone();
+        int[] parent = new int[nodes.length];
+        Arrays.fill(parent, -1);
+        for (int o = 0; o < nodes.length; o++) {
+            for (int c = o + 1; c < subtreeEnd[o]; c = subtreeEnd[c]) {
+                parent[c] = o;
+            }
+        }
+        for (int o = closure.nextSetBit(0); o >= 0; o = closure.nextSetBit(o + 1)) {
+            for (int p = parent[o]; p >= 0 && !kept.get(p); p = parent[p]) {
+                kept.set(p);
+            }
+        }
+
+        XmlNode[] copies = new XmlNode[nodes.length];
+        List<XmlNode> roots = new ArrayList<>();
+        for (int o = kept.nextSetBit(0); o >= 0; o = kept.nextSetBit(o + 1)) {
+            copies[o] = nodes[o].copyWithoutChildren();
+            if (parent[o] >= 0) {
+                // Pre-order, so children are added in document order and
+                // decorators bind as they did in the original
+                copies[parent[o]].addChild(copies[o]);
+            } else if (o < treeSize) {
+                roots.add(copies[o]);
+            }
+        }
+        Map<String, XmlNode> prunedIds = new HashMap<>();
+        for (Map.Entry<String, XmlNode> entry : ids.entrySet()) {
+            int o = ordinals.get(entry.getValue());
+            if (closure.get(o)) {
+                prunedIds.put(entry.getKey(), copies[o]);
+            }
+        }
+        return new FrozenModel(roots, prunedIds, false, false, List.of(), start);
+    }
+
+    /**
+     * Same as {@code prune(closure(rootIds))}.
+     */
+    public FrozenModel prune(Collection<String> rootIds) {
+        return prune(closure(rootIds));
+    }
+}
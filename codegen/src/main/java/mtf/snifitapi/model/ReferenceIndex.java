@@ -0,0 +1,199 @@
+package mtf.snifitapi.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reverse references of a model: for each id, the reference nodes naming it,
+ * and for each definition, the definitions that depend on it directly or
+ * through other definitions.
+ * <p>
+ * Definitions are the nodes the id map resolves to, numbered in document
+ * order. A definition depends on another if it contains a reference to it or
+ * contains it, so a change to a field declared inside a kColl reaches the
+ * kColl and everything referring to the kColl. Dependents are computed with
+ * bitsets over the definition ordinals, walking a compact array of reverse
+ * edges, so a query touches only what it finds.
+ */
+public final class ReferenceIndex {
+
+    private final XmlNode[] definitions;
+    private final Map<String, Integer> ordinals;
+    private final Map<String, List<XmlNode>> referrers;
+    // Reverse edges in compressed rows: the definitions that depend directly
+    // on definition d are dependents[dependentStart[d] .. dependentStart[d + 1])
+    private final int[] dependentStart;
+    private final int[] dependents;
+
+    private ReferenceIndex(XmlNode[] definitions, Map<String, Integer> ordinals,
+            Map<String, List<XmlNode>> referrers, int[] dependentStart, int[] dependents) {
+        this.definitions = definitions;
+        this.ordinals = ordinals;
+        this.referrers = referrers;
+        this.dependentStart = dependentStart;
+        this.dependents = dependents;
+    }
+
+    /**
+     * Indexes the whole model. Use {@link SnifitModel#getReferenceIndex()} to
+     * share one index until the model changes.
+     */
+    public static ReferenceIndex build(SnifitModel model) {
+        Map<String, XmlNode> ids = model.getIdToNodeMap();
+        List<XmlNode> definitions = new ArrayList<>(ids.size());
+        Map<XmlNode, Integer> ordinalByNode = new IdentityHashMap<>(ids.size());
+        Map<String, List<XmlNode>> referrers = new HashMap<>();
+        // Edges as pairs (definition, dependent), collected in one walk and
+        // sorted into rows below
+        int[] edges = new int[256];
+        int edgeCount = 0;
+
+        // Pre-order walk carrying the nearest enclosing definition, -1 if none
+        Deque<XmlNode> nodes = new ArrayDeque<>();
+        Deque<Integer> enclosing = new ArrayDeque<>();
+        List<XmlNode> roots = model.getRootNodes();
+        for (int r = roots.size() - 1; r >= 0; r--) {
+            nodes.push(roots.get(r));
+            enclosing.push(-1);
+        }
+        List<XmlNode> references = new ArrayList<>();
+        List<Integer> referenceOwners = new ArrayList<>();
+        while (!nodes.isEmpty()) {
+            XmlNode node = nodes.pop();
+            int owner = enclosing.pop();
+            if (node.getId() != null && ids.get(node.getId()) == node) {
+                int ordinal = definitions.size();
+                definitions.add(node);
+                ordinalByNode.put(node, ordinal);
+                if (owner >= 0) {
+                    edges = addEdge(edges, edgeCount++, ordinal, owner);
+                }
+                owner = ordinal;
+            }
+            if (node.getRefId() != null) {
+                referrers.computeIfAbsent(node.getRefId(), k -> new ArrayList<>()).add(node);
+                references.add(node);
+                referenceOwners.add(owner);
+            }
+            List<XmlNode> children = node.getChildren();
+            for (int c = children.size() - 1; c >= 0; c--) {
+                nodes.push(children.get(c));
+                enclosing.push(owner);
+            }
+        }
+
+        // References are resolved once every definition has an ordinal, since
+        // they may point forward
+        for (int i = 0; i < references.size(); i++) {
+            int owner = referenceOwners.get(i);
+            XmlNode target = ids.get(references.get(i).getRefId());
+            if (owner >= 0 && target != null) {
+                edges = addEdge(edges, edgeCount++, ordinalByNode.get(target), owner);
+            }
+        }
+
+        int size = definitions.size();
+        int[] start = new int[size + 1];
+        for (int e = 0; e < edgeCount; e++) {
+            start[edges[2 * e] + 1]++;
+        }
+        for (int d = 0; d < size; d++) {
+            start[d + 1] += start[d];
+        }
+        int[] fill = Arrays.copyOf(start, size);
+        int[] dependents = new int[edgeCount];
+        for (int e = 0; e < edgeCount; e++) {
+            dependents[fill[edges[2 * e]]++] = edges[2 * e + 1];
+        }
+
+        Map<String, Integer> ordinals = new HashMap<>(size * 2);
+        for (int d = 0; d < size; d++) {
+            ordinals.put(definitions.get(d).getId(), d);
+        }
+        return new ReferenceIndex(definitions.toArray(new XmlNode[0]), ordinals, referrers, start, dependents);
+    }
+
+    private static int[] addEdge(int[] edges, int index, int definition, int dependent) {
+        if (2 * index + 1 >= edges.length) {
+            edges = Arrays.copyOf(edges, edges.length * 2);
+        }
+        edges[2 * index] = definition;
+        edges[2 * index + 1] = dependent;
+        return edges;
+    }
+
+    /** Number of definitions. */
+    public int size() {
+        return definitions.length;
+    }
+
+    /** Ordinal of the definition of {@code id}, or -1 if it is not declared. */
+    public int ordinalOf(String id) {
+        Integer ordinal = ordinals.get(id);
+        return ordinal != null ? ordinal : -1;
+    }
+
+    public XmlNode getDefinition(int ordinal) {
+        return definitions[ordinal];
+    }
+
+    /**
+     * Reference nodes whose refId is {@code id}, in document order, whether or
+     * not the id is declared.
+     */
+    public List<XmlNode> getReferrers(String id) {
+        List<XmlNode> nodes = referrers.get(id);
+        return nodes != null ? Collections.unmodifiableList(nodes) : Collections.emptyList();
+    }
+
+    /**
+     * Ordinals of the definitions that depend on definition {@code ordinal},
+     * directly or transitively, not counting itself unless it is on a cycle.
+     */
+    public BitSet dependentsOf(int ordinal) {
+        BitSet found = new BitSet(definitions.length);
+        int[] queue = new int[16];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = ordinal;
+        while (head < tail) {
+            int d = queue[head++];
+            for (int e = dependentStart[d], end = dependentStart[d + 1]; e < end; e++) {
+                int dependent = dependents[e];
+                if (!found.get(dependent)) {
+                    found.set(dependent);
+                    if (tail == queue.length) {
+                        queue = Arrays.copyOf(queue, queue.length * 2);
+                    }
+                    queue[tail++] = dependent;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * The definitions that depend on {@code id}, in document order; empty if
+     * it is not declared.
+     */
+    public List<XmlNode> getDependents(String id) {
+        int ordinal = ordinalOf(id);
+        if (ordinal < 0) {
+            return Collections.emptyList();
+        }
+        BitSet found = dependentsOf(ordinal);
+        List<XmlNode> nodes = new ArrayList<>(found.cardinality());
+        for (int d = found.nextSetBit(0); d >= 0; d = found.nextSetBit(d + 1)) {
+            nodes.add(definitions[d]);
+        }
+        return nodes;
+    }
+}
@@ -1,218 +1,990 @@
 package mtf.snifitapi.model;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 public class SnifitModel {
     private List<XmlNode> rootNodes = new ArrayList<>();
     private Map<String, XmlNode> idToNodeMap = new HashMap<>();
 
+    // Set for models parsed into a flat store; XmlNodes are then created on
+    // first access and cached by ordinal
+    private final NodeStore store;
+    private XmlNode[] materialized;
+    private boolean treeMaterialized;
+
+    // Set for models loaded on demand; until the whole tree is needed,
+    // idToNodeMap only caches what has been looked up
+    private final NodeSource source;
+
+    // Derived from the tree and id map; a new one must be dropped in
+    // invalidateDerived() too.
+    // Null until link() runs and again once the tree or id map changes
+    private LinkReport linkReport;
+    // Built on first use, dropped when the tree or id map changes
+    private ReferenceIndex referenceIndex;
+    private DataPathTrie dataPathTrie;
+    // Built on first use, dropped when the tree or id map changes and
+    // updated by replaceSourceFile
+    private StructuralHashes structuralHashes;
+    // Built on request, dropped when the tree or id map changes
+    private NodeIndex nodeIndex;
+
+    public SnifitModel() {
+        this.store = null;
+        this.source = null;
+    }
+
+    /**
+     * Creates a model backed by a flat node store. Parsers append to the store;
+     * {@link #getNodeById(String)} materializes only the requested subtree, and
+     * {@link #getRootNodes()} or {@link #getIdToNodeMap()} the whole tree.
+     */
+    public SnifitModel(NodeStore store) {
+        this.store = store;
+        this.source = null;
+    }
+
+    /**
+     * Creates a model whose definitions are parsed on first lookup.
+     * {@link #getNodeById(String)} loads just the requested definition;
+     * {@link #getRootNodes()}, {@link #getIdToNodeMap()} and the methods that
+     * change the model parse everything, after which lookups return nodes of
+     * the full tree rather than the ones loaded earlier.
+     */
+    public SnifitModel(NodeSource source) {
+        this.store = null;
+        this.source = source;
+    }
+
+    /**
+     * The flat store behind this model, or null for a plain XmlNode model.
+     */
+    public NodeStore getStore() {
+        return store;
+    }
+
+    /**
+     * Appends the nodes of {@code other} to the store behind this model, as
+     * parsers do for each file. If the whole tree was already materialized,
+     * the new roots and ids are added to it as well.
+     *
+     * @throws IllegalStateException if the model has no store
+     */
+    public void appendToStore(NodeStore other) {
+        if (store == null) {
+            throw new IllegalStateException("Not a store-backed model");
+        }
+        int firstRoot = store.getRootCount();
+        store.append(other);
+        invalidateDerived();
+        if (treeMaterialized) {
+            for (int r = firstRoot; r < store.getRootCount(); r++) {
+                rootNodes.add(materialize(store.getRoot(r)));
+            }
+            for (String id : other.getIdIndex().keySet()) {
+                idToNodeMap.put(id, materialize(store.getNodeById(id)));
+            }
+        }
+    }
+
     public void setRootNodes(List<XmlNode> rootNodes) {
+        materializeTree();
+        invalidateDerived();
         this.rootNodes = rootNodes;
     }
 
     public void addRootNodes(List<XmlNode> newRootNodes) {
+        materializeTree();
+        invalidateDerived();
         this.rootNodes.addAll(newRootNodes);
     }
 
     public List<XmlNode> getRootNodes() {
+        materializeTree();
         return rootNodes;
     }
 
     public void addIdToNodeMap(Map<String, XmlNode> newIdMap) {
+        materializeTree();
+        invalidateDerived();
         this.idToNodeMap.putAll(newIdMap);
     }
 
     public void setIdToNodeMap(Map<String, XmlNode> idToNodeMap) {
+        materializeTree();
+        invalidateDerived();
         this.idToNodeMap = idToNodeMap;
     }
 
     public Map<String, XmlNode> getIdToNodeMap() {
+        materializeTree();
         return idToNodeMap;
     }
 
+    /**
+     * Replaces the root nodes parsed from {@code sourceFile} with
+     * {@code newRoots}, keeping roots ordered by file name as the parsers do,
+     * and rebuilds the id index so a duplicate id still resolves to its last
+     * declaration. An empty list removes the file from the model.
+     *
+     * @return ids declared by the old or new roots that now resolve to a
+     *         different definition, compared by content and source location
+     */
+    public Set<String> replaceSourceFile(String sourceFile, List<XmlNode> newRoots) {
+        materializeTree();
+        Set<String> candidates = new HashSet<>();
+        for (XmlNode root : rootNodes) {
+            if (sourceFile.equals(root.getSourceFile())) {
+                collectIds(root, candidates);
+            }
+        }
+        for (XmlNode root : newRoots) {
+            collectIds(root, candidates);
+        }
+        Map<String, XmlNode> before = new HashMap<>();
+        for (String id : candidates) {
+            before.put(id, idToNodeMap.get(id));
+        }
+
+        List<XmlNode> roots = new ArrayList<>(rootNodes.size() + newRoots.size());
+        boolean inserted = false;
+        for (XmlNode root : rootNodes) {
+            String file = root.getSourceFile();
+            if (sourceFile.equals(file)) {
+                continue;
+            }
+            if (!inserted && file != null && file.compareTo(sourceFile) > 0) {
+                roots.addAll(newRoots);
+                inserted = true;
+            }
+            roots.add(root);
+        }
+        if (!inserted) {
+            roots.addAll(newRoots);
+        }
+        rootNodes = roots;
+
+        // Ids are indexed in document order, so a pre-order walk reproduces
+        // what the parsers built
+        Map<String, XmlNode> ids = new HashMap<>();
+        Deque<XmlNode> stack = new ArrayDeque<>();
+        for (int r = roots.size() - 1; r >= 0; r--) {
+            stack.push(roots.get(r));
+        }
+        while (!stack.isEmpty()) {
+            XmlNode node = stack.pop();
+            if (node.getId() != null) {
+                ids.put(node.getId(), node);
+            }
+            List<XmlNode> children = node.getChildren();
+            for (int c = children.size() - 1; c >= 0; c--) {
+                stack.push(children.get(c));
+            }
+        }
+        idToNodeMap = ids;
+
+        Set<String> changed = new HashSet<>();
+        for (String id : candidates) {
+            if (!sameDefinition(before.get(id), ids.get(id))) {
+                changed.add(id);
+            }
+        }
+        boolean linked = linkReport != null;
+        StructuralHashes previousHashes = structuralHashes;
+        invalidateDerived();
+        if (linked) {
+            link();
+        }
+        if (previousHashes != null) {
+            structuralHashes = StructuralHashes.update(this, previousHashes);
+        }
+        return changed;
+    }
+
+    // Drops everything built from the tree or id map; every mutator calls this
+    private void invalidateDerived() {
+        linkReport = null;
+        referenceIndex = null;
+        dataPathTrie = null;
+        nodeIndex = null;
+        structuralHashes = null;
+    }
+
+    /**
+     * Same as {@link #freeze(boolean, boolean, Collection)} without secondary
+     * indexes.
+     */
+    public FrozenModel freeze() {
+        return freeze(false, false, Collections.emptyList());
+    }
+
+    /**
+     * Copies this model into an immutable {@link FrozenModel} that any number
+     * of threads can read without locking. The copy is linked and its
+     * reference index, data path trie, structural hashes and the chosen
+     * secondary indexes (see {@link #buildNodeIndex}) are built up front. This model stays as it was
+     * and may go on changing.
+     */
+    public FrozenModel freeze(boolean tags, boolean dataNames, Collection<String> attributeNames) {
+        long start = System.nanoTime();
+        materializeTree();
+        Map<XmlNode, XmlNode> copies = new IdentityHashMap<>();
+        List<XmlNode> roots = new ArrayList<>(rootNodes.size());
+        for (XmlNode root : rootNodes) {
+            roots.add(copyTree(root, copies));
+        }
+        Map<String, XmlNode> ids = new HashMap<>(idToNodeMap.size() * 2);
+        for (Map.Entry<String, XmlNode> entry : idToNodeMap.entrySet()) {
+            XmlNode copy = copies.get(entry.getValue());
+            ids.put(entry.getKey(), copy != null ? copy : copyTree(entry.getValue(), copies));
+        }
+        return new FrozenModel(roots, ids, tags, dataNames, attributeNames, start);
+    }
+
+    /**
+     * A frozen model of just what the definitions of {@code rootIds} reach
+     * through their children and references; see {@link Reachability}.
+     *
+     * @throws IllegalArgumentException if an id is not declared
+     */
+    public FrozenModel prune(Collection<String> rootIds) {
+        return Reachability.build(this).prune(rootIds);
+    }
+
+    private static XmlNode copyTree(XmlNode root, Map<XmlNode, XmlNode> copies) {
+        XmlNode rootCopy = root.copyWithoutChildren();
+        copies.put(root, rootCopy);
+        // Pre-order, so children are added in document order and decorators
+        // bind as they did in the original
+        Deque<XmlNode> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            XmlNode node = pending.pop();
+            XmlNode copy = copies.get(node);
+            for (XmlNode child : node.getChildren()) {
+                XmlNode childCopy = child.copyWithoutChildren();
+                copies.put(child, childCopy);
+                copy.addChild(childCopy);
+            }
+            List<XmlNode> children = node.getChildren();
+            for (int c = children.size() - 1; c >= 0; c--) {
+                pending.push(children.get(c));
+            }
+        }
+        return rootCopy;
+    }
+
+    /**
+     * Resolves every reference in the model to the definition it names, for
+     * {@link XmlNode#getResolvedRef()}, and reports references to undeclared
+     * ids and cycles. Call it once all files are loaded; changing the model
+     * through the setters undoes it, while {@link #replaceSourceFile} links
+     * again. The reference that closes a cycle is left unresolved, so walks
+     * that follow resolved references always end.
+     */
+    public LinkReport link() {
+        materializeTree();
+        // Through the getter so that an overlay links its own roots against
+        // every layer's ids
+        linkReport = ModelLinker.link(rootNodes, getIdToNodeMap());
+        return linkReport;
+    }
+
+    /**
+     * The report of the last {@link #link()}, or null if the model is not
+     * linked.
+     */
+    public LinkReport getLinkReport() {
+        return linkReport;
+    }
+
+    /**
+     * Who refers to and depends on each definition, built on first use and
+     * kept until the model changes.
+     */
+    public ReferenceIndex getReferenceIndex() {
+        if (referenceIndex == null) {
+            referenceIndex = ReferenceIndex.build(this);
+        }
+        return referenceIndex;
+    }
+
+    /**
+     * The dotted data paths the model uses, built on first use and kept until
+     * the model changes.
+     */
+    public DataPathTrie getDataPathTrie() {
+        if (dataPathTrie == null) {
+            dataPathTrie = DataPathTrie.build(this);
+        }
+        return dataPathTrie;
+    }
+
+    /**
+     * Content and deep hashes of every node, built on first use, kept until
+     * the model changes and rehashing only the new file after
+     * {@link #replaceSourceFile}.
+     */
+    public StructuralHashes getStructuralHashes() {
+        if (structuralHashes == null) {
+            structuralHashes = StructuralHashes.build(this);
+        }
+        return structuralHashes;
+    }
+
+    /**
+     * Content hash of the definition of {@code id}, or 0 if it is not
+     * declared; see {@link StructuralHashes#getContentHash(XmlNode)}.
+     */
+    public long getContentHash(String id) {
+        XmlNode node = getNodeById(id);
+        return node != null ? getStructuralHashes().getContentHash(node) : 0;
+    }
+
+    /**
+     * Deep hash of the definition of {@code id}, or 0 if it is not declared;
+     * see {@link StructuralHashes#getDeepHash(XmlNode)}.
+     */
+    public long getDeepHash(String id) {
+        XmlNode node = getNodeById(id);
+        return node != null ? getStructuralHashes().getDeepHash(node) : 0;
+    }
+
+    /**
+     * Builds the chosen secondary indexes over the whole model, replacing any
+     * built before; see {@link NodeIndex#getReport()} for what each costs.
+     *
+     * @param attributeNames attributes to index by value
+     */
+    public NodeIndex buildNodeIndex(boolean tags, boolean dataNames, Collection<String> attributeNames) {
+        nodeIndex = NodeIndex.build(this, tags, dataNames, attributeNames);
+        return nodeIndex;
+    }
+
+    /**
+     * The indexes of the last {@link #buildNodeIndex}, or null if none were
+     * built since the model last changed.
+     */
+    public NodeIndex getNodeIndex() {
+        return nodeIndex;
+    }
+
+    /**
+     * The definition {@code reference} points at: its resolved reference if
+     * the model is linked, otherwise a lookup of its refId.
+     */
+    public XmlNode resolve(XmlNode reference) {
+        if (linkReport != null && reference instanceof Reference) {
+            return reference.getResolvedRef();
+        }
+        return reference.getRefId() != null ? getNodeById(reference.getRefId()) : null;
+    }
+
+    private static void collectIds(XmlNode root, Set<String> ids) {
+        Deque<XmlNode> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            XmlNode node = stack.pop();
+            if (node.getId() != null) {
+                ids.add(node.getId());
+            }
+            for (XmlNode child : node.getChildren()) {
+                stack.push(child);
+            }
+        }
+    }
+
+    /**
+     * Whether two subtrees are equal in tags, ids, refs, attributes (in
+     * order), text and source locations.
+     */
+    static boolean sameDefinition(XmlNode a, XmlNode b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return false;
+        }
+        Deque<XmlNode> left = new ArrayDeque<>();
+        Deque<XmlNode> right = new ArrayDeque<>();
+        left.add(a);
+        right.add(b);
+        while (!left.isEmpty()) {
+            XmlNode x = left.poll();
+            XmlNode y = right.poll();
+            if (!x.getTagName().equals(y.getTagName()) || !Objects.equals(x.getId(), y.getId())
+                    || !Objects.equals(x.getRefId(), y.getRefId())
+                    || !Objects.equals(x.getSourceFile(), y.getSourceFile())
+                    || x.getLineNumber() != y.getLineNumber()
+                    || x.getAttributeCount() != y.getAttributeCount()
+                    || !x.getTextContent().equals(y.getTextContent())
+                    || x.getChildren().size() != y.getChildren().size()) {
+                return false;
+            }
+            Iterator<Map.Entry<String, String>> xs = x.getAttributes().entrySet().iterator();
+            Iterator<Map.Entry<String, String>> ys = y.getAttributes().entrySet().iterator();
+            while (xs.hasNext()) {
+                Map.Entry<String, String> xa = xs.next();
+                Map.Entry<String, String> ya = ys.next();
+                if (!xa.getKey().equals(ya.getKey()) || !xa.getValue().equals(ya.getValue())) {
+                    return false;
+                }
+            }
+            left.addAll(x.getChildren());
+            right.addAll(y.getChildren());
+        }
+        return true;
+    }
+
     public XmlNode getNodeById(String id) {
+        if (store != null && !treeMaterialized) {
+            int node = store.getNodeById(id);
+            return node != NodeStore.NONE ? materialize(node) : null;
+        }
+        if (source != null && !treeMaterialized) {
+            if (idToNodeMap.containsKey(id)) {
+                return idToNodeMap.get(id);
+            }
+            XmlNode node = source.load(id);
+            idToNodeMap.put(id, node);
+            return node;
+        }
         return idToNodeMap.get(id);
     }
 
+    /**
+     * The XmlNode for a store ordinal, with its whole subtree. Repeated calls
+     * return the same instances.
+     */
+    public XmlNode materialize(int node) {
+        if (materialized == null || materialized.length < store.size()) {
+            materialized = materialized == null ? new XmlNode[store.size()]
+                    : Arrays.copyOf(materialized, store.size());
+        }
+        XmlNode xmlNode = materialized[node];
+        if (xmlNode != null) {
+            return xmlNode;
+        }
+
+        xmlNode = createNode(store.getTagName(node));
+        xmlNode.setSourceLocation(store.getSourceFileIndex(node), store.getLineNumber(node));
+        xmlNode.setId(store.getId(node));
+        xmlNode.setRefId(store.getRefId(node));
+        for (int a = store.getAttributeStart(node), end = store.getAttributeEnd(node); a < end; a++) {
+            xmlNode.addAttribute(store.getAttributeName(a), store.getAttributeValue(a));
+        }
+        xmlNode.appendTextContent(store.getTextContent(node));
+        materialized[node] = xmlNode;
+
+        for (int child = store.getFirstChild(node); child != NodeStore.NONE; child = store.getNextSibling(child)) {
+            xmlNode.addChild(materialize(child));
+        }
+        return xmlNode;
+    }
+
+    /**
+     * Saves this model as a binary snapshot keyed by the files it was parsed
+     * from, with the key taken before parsing; see {@link ModelSnapshot}.
+     */
+    public void writeSnapshot(Path snapshot, ModelSnapshot.Key inputs, int compressionLevel) throws IOException {
+        ModelSnapshot.write(this, inputs, snapshot, compressionLevel);
+    }
+
+    /**
+     * Loads a model saved by {@link #writeSnapshot}, or returns null if the
+     * snapshot is missing or was written for different inputs.
+     */
+    public static SnifitModel readSnapshot(Path snapshot, List<Path> inputs) throws IOException {
+        return ModelSnapshot.read(snapshot, inputs);
+    }
+
+    private void materializeTree() {
+        if (treeMaterialized || (store == null && source == null)) {
+            return;
+        }
+        treeMaterialized = true;
+        if (source != null) {
+            SnifitModel full = source.loadAll();
+            rootNodes = full.getRootNodes();
+            idToNodeMap = full.getIdToNodeMap();
+            return;
+        }
+        for (int r = 0; r < store.getRootCount(); r++) {
+            rootNodes.add(materialize(store.getRoot(r)));
+        }
+        for (Map.Entry<String, Integer> entry : store.getIdIndex().entrySet()) {
+            idToNodeMap.put(entry.getKey(), materialize(entry.getValue()));
+        }
+    }
+
+    /**
+     * Creates the node subclass matching a tag name, falling back to
+     * {@link Decorator} for {@code *Decor} tags and {@link GenericNode} for the
+     * rest.
+     */
+    public static XmlNode createNode(String tagName) {
+        switch (TagKind.of(tagName)) {
+            case CONTEXT:
+                return new Context();
+            case KCOLL:
+                return new KColl();
+            case ICOLL:
+                return new IColl();
+            case MATAF_ICOLL:
+                return new MatafIColl();
+            case REF_KCOLL:
+                return new RefKColl();
+            case REF_DATA:
+                return new RefData();
+            case FIELD:
+                return new Field();
+            case FMT_DEF:
+                return new FmtDef();
+            case REF_FMT:
+                return new RefFmt();
+            case RECORD:
+                return new Record();
+            case FCS_RECORD:
+                return new FCSRecord();
+            case FCS_LIST:
+                return new FCSList();
+            case ICOLL_F:
+                return new ICollF();
+            case FCS_STRING:
+                return new FCSString();
+            case FHOST_STRING:
+                return new FHostString();
+            case OPERATION:
+                return new Operation();
+            case OP_STEP:
+                return new OpStep();
+            case REF_OP_STEPS:
+                return new RefOpSteps();
+            case REF_FORMAT:
+                return new RefFormat();
+            case VISUAL_FIELD:
+                return new VisualField();
+            case MSG_FIELD:
+                return new MsgField();
+            case MAPPER_CONVERTER:
+                return new MapperConverter();
+            case MOVE:
+                return new Move();
+            case FCS_DYN_XML:
+                return new FCSDynXml();
+            case FCS_MESSAGE:
+                return new FCSMessage();
+            case FSTRING:
+                return new FString();
+            case CONSTANT:
+                return new Constant();
+            case FIXED_LENGTH:
+                return new FixedLength();
+            case DECORATOR:
+                return new Decorator(tagName);
+            default:
+                return new GenericNode(tagName);
+        }
+    }
+
     // Inner static classes for specific node types to add semantic meaning
     // These currently inherit from XmlNode but could be expanded with specific
     // logic
 
     public static class Context extends XmlNode {
         public Context() {
-            super("context");
+            super("context", TagKind.CONTEXT);
         }
     }
 
     public static class KColl extends XmlNode {
         public KColl() {
-            super("kColl");
+            super("kColl", TagKind.KCOLL);
         }
     }
 
     public static class IColl extends XmlNode {
         public IColl() {
-            super("iColl");
+            super("iColl", TagKind.ICOLL);
         }
     }
 
     public static class MatafIColl extends XmlNode {
         public MatafIColl() {
-            super("matafIColl");
+            super("matafIColl", TagKind.MATAF_ICOLL);
         }
     }
 
-    public static class RefKColl extends XmlNode {
+    public static class RefKColl extends Reference {
         public RefKColl() {
-            super("refKColl");
+            super("refKColl", TagKind.REF_KCOLL);
         }
     }
 
-    public static class RefData extends XmlNode {
+    public static class RefData extends Reference {
         public RefData() {
-            super("refData");
+            super("refData", TagKind.REF_DATA);
         }
     }
 
     public static class Field extends XmlNode {
         public Field() {
-            super("field");
+            super("field", TagKind.FIELD);
         }
     }
 
     public static class FmtDef extends XmlNode {
         public FmtDef() {
-            super("fmtDef");
+            super("fmtDef", TagKind.FMT_DEF);
         }
     }
 
-    public static class RefFmt extends XmlNode {
+    public static class RefFmt extends Reference {
         public RefFmt() {
-            super("refFmt");
+            super("refFmt", TagKind.REF_FMT);
         }
     }
 
     public static class Record extends XmlNode {
         public Record() {
-            super("record");
+            super("record", TagKind.RECORD);
         }
     }
 
     public static class FCSRecord extends XmlNode {
         public FCSRecord() {
-            super("fCSRecord");
+            super("fCSRecord", TagKind.FCS_RECORD);
         }
     }
 
     public static class FCSList extends XmlNode {
         public FCSList() {
-            super("fCSList");
+            super("fCSList", TagKind.FCS_LIST);
         }
     }
 
     public static class ICollF extends XmlNode {
         public ICollF() {
-            super("iCollF");
+            super("iCollF", TagKind.ICOLL_F);
         }
     }
 
-    public static class FCSString extends XmlNode {
+    public static class FCSString extends DecoratedNode {
         public FCSString() {
-            super("fCSString");
+            super("fCSString", TagKind.FCS_STRING);
         }
     }
 
-    public static class FHostString extends XmlNode {
+    public static class FHostString extends DecoratedNode {
         public FHostString() {
-            super("fHostString");
+            super("fHostString", TagKind.FHOST_STRING);
+        }
+    }
+
+    /**
+     * A node pointing at a definition by {@code refId}: refFmt, refData,
+     * refKColl, refFormat or refOpSteps. {@link SnifitModel#link()} stores the
+     * definition it points at.
+     */
+    public abstract static class Reference extends XmlNode {
+        private XmlNode resolvedRef;
+
+        protected Reference(String tagName, TagKind kind) {
+            super(tagName, kind);
+        }
+
+        @Override
+        public XmlNode getResolvedRef() {
+            return resolvedRef;
+        }
+
+        void setResolvedRef(XmlNode resolvedRef) {
+            this.resolvedRef = resolvedRef;
         }
     }
 
-    // Decorators could be nodes too
+    /**
+     * A data field or constant. The {@code *Decor} element that follows it
+     * among its siblings, before the next such node, record or fCSRecord, is
+     * bound to it as its children are added, so generators read the host
+     * length and padding directly instead of scanning the siblings again.
+     * <p>
+     * Each decorator has at most one owner, the nearest such node before it,
+     * and each node at most one decorator, the first after it, with or
+     * without a length; a constant between a field and a decorator takes the
+     * decorator from the field. Both generator passes read this one binding.
+     * The sibling scans it replaced differed here, and so did the serializer
+     * and deserializer they produced.
+     */
+    public abstract static class DecoratedNode extends XmlNode {
+        private Decorator decorator;
+
+        protected DecoratedNode(String tagName, TagKind kind) {
+            super(tagName, kind);
+        }
+
+        @Override
+        public Decorator getDecorator() {
+            return decorator;
+        }
+    }
+
+    /**
+     * A {@code *Decor} element ({@code numHostDecor}, {@code hebHostDecor} and
+     * the like) describing the host representation of the field it follows.
+     * The typed properties are parsed from the attributes on first use.
+     */
     public static class Decorator extends XmlNode {
+        private DecoratedNode owner;
+        private boolean parsed;
+        private int length;
+        private int addZerosAsPrefix;
+        private int addZerosOnEmpty;
+        private int digitsAfterDecimal;
+        private char padChar;
+        private boolean showZero;
+        private boolean useOverride;
+
         public Decorator(String tagName) {
-            super(tagName);
+            super(tagName, TagKind.DECORATOR);
+        }
+
+        /**
+         * The field or constant this decorator applies to, or null if none
+         * precedes it.
+         */
+        public DecoratedNode getOwner() {
+            return owner;
+        }
+
+        // Called once this node is the last of siblings
+        void bind(List<XmlNode> siblings) {
+            for (int i = siblings.size() - 2; i >= 0; i--) {
+                XmlNode sibling = siblings.get(i);
+                if (sibling instanceof DecoratedNode) {
+                    DecoratedNode field = (DecoratedNode) sibling;
+                    if (field.decorator == null) {
+                        field.decorator = this;
+                        owner = field;
+                    }
+                    return;
+                }
+                if (sibling instanceof Decorator || sibling instanceof Record || sibling instanceof FCSRecord) {
+                    return;
+                }
+            }
+        }
+
+        // Binds the decorators among siblings afresh, as if the siblings had
+        // been added in their current order
+        static void rebind(List<XmlNode> siblings) {
+            for (XmlNode sibling : siblings) {
+                unbind(sibling);
+            }
+            for (int i = 0; i < siblings.size(); i++) {
+                if (siblings.get(i) instanceof Decorator) {
+                    ((Decorator) siblings.get(i)).bind(siblings.subList(0, i + 1));
+                }
+            }
+        }
+
+        // Detaches a field or decorator from its binding, if it has one
+        static void unbind(XmlNode node) {
+            if (node instanceof DecoratedNode) {
+                DecoratedNode field = (DecoratedNode) node;
+                if (field.decorator != null) {
+                    field.decorator.owner = null;
+                    field.decorator = null;
+                }
+            } else if (node instanceof Decorator) {
+                Decorator decorator = (Decorator) node;
+                if (decorator.owner != null) {
+                    decorator.owner.decorator = null;
+                    decorator.owner = null;
+                }
+            }
+        }
+
+        /** Host length in characters, or -1 if missing or not a number. */
+        public int getLength() {
+            parse();
+            return length;
+        }
+
+        public String getJustify() {
+            return getAttribute("justify");
+        }
+
+        public String getCodeSet() {
+            return getAttribute("codeSet");
+        }
+
+        /** Pad character, a space unless {@code padChar} says otherwise. */
+        public char getPadChar() {
+            parse();
+            return padChar;
+        }
+
+        /** Number of zeros to prefix, 0 if not set. */
+        public int getAddZerosAsPrefix() {
+            parse();
+            return addZerosAsPrefix;
+        }
+
+        /** Number of zeros to write for an empty value, 0 if not set. */
+        public int getAddZerosOnEmpty() {
+            parse();
+            return addZerosOnEmpty;
+        }
+
+        /** Digits after the decimal point, 0 if not set. */
+        public int getDigitsAfterDecimal() {
+            parse();
+            return digitsAfterDecimal;
+        }
+
+        public boolean isShowZero() {
+            parse();
+            return showZero;
+        }
+
+        public boolean isUseOverride() {
+            parse();
+            return useOverride;
+        }
+
+        @Override
+        protected void attributesChanged() {
+            parsed = false;
+        }
+
+        @Override
+        void freeze() {
+            parse();
+            super.freeze();
+        }
+
+        private void parse() {
+            if (parsed) {
+                return;
+            }
+            length = parseInt(getAttribute("length"), -1);
+            addZerosAsPrefix = parseInt(getAttribute("addZerosAsPrefix"), 0);
+            addZerosOnEmpty = parseInt(getAttribute("addZerosOnEmpty"), 0);
+            digitsAfterDecimal = parseInt(getAttribute("digitsAfterDecimal"), 0);
+            String pad = getAttribute("padChar");
+            padChar = pad != null && pad.length() == 1 ? pad.charAt(0) : ' ';
+            showZero = isYes(getAttribute("showZero"));
+            useOverride = isYes(getAttribute("useoverride"));
+            parsed = true;
+        }
+
+        private static int parseInt(String value, int fallback) {
+            if (value == null) {
+                return fallback;
+            }
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                return fallback;
+            }
+        }
+
+        private static boolean isYes(String value) {
+            return "yes".equalsIgnoreCase(value) || "true".equalsIgnoreCase(value);
         }
     }
 
     public static class Operation extends XmlNode {
         public Operation() {
-            super("operation");
+            super("operation", TagKind.OPERATION);
         }
     }
 
     public static class OpStep extends XmlNode {
         public OpStep() {
-            super("opStep");
+            super("opStep", TagKind.OP_STEP);
         }
     }
 
-    public static class RefOpSteps extends XmlNode {
+    public static class RefOpSteps extends Reference {
         public RefOpSteps() {
-            super("refOpSteps");
+            super("refOpSteps", TagKind.REF_OP_STEPS);
         }
     }
 
-    public static class RefFormat extends XmlNode {
+    public static class RefFormat extends Reference {
         public RefFormat() {
-            super("refFormat");
+            super("refFormat", TagKind.REF_FORMAT);
         }
     }
 
     public static class VisualField extends XmlNode {
         public VisualField() {
-            super("visualField");
+            super("visualField", TagKind.VISUAL_FIELD);
         }
     }
 
     public static class MsgField extends XmlNode {
         public MsgField() {
-            super("msgField");
+            super("msgField", TagKind.MSG_FIELD);
         }
     }
 
     public static class MapperConverter extends XmlNode {
         public MapperConverter() {
-            super("mapperConverter");
+            super("mapperConverter", TagKind.MAPPER_CONVERTER);
         }
     }
 
     public static class Move extends XmlNode {
         public Move() {
-            super("move");
+            super("move", TagKind.MOVE);
         }
     }
 
-    public static class FCSDynXml extends XmlNode {
+    public static class FCSDynXml extends DecoratedNode {
         public FCSDynXml() {
-            super("fCSDynXml");
+            super("fCSDynXml", TagKind.FCS_DYN_XML);
         }
     }
 
-    public static class FCSMessage extends XmlNode {
+    public static class FCSMessage extends DecoratedNode {
         public FCSMessage() {
-            super("fCSMessage");
+            super("fCSMessage", TagKind.FCS_MESSAGE);
         }
     }
 
-    public static class FString extends XmlNode {
+    public static class FString extends DecoratedNode {
         public FString() {
-            super("fString");
+            super("fString", TagKind.FSTRING);
         }
     }
 
-    public static class Constant extends XmlNode {
+    public static class Constant extends DecoratedNode {
         public Constant() {
-            super("constant");
+            super("constant", TagKind.CONSTANT);
         }
     }
 
     public static class FixedLength extends XmlNode {
         public FixedLength() {
-            super("fixedLength");
+            super("fixedLength", TagKind.FIXED_LENGTH);
         }
     }
 
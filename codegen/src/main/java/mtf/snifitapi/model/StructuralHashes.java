@@ -0,0 +1,366 @@
+package mtf.snifitapi.model;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 64-bit structural hashes of every node of a model, computed bottom-up so
+ * that comparing two hashes tells whether two subtrees differ without
+ * walking them.
+ * <p>
+ * The content hash of a node covers its tag, id, refId, attributes (in any
+ * order), text and the content hashes of its children in order, but not
+ * where it was declared. The deep hash also folds in, for each reference in
+ * the subtree, the deep hash of the definition it resolves to, so the deep
+ * hash of a fmtDef changes when anything it reaches through {@code refFmt}
+ * does. A dangling reference contributes its refId. Nodes that reach each
+ * other through references form a cycle and are hashed as one: each member's
+ * deep hash covers the content of every member and the deep hashes of what
+ * the cycle reaches outside itself, so it does not depend on where a walk
+ * enters the cycle, and with it on the order of the roots.
+ * <p>
+ * After {@link SnifitModel#replaceSourceFile} only the new file's nodes are
+ * hashed again; deep hashes, which are cheap once content hashes exist, are
+ * recomputed for the whole model.
+ */
+public final class StructuralHashes {
+
+    private static final long PRIME = 0x100000001B3L;
+
+    private final Map<XmlNode, Integer> ordinals;
+    private final XmlNode[] nodes;
+    // Ordinal one past the last node of each node's subtree
+    private final int[] subtreeEnd;
+    // The node's own fields, without its children
+    private final long[] own;
+    private final long[] content;
+    private final long[] deep;
+    private final int hashed;
+    private final long nanos;
+
+    private StructuralHashes(Map<XmlNode, Integer> ordinals, XmlNode[] nodes, int[] subtreeEnd, long[] own,
+            long[] content, long[] deep, int hashed, long nanos) {
+        this.ordinals = ordinals;
+        this.nodes = nodes;
+        this.subtreeEnd = subtreeEnd;
+        this.own = own;
+        this.content = content;
+        this.deep = deep;
+        this.hashed = hashed;
+        this.nanos = nanos;
+    }
+
+    /**
+     * Hashes the whole model. Use {@link SnifitModel#getStructuralHashes()} to
+     * share the hashes until the model changes.
+     */
+    public static StructuralHashes build(SnifitModel model) {
+        return update(model, null);
+    }
+
+    /**
+     * Hashes the model, reusing the content hashes of every root that
+     * {@code previous} hashed, which must not have changed since.
+     */
+    static StructuralHashes update(SnifitModel model, StructuralHashes previous) {
+        long start = System.nanoTime();
+        List<XmlNode> roots = model.getRootNodes();
+        Map<XmlNode, Integer> ordinals = new IdentityHashMap<>();
+        XmlNode[] nodes = new XmlNode[1024];
+        int[] ends = new int[1024];
+        long[] own = new long[1024];
+        long[] content = new long[1024];
+        int size = 0;
+        int hashed = 0;
+
+        // Pre-order with an explicit path; next[i] is the next child of path[i]
+        // and ordinal[i] its ordinal. Content hashes are finished in post-order.
+        XmlNode[] path = new XmlNode[64];
+        int[] next = new int[64];
+        int[] ordinal = new int[64];
+        for (XmlNode root : roots) {
+            Integer reused = previous != null ? previous.ordinals.get(root) : null;
+            if (reused != null) {
+                int from = reused;
+                int count = previous.subtreeEnd[from] - from;
+                if (size + count > nodes.length) {
+                    int capacity = Math.max(nodes.length * 2, size + count);
+                    nodes = Arrays.copyOf(nodes, capacity);
+                    ends = Arrays.copyOf(ends, capacity);
+                    own = Arrays.copyOf(own, capacity);
+                    content = Arrays.copyOf(content, capacity);
+                }
+                System.arraycopy(previous.nodes, from, nodes, size, count);
+                System.arraycopy(previous.own, from, own, size, count);
+                System.arraycopy(previous.content, from, content, size, count);
+                for (int i = 0; i < count; i++) {
+                    ends[size + i] = previous.subtreeEnd[from + i] - from + size;
+                    ordinals.put(nodes[size + i], size + i);
+                }
+                size += count;
+                continue;
+            }
+            if (ordinals.containsKey(root)) {
+                continue;
+            }
+
+            int depth = 0;
+            path[0] = root;
+            next[0] = 0;
+            ordinal[0] = size;
+            while (depth >= 0) {
+                XmlNode node = path[depth];
+                if (next[depth] == 0 && ordinal[depth] == size) {
+                    if (size == nodes.length) {
+                        nodes = Arrays.copyOf(nodes, size * 2);
+                        ends = Arrays.copyOf(ends, size * 2);
+                        own = Arrays.copyOf(own, size * 2);
+                        content = Arrays.copyOf(content, size * 2);
+                    }
+                    nodes[size] = node;
+                    own[size] = ownHash(node);
+                    ordinals.put(node, size);
+                    size++;
+                    hashed++;
+                }
+                List<XmlNode> children = node.getChildren();
+                if (next[depth] < children.size()) {
+                    XmlNode child = children.get(next[depth]++);
+                    depth++;
+                    if (depth == path.length) {
+                        path = Arrays.copyOf(path, depth * 2);
+                        next = Arrays.copyOf(next, depth * 2);
+                        ordinal = Arrays.copyOf(ordinal, depth * 2);
+                    }
+                    path[depth] = child;
+                    next[depth] = 0;
+                    ordinal[depth] = size;
+                } else {
+                    int o = ordinal[depth];
+                    ends[o] = size;
+                    long h = own[o];
+                    // Children follow their parent, each subtree contiguous
+                    for (int c = o + 1; c < size; c = ends[c]) {
+                        h = combine(h, content[c]);
+                    }
+                    content[o] = finish(h, children.size());
+                    depth--;
+                }
+            }
+        }
+
+        long[] deep = deepHashes(model, ordinals, Arrays.copyOf(nodes, size), ends, own, content);
+        return new StructuralHashes(ordinals, Arrays.copyOf(nodes, size), Arrays.copyOf(ends, size),
+                Arrays.copyOf(own, size), Arrays.copyOf(content, size), deep, hashed, System.nanoTime() - start);
+    }
+
+    // Tarjan's strongly connected components over children and references,
+    // depth-first on an explicit path. A component is complete before any
+    // component that reaches it, so every edge leaving it has a deep hash.
+    private static long[] deepHashes(SnifitModel model, Map<XmlNode, Integer> ordinals, XmlNode[] nodes,
+            int[] ends, long[] own, long[] content) {
+        int size = nodes.length;
+        long[] deep = new long[size];
+        // Ordinal of each reference's definition, or -1 if it has none. A
+        // linked model leaves the reference closing a cycle unresolved, so
+        // that one is looked up by id to hash a cycle the same linked or not.
+        int[] target = new int[size];
+        for (int o = 0; o < size; o++) {
+            XmlNode node = nodes[o];
+            XmlNode definition = node.getRefId() != null ? model.resolve(node) : null;
+            if (definition == null && node.getRefId() != null) {
+                definition = model.getNodeById(node.getRefId());
+            }
+            target[o] = ordinalOrMinusOne(ordinals, definition);
+        }
+
+        // index[o] is 0 until visited, then the visit number; component[o] is
+        // -1 until o's component is complete
+        int[] index = new int[size];
+        int[] low = new int[size];
+        int[] component = new int[size];
+        Arrays.fill(component, -1);
+        int[] open = new int[size];
+        int openSize = 0;
+        int visits = 0;
+        int components = 0;
+        // next[i] is the ordinal of the next child of path[i] to visit, then
+        // one past its subtree's end once its reference has been followed
+        int[] path = new int[64];
+        int[] next = new int[64];
+        for (int root = 0; root < size; root = ends[root]) {
+            if (index[root] != 0) {
+                continue;
+            }
+            int depth = 0;
+            path[0] = root;
+            next[0] = root + 1;
+            index[root] = low[root] = ++visits;
+            open[openSize++] = root;
+            while (depth >= 0) {
+                int o = path[depth];
+                int c = next[depth];
+
+                int successor;
+                if (c < ends[o]) {
+                    next[depth] = ends[c];
+                    successor = c;
+                } else if (c == ends[o] && target[o] >= 0) {
+                    next[depth] = c + 1;
+                    successor = target[o];
+                } else {
+                    if (low[o] == index[o]) {
+                        int from = openSize;
+                        do {
+                            component[open[--from]] = components;
+                        } while (open[from] != o);
+                        hashComponent(open, from, openSize, components, nodes, ends, own, content, target,
+                                component, deep);
+                        openSize = from;
+                        components++;
+                    }
+                    depth--;
+                    if (depth >= 0) {
+                        low[path[depth]] = Math.min(low[path[depth]], low[o]);
+                    }
+                    continue;
+                }
+
+                if (index[successor] == 0) {
+                    index[successor] = low[successor] = ++visits;
+                    open[openSize++] = successor;
+                    depth++;
+                    if (depth == path.length) {
+                        path = Arrays.copyOf(path, depth * 2);
+                        next = Arrays.copyOf(next, depth * 2);
+                    }
+                    path[depth] = successor;
+                    next[depth] = successor + 1;
+                } else if (component[successor] < 0) {
+                    low[o] = Math.min(low[o], index[successor]);
+                }
+            }
+        }
+        return deep;
+    }
+
+    // A node outside any cycle hashes its own fields, its children's deep
+    // hashes and its definition's. Within a cycle an edge to another member
+    // contributes the member's content hash instead, and every member folds
+    // in the sum of all members' hashes, which is the same in any order.
+    private static void hashComponent(int[] members, int from, int to, int id, XmlNode[] nodes, int[] ends,
+            long[] own, long[] content, int[] target, int[] component, long[] deep) {
+        if (to - from == 1 && target[members[from]] != members[from]) {
+            int o = members[from];
+            deep[o] = edgeHash(o, id, nodes, ends, own, content, target, component, deep);
+            return;
+        }
+        long sum = 0;
+        for (int m = from; m < to; m++) {
+            sum += mix(edgeHash(members[m], id, nodes, ends, own, content, target, component, deep));
+        }
+        for (int m = from; m < to; m++) {
+            deep[members[m]] = mix(combine(sum, content[members[m]]));
+        }
+    }
+
+    private static long edgeHash(int o, int id, XmlNode[] nodes, int[] ends, long[] own, long[] content,
+            int[] target, int[] component, long[] deep) {
+        long h = own[o];
+        for (int c = o + 1; c < ends[o]; c = ends[c]) {
+            h = combine(h, component[c] == id ? content[c] : deep[c]);
+        }
+        h = finish(h, nodes[o].getChildren().size());
+        if (nodes[o].getRefId() != null) {
+            int t = target[o];
+            h = combine(h, t < 0 ? stringHash(nodes[o].getRefId()) : component[t] == id ? content[t] : deep[t]);
+        }
+        return h;
+    }
+
+    private static int ordinalOrMinusOne(Map<XmlNode, Integer> ordinals, XmlNode node) {
+        Integer ordinal = node != null ? ordinals.get(node) : null;
+        return ordinal != null ? ordinal : -1;
+    }
+
+    private static long ownHash(XmlNode node) {
+        long h = stringHash(node.getTagName());
+        h = combine(h, stringHash(node.getId()));
+        h = combine(h, stringHash(node.getRefId()));
+        // Summed so that attribute order does not matter
+        long attributes = 0;
+        for (Map.Entry<String, String> attribute : node.getAttributes().entrySet()) {
+            attributes += mix(combine(stringHash(attribute.getKey()), stringHash(attribute.getValue())));
+        }
+        h = combine(h, attributes);
+        return combine(h, stringHash(node.getTextContent()));
+    }
+
+    // 64-bit FNV-1a; null and the empty string differ
+    private static long stringHash(String s) {
+        if (s == null) {
+            return 0;
+        }
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * PRIME;
+        }
+        return h;
+    }
+
+    private static long combine(long h, long value) {
+        return (Long.rotateLeft(h, 23) ^ value) * PRIME;
+    }
+
+    private static long finish(long h, int childCount) {
+        return mix(h ^ childCount);
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    private int ordinalOf(XmlNode node) {
+        Integer ordinal = ordinals.get(node);
+        if (ordinal == null) {
+            throw new IllegalArgumentException("Node not in the hashed model: " + node.getTagName());
+        }
+        return ordinal;
+    }
+
+    /**
+     * Hash of the node's subtree alone.
+     *
+     * @throws IllegalArgumentException if the node is not in the model
+     */
+    public long getContentHash(XmlNode node) {
+        return content[ordinalOf(node)];
+    }
+
+    /**
+     * Hash of the node's subtree and everything its references reach.
+     *
+     * @throws IllegalArgumentException if the node is not in the model
+     */
+    public long getDeepHash(XmlNode node) {
+        return deep[ordinalOf(node)];
+    }
+
+    /** Number of nodes. */
+    public int size() {
+        return nodes.length;
+    }
+
+    /** Nodes whose content was hashed rather than reused. */
+    public int getHashed() {
+        return hashed;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+}
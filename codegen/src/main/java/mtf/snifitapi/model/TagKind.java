@@ -0,0 +1,115 @@
+package mtf.snifitapi.model;
+
+/**
+ * The tags the model gives a node subclass, plus {@link #DECORATOR} for
+ * {@code *Decor} tags and {@link #OTHER} for the rest. A node's kind is
+ * resolved from its tag name once, when the node is created, so code that
+ * dispatches on it switches over an enum instead of comparing strings; see
+ * {@link XmlNode#accept(NodeVisitor, Object)}.
+ */
+public enum TagKind {
+    CONTEXT("context"),
+    KCOLL("kColl"),
+    ICOLL("iColl"),
+    MATAF_ICOLL("matafIColl"),
+    REF_KCOLL("refKColl"),
+    REF_DATA("refData"),
+    FIELD("field"),
+    FMT_DEF("fmtDef"),
+    REF_FMT("refFmt"),
+    RECORD("record"),
+    FCS_RECORD("fCSRecord"),
+    FCS_LIST("fCSList"),
+    ICOLL_F("iCollF"),
+    FCS_STRING("fCSString"),
+    FHOST_STRING("fHostString"),
+    OPERATION("operation"),
+    OP_STEP("opStep"),
+    REF_OP_STEPS("refOpSteps"),
+    REF_FORMAT("refFormat"),
+    VISUAL_FIELD("visualField"),
+    MSG_FIELD("msgField"),
+    MAPPER_CONVERTER("mapperConverter"),
+    MOVE("move"),
+    FCS_DYN_XML("fCSDynXml"),
+    FCS_MESSAGE("fCSMessage"),
+    FSTRING("fString"),
+    CONSTANT("constant"),
+    FIXED_LENGTH("fixedLength"),
+    DECORATOR(null),
+    OTHER(null);
+
+    private final String tagName;
+
+    TagKind(String tagName) {
+        this.tagName = tagName;
+    }
+
+    /** The tag of this kind, or null for {@link #DECORATOR} and {@link #OTHER}. */
+    public String getTagName() {
+        return tagName;
+    }
+
+    public static TagKind of(String tagName) {
+        switch (tagName) {
+            case "context":
+                return CONTEXT;
+            case "kColl":
+                return KCOLL;
+            case "iColl":
+                return ICOLL;
+            case "matafIColl":
+                return MATAF_ICOLL;
+            case "refKColl":
+                return REF_KCOLL;
+            case "refData":
+                return REF_DATA;
+            case "field":
+                return FIELD;
+            case "fmtDef":
+                return FMT_DEF;
+            case "refFmt":
+                return REF_FMT;
+            case "record":
+                return RECORD;
+            case "fCSRecord":
+                return FCS_RECORD;
+            case "fCSList":
+                return FCS_LIST;
+            case "iCollF":
+                return ICOLL_F;
+            case "fCSString":
+                return FCS_STRING;
+            case "fHostString":
+                return FHOST_STRING;
+            case "operation":
+                return OPERATION;
+            case "opStep":
+                return OP_STEP;
+            case "refOpSteps":
+                return REF_OP_STEPS;
+            case "refFormat":
+                return REF_FORMAT;
+            case "visualField":
+                return VISUAL_FIELD;
+            case "msgField":
+                return MSG_FIELD;
+            case "mapperConverter":
+                return MAPPER_CONVERTER;
+            case "move":
+                return MOVE;
+            case "fCSDynXml":
+                return FCS_DYN_XML;
+            case "fCSMessage":
+                return FCS_MESSAGE;
+            case "fString":
+                return FSTRING;
+            case "constant":
+                return CONSTANT;
+            case "fixedLength":
+                return FIXED_LENGTH;
+            default:
+                return tagName.endsWith("Decor") ? DECORATOR : OTHER;
+        }
+    }
+}
@@ -1,31 +1,91 @@
 package mtf.snifitapi.model;
 
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class XmlNode {
+    private static final String[] NO_ATTRIBUTES = new String[0];
+
+    // Source file names are shared by every node of a file, so nodes only keep an
+    // index into this table
+    private static final Map<String, Integer> FILE_INDEX = new ConcurrentHashMap<>();
+    private static final List<String> FILE_TABLE = new CopyOnWriteArrayList<>();
+
     private String tagName;
+    private TagKind kind;
     private String id;
     private String refId;
-    private Map<String, String> attributes = new HashMap<>();
-    private List<XmlNode> children = new ArrayList<>();
-    private StringBuilder textContent = new StringBuilder();
-    private String sourceFile;
+    // Interleaved names and values, sized exactly: most nodes have one or two
+    private String[] attributes = NO_ATTRIBUTES;
+    private List<XmlNode> children = Collections.emptyList();
+    private StringBuilder textContent;
+    private int sourceFileIndex = -1;
     private int lineNumber;
+    // Set by SnifitModel.freeze(); every mutator then throws
+    private boolean frozen;
 
     public XmlNode(String tagName) {
+        this(tagName, TagKind.of(tagName));
+    }
+
+    /**
+     * For subclasses that already know their kind, so the tag name is not
+     * looked up again.
+     */
+    protected XmlNode(String tagName, TagKind kind) {
         this.tagName = tagName;
+        this.kind = kind;
+    }
+
+    /**
+     * Returns the index of {@code file} in the source file table, adding it if
+     * needed. Parsers look the index up once per document and pass it to
+     * {@link #setSourceLocation(int, int)}.
+     */
+    public static int sourceFileIndex(String file) {
+        Integer index = FILE_INDEX.get(file);
+        if (index != null) {
+            return index;
+        }
+        synchronized (FILE_TABLE) {
+            return FILE_INDEX.computeIfAbsent(file, f -> {
+                FILE_TABLE.add(f);
+                return FILE_TABLE.size() - 1;
+            });
+        }
+    }
+
+    /**
+     * The file name registered under {@code index}, or null for -1.
+     */
+    public static String sourceFileName(int index) {
+        return index >= 0 ? FILE_TABLE.get(index) : null;
     }
 
     public void setSourceLocation(String file, int line) {
-        this.sourceFile = file;
+        setSourceLocation(file != null ? sourceFileIndex(file) : -1, line);
+    }
+
+    public void setSourceLocation(int fileIndex, int line) {
+        checkMutable();
+        this.sourceFileIndex = fileIndex;
         this.lineNumber = line;
     }
 
     public String getSourceFile() {
-        return sourceFile;
+        return sourceFileName(sourceFileIndex);
     }
 
     public int getLineNumber() {
@@ -37,7 +97,51 @@ public class XmlNode {
     }
 
     public void setTagName(String tagName) {
+        checkMutable();
         this.tagName = tagName;
+        this.kind = TagKind.of(tagName);
+    }
+
+    public TagKind getKind() {
+        return kind;
+    }
+
+    /**
+     * Calls the {@code visitor} method for this node's kind.
+     */
+    public <P> void accept(NodeVisitor<P> visitor, P arg) {
+        switch (kind) {
+            case RECORD:
+            case FCS_RECORD:
+                visitor.visitRecord(this, arg);
+                break;
+            case FCS_LIST:
+            case ICOLL_F:
+                visitor.visitList(this, arg);
+                break;
+            case FCS_STRING:
+            case FHOST_STRING:
+            case FSTRING:
+            case FCS_MESSAGE:
+            case FCS_DYN_XML:
+                visitor.visitDataField(this, arg);
+                break;
+            case CONSTANT:
+                visitor.visitConstant(this, arg);
+                break;
+            case FIXED_LENGTH:
+                visitor.visitFixedLength(this, arg);
+                break;
+            case REF_FMT:
+                visitor.visitRefFmt(this, arg);
+                break;
+            case FMT_DEF:
+                visitor.visitFmtDef(this, arg);
+                break;
+            default:
+                visitor.visitOther(this, arg);
+                break;
+        }
     }
 
     public String getId() {
@@ -45,6 +149,7 @@ public class XmlNode {
     }
 
     public void setId(String id) {
+        checkMutable();
         this.id = id;
     }
 
@@ -53,39 +158,182 @@ public class XmlNode {
     }
 
     public void setRefId(String refId) {
+        checkMutable();
         this.refId = refId;
     }
 
+    /**
+     * The definition this reference points at once the model is linked; see
+     * {@link SnifitModel#link()}. Null for nodes that are not references, for
+     * dangling or cyclic references and before linking.
+     */
+    public XmlNode getResolvedRef() {
+        return null;
+    }
+
+    /**
+     * Live map view of the attributes, in document order. Writes through the
+     * view update the node.
+     */
     public Map<String, String> getAttributes() {
+        return new AttributeMap();
+    }
+
+    public String getAttribute(String name) {
+        String[] attrs = attributes;
+        for (int i = 0; i < attrs.length; i += 2) {
+            if (attrs[i].equals(name)) {
+                return attrs[i + 1];
+            }
+        }
+        return null;
+    }
+
+    public int getAttributeCount() {
+        return attributes.length / 2;
+    }
+
+    // The backing array itself, for HeapFootprint
+    String[] attributeArray() {
         return attributes;
     }
 
+    // The builder itself or null, for HeapFootprint
+    StringBuilder textBuilder() {
+        return textContent;
+    }
+
     public void addAttribute(String key, String value) {
-        this.attributes.put(key, value);
+        checkMutable();
+        String[] attrs = attributes;
+        for (int i = 0; i < attrs.length; i += 2) {
+            if (attrs[i].equals(key)) {
+                attrs[i + 1] = value;
+                attributesChanged();
+                return;
+            }
+        }
+        attrs = Arrays.copyOf(attrs, attrs.length + 2);
+        attrs[attrs.length - 2] = key;
+        attrs[attrs.length - 1] = value;
+        this.attributes = attrs;
+        attributesChanged();
+    }
+
+    private String removeAttribute(String key) {
+        checkMutable();
+        String[] attrs = attributes;
+        for (int i = 0; i < attrs.length; i += 2) {
+            if (attrs[i].equals(key)) {
+                String old = attrs[i + 1];
+                String[] shrunk = attrs.length == 2 ? NO_ATTRIBUTES : new String[attrs.length - 2];
+                System.arraycopy(attrs, 0, shrunk, 0, i);
+                System.arraycopy(attrs, i + 2, shrunk, i, attrs.length - i - 2);
+                this.attributes = shrunk;
+                attributesChanged();
+                return old;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether this node belongs to a frozen model and can no longer change.
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    // Makes the node read-only; the model freezing it has built everything
+    // derived from the node before this
+    void freeze() {
+        children = children.isEmpty() ? Collections.emptyList() : List.copyOf(children);
+        frozen = true;
+    }
+
+    // A mutable copy of this node without its children
+    XmlNode copyWithoutChildren() {
+        XmlNode copy = SnifitModel.createNode(tagName);
+        copy.id = id;
+        copy.refId = refId;
+        copy.attributes = attributes.length > 0 ? attributes.clone() : NO_ATTRIBUTES;
+        copy.textContent = textContent != null ? new StringBuilder(textContent) : null;
+        copy.sourceFileIndex = sourceFileIndex;
+        copy.lineNumber = lineNumber;
+        return copy;
+    }
+
+    private void checkMutable() {
+        if (frozen) {
+            throw new UnsupportedOperationException("Node of a frozen model");
+        }
+    }
+
+    /**
+     * Called after an attribute is added, replaced or removed, for subclasses
+     * that keep values derived from their attributes.
+     */
+    protected void attributesChanged() {
     }
 
+    /**
+     * The child nodes in document order, as a mutable list unless the node is
+     * frozen. Changes to the list go through the node, so decorators stay
+     * bound to their fields however the children are changed, and a leaf
+     * keeps sharing one empty list until a child is added.
+     */
     public List<XmlNode> getChildren() {
-        return children;
+        return frozen ? children : new ChildList();
     }
 
     public void addChild(XmlNode child) {
+        checkMutable();
+        if (children.isEmpty()) {
+            children = new ArrayList<>(2);
+        }
         this.children.add(child);
+        if (child instanceof SnifitModel.Decorator) {
+            ((SnifitModel.Decorator) child).bind(children);
+        }
+    }
+
+    /**
+     * The {@code *Decor} sibling that applies to this field or constant, or
+     * null if it has none or is not a node a decorator can apply to.
+     */
+    public SnifitModel.Decorator getDecorator() {
+        return null;
     }
 
     public String getTextContent() {
-        return textContent.toString();
+        return textContent != null ? textContent.toString() : "";
     }
 
     public void setTextContent(String text) {
-        this.textContent = new StringBuilder(text != null ? text : "");
+        checkMutable();
+        this.textContent = text != null && !text.isEmpty() ? new StringBuilder(text) : null;
     }
 
     public void appendTextContent(String text) {
-        if (text != null) {
+        checkMutable();
+        if (text != null && !text.isEmpty()) {
+            if (textContent == null) {
+                textContent = new StringBuilder(text.length());
+            }
             this.textContent.append(text);
         }
     }
 
+    public void appendTextContent(char[] ch, int start, int length) {
+        checkMutable();
+        if (length > 0) {
+            if (textContent == null) {
+                textContent = new StringBuilder(length);
+            }
+            textContent.append(ch, start, length);
+        }
+    }
+
     public String toJson() {
         StringBuilder sb = new StringBuilder();
         toJson(sb);
@@ -104,15 +352,13 @@ public class XmlNode {
             sb.append(",\"refId\":\"").append(escapeJson(refId)).append("\"");
         }
 
-        if (!attributes.isEmpty()) {
+        if (attributes.length > 0) {
             sb.append(",\"attributes\":{");
-            boolean first = true;
-            for (Map.Entry<String, String> entry : attributes.entrySet()) {
-                if (!first)
+            for (int i = 0; i < attributes.length; i += 2) {
+                if (i > 0)
                     sb.append(",");
-                sb.append("\"").append(escapeJson(entry.getKey())).append("\":\"")
-                        .append(escapeJson(entry.getValue())).append("\"");
-                first = false;
+                sb.append("\"").append(escapeJson(attributes[i])).append("\":\"")
+                        .append(escapeJson(attributes[i + 1])).append("\"");
             }
             sb.append("}");
         }
@@ -137,7 +383,7 @@ public class XmlNode {
         sb.append("}");
     }
 
-    private String escapeJson(String s) {
+    static String escapeJson(String s) {
         if (s == null)
             return "";
         StringBuilder sb = new StringBuilder();
@@ -183,11 +429,151 @@ public class XmlNode {
                 "tagName='" + tagName + '\'' +
                 ", id='" + id + '\'' +
                 ", refId='" + refId + '\'' +
-                ", attributes=" + attributes +
-                ", textContent='" + textContent + '\'' +
-                ", sourceFile='" + sourceFile + '\'' +
+                ", attributes=" + getAttributes() +
+                ", textContent='" + getTextContent() + '\'' +
+                ", sourceFile='" + getSourceFile() + '\'' +
                 ", lineNumber=" + lineNumber +
                 ", children=" + children +
                 '}';
     }
+
+    /**
+     * Map view over the attribute array.
+     */
+    private final class AttributeMap extends AbstractMap<String, String> {
+
+        @Override
+        public int size() {
+            return attributes.length / 2;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && getAttribute((String) key) != null;
+        }
+
+        @Override
+        public String get(Object key) {
+            return key instanceof String ? getAttribute((String) key) : null;
+        }
+
+        @Override
+        public String put(String key, String value) {
+            String old = getAttribute(key);
+            addAttribute(key, value);
+            return old;
+        }
+
+        @Override
+        public String remove(Object key) {
+            return key instanceof String ? removeAttribute((String) key) : null;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public int size() {
+                    return attributes.length / 2;
+                }
+
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new Iterator<Map.Entry<String, String>>() {
+                        private int next;
+                        private String lastKey;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < attributes.length;
+                        }
+
+                        @Override
+                        public Map.Entry<String, String> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            String[] attrs = attributes;
+                            lastKey = attrs[next];
+                            Map.Entry<String, String> entry = new SimpleEntry<String, String>(attrs[next],
+                                    attrs[next + 1]) {
+                                private static final long serialVersionUID = 1L;
+
+                                @Override
+                                public String setValue(String value) {
+                                    // Replaced in place, so the order and the iteration are kept
+                                    addAttribute(getKey(), value);
+                                    return super.setValue(value);
+                                }
+                            };
+                            next += 2;
+                            return entry;
+                        }
+
+                        @Override
+                        public void remove() {
+                            if (lastKey == null) {
+                                throw new IllegalStateException();
+                            }
+                            removeAttribute(lastKey);
+                            lastKey = null;
+                            next -= 2;
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * Live view of the children of a mutable node. Appending binds a
+     * decorator as addChild does; any other change rebinds the decorators of
+     * the whole list, since inserting, replacing or removing a node can move
+     * a decorator to another field.
+     */
+    private final class ChildList extends AbstractList<XmlNode> {
+
+        @Override
+        public XmlNode get(int index) {
+            return children.get(index);
+        }
+
+        @Override
+        public int size() {
+            return children.size();
+        }
+
+        @Override
+        public void add(int index, XmlNode child) {
+            if (index == children.size()) {
+                addChild(child);
+            } else {
+                checkMutable();
+                children.add(index, child);
+                SnifitModel.Decorator.rebind(children);
+            }
+            modCount++;
+        }
+
+        @Override
+        public XmlNode set(int index, XmlNode child) {
+            checkMutable();
+            Objects.checkIndex(index, children.size());
+            XmlNode old = children.set(index, child);
+            SnifitModel.Decorator.unbind(old);
+            SnifitModel.Decorator.rebind(children);
+            return old;
+        }
+
+        @Override
+        public XmlNode remove(int index) {
+            checkMutable();
+            Objects.checkIndex(index, children.size());
+            XmlNode old = children.remove(index);
+            SnifitModel.Decorator.unbind(old);
+            SnifitModel.Decorator.rebind(children);
+            modCount++;
+            return old;
+        }
+    }
 }
@@ -0,0 +1,23 @@
+package mtf.snifitapi.parser;
+
+/**
+ * Receives the document events every parser backend produces. Attributes
+ * always belong to the element started last and arrive before its children.
+ */
+interface NodeSink {
+
+    /**
+     * @param lineNumber source line of the start tag, or -1 when unknown
+     */
+    void startElement(String tagName, int lineNumber);
+
+    void attribute(String attrName, String attrValue);
+
+    void endElement(String tagName);
+
+    /**
+     * Character data between two tags, in one piece, and only when it is not
+     * all whitespace. The array is reused once this returns.
+     */
+    void characters(char[] ch, int start, int length);
+}
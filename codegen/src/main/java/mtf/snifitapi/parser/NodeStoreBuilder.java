@@ -0,0 +1,49 @@
+package mtf.snifitapi.parser;
+
+import mtf.snifitapi.model.NodeStore;
+import mtf.snifitapi.model.XmlNode;
+
+/**
+ * Appends one document to a {@link NodeStore} instead of building XmlNodes.
+ * Follows the same rules as {@link NodeTreeBuilder}, so materializing the
+ * store gives the same tree.
+ */
+class NodeStoreBuilder implements NodeSink {
+
+    private final NodeStore store;
+    private final int currentFileIndex;
+
+    NodeStoreBuilder(String currentFileName, NodeStore store) {
+        this.store = store;
+        this.currentFileIndex = XmlNode.sourceFileIndex(currentFileName);
+    }
+
+    NodeStore getStore() {
+        return store;
+    }
+
+    @Override
+    public void startElement(String tagName, int lineNumber) {
+        store.beginElement(tagName, lineNumber >= 0 ? currentFileIndex : -1, lineNumber >= 0 ? lineNumber : 0);
+    }
+
+    @Override
+    public void attribute(String attrName, String attrValue) {
+        store.attribute(attrName, attrValue);
+    }
+
+    @Override
+    public void endElement(String tagName) {
+        int top = store.currentNode();
+        if (top != NodeStore.NONE && store.getTagName(top).equals(tagName)) {
+            store.endElement();
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        if (store.currentNode() != NodeStore.NONE) {
+            store.appendText(new String(ch, start, length));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package mtf.snifitapi.parser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+import mtf.snifitapi.model.SnifitModel;
+import mtf.snifitapi.model.XmlNode;
+
+/**
+ * Builds the {@link XmlNode} tree and id map for one document. Shared by the
+ * parser backends so that they all produce exactly the same model; a backend
+ * only has to translate its own events into these calls.
+ */
+class NodeTreeBuilder implements NodeSink {
+
+    private final List<XmlNode> rootNodes = new ArrayList<>();
+    private final Map<String, XmlNode> idMap = new HashMap<>();
+    private final Stack<XmlNode> stack = new Stack<>();
+    private final int currentFileIndex;
+    private final SymbolTable symbols;
+    private int lineOffset;
+
+    /**
+     * @param symbols table to canonicalize names and values through, or null to
+     *                keep the strings the backend hands over
+     */
+    NodeTreeBuilder(String currentFileName, SymbolTable symbols) {
+        this.currentFileIndex = XmlNode.sourceFileIndex(currentFileName);
+        this.symbols = symbols;
+    }
+
+    /**
+     * Added to every line number, for documents that are a slice of a larger
+     * file.
+     */
+    void setLineOffset(int lineOffset) {
+        this.lineOffset = lineOffset;
+    }
+
+    List<XmlNode> getResult() {
+        return rootNodes;
+    }
+
+    Map<String, XmlNode> getIdMap() {
+        return idMap;
+    }
+
+    @Override
+    public void startElement(String tagName, int lineNumber) {
+        if (symbols != null) {
+            tagName = symbols.intern(tagName);
+        }
+        XmlNode node = SnifitModel.createNode(tagName);
+
+        if (lineNumber >= 0) {
+            node.setSourceLocation(currentFileIndex, lineNumber + lineOffset);
+        }
+
+        if (!stack.isEmpty()) {
+            stack.peek().addChild(node);
+        } else {
+            rootNodes.add(node);
+        }
+
+        stack.push(node);
+    }
+
+    @Override
+    public void attribute(String attrName, String attrValue) {
+        XmlNode node = stack.peek();
+        if (symbols != null) {
+            attrName = symbols.intern(attrName);
+            attrValue = symbols.internValue(attrValue);
+        }
+        if ("id".equals(attrName)) {
+            node.setId(attrValue);
+            idMap.put(attrValue, node);
+        } else if ("refId".equals(attrName)) {
+            node.setRefId(attrValue);
+        } else {
+            node.addAttribute(attrName, attrValue);
+        }
+    }
+
+    @Override
+    public void endElement(String tagName) {
+        if (!stack.isEmpty()) {
+            // Check if poppeing correct tag
+            XmlNode top = stack.peek();
+            if (top.getTagName().equals(tagName)) {
+                stack.pop();
+            } else {
+                // This shouldn't happen in well-formed XML unless logic is flawed
+            }
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        if (!stack.isEmpty()) {
+            stack.peek().appendTextContent(ch, start, length);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package mtf.snifitapi.parser;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+import mtf.snifitapi.model.NodeSource;
+import mtf.snifitapi.model.SnifitModel;
+import mtf.snifitapi.model.XmlNode;
+
+/**
+ * Parses definitions out of prescanned files when they are first asked for.
+ * Each top-level element is parsed at most once; nested ids share the parse
+ * of the element holding them. Create through {@link SnifitParser#prescan}.
+ * Not safe for concurrent use.
+ */
+public class OnDemandNodeSource implements NodeSource {
+
+    private final SnifitParser parser;
+    private final PrescanIndex index;
+    private final Map<PrescanIndex.Entry, Map<String, XmlNode>> loaded = new IdentityHashMap<>();
+    private long loadedBytes;
+
+    OnDemandNodeSource(SnifitParser parser, PrescanIndex index) {
+        this.parser = parser;
+        this.index = index;
+    }
+
+    public PrescanIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public XmlNode load(String id) {
+        PrescanIndex.Entry entry = index.get(id);
+        if (entry == null) {
+            return null;
+        }
+        Map<String, XmlNode> ids = loaded.get(entry);
+        if (ids == null) {
+            ids = parse(entry);
+            loaded.put(entry, ids);
+            loadedBytes += entry.getLength();
+        }
+        return ids.get(id);
+    }
+
+    private Map<String, XmlNode> parse(PrescanIndex.Entry entry) {
+        try {
+            if (entry.isWholeDocument()) {
+                return parser.parse(entry.getFile().toFile()).getIdToNodeMap();
+            }
+            return parser.parseFragment(entry).getIdMap();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IllegalStateException("Cannot parse " + entry + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public SnifitModel loadAll() {
+        SnifitModel model = new SnifitModel();
+        Map<Path, Exception> failures = parser.parseAll(index.getFiles(), model);
+        if (!failures.isEmpty()) {
+            Map.Entry<Path, Exception> first = failures.entrySet().iterator().next();
+            throw new IllegalStateException("Cannot parse " + first.getKey() + ": " + first.getValue().getMessage(),
+                    first.getValue());
+        }
+        return model;
+    }
+
+    /**
+     * Elements parsed so far.
+     */
+    public int getLoadedCount() {
+        return loaded.size();
+    }
+
+    /**
+     * Bytes of XML parsed so far, out of {@link PrescanIndex#getTotalBytes()}.
+     */
+    public long getLoadedBytes() {
+        return loadedBytes;
+    }
+}
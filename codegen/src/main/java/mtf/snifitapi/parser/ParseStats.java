@@ -0,0 +1,94 @@
+package mtf.snifitapi.parser;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals kept by a {@link SnifitParser}, splitting wall time between
+ * creating SAX parsers and actually parsing documents. Safe to update from the
+ * parallel worker threads.
+ */
+public class ParseStats {
+    private final LongAdder parsersCreated = new LongAdder();
+    private final LongAdder parsersReused = new LongAdder();
+    private final LongAdder documents = new LongAdder();
+    private final LongAdder setupNanos = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder prescanNanos = new LongAdder();
+
+    void recordSetup(boolean created, long nanos) {
+        if (created) {
+            parsersCreated.increment();
+        } else {
+            parsersReused.increment();
+        }
+        setupNanos.add(nanos);
+    }
+
+    void recordParse(long nanos) {
+        documents.increment();
+        parseNanos.add(nanos);
+    }
+
+    void recordFallback() {
+        fallbacks.increment();
+    }
+
+    void recordPrescan(long nanos) {
+        prescanNanos.add(nanos);
+    }
+
+    public long getParsersCreated() {
+        return parsersCreated.sum();
+    }
+
+    public long getParsersReused() {
+        return parsersReused.sum();
+    }
+
+    public long getDocuments() {
+        return documents.sum();
+    }
+
+    public long getSetupNanos() {
+        return setupNanos.sum();
+    }
+
+    public long getParseNanos() {
+        return parseNanos.sum();
+    }
+
+    /**
+     * Documents the {@link SnifitParser.Backend#MAPPED} tokenizer handed over to
+     * SAX; each of them is also counted twice in {@link #getDocuments()}.
+     */
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    /**
+     * Time spent building {@link PrescanIndex}es for on-demand parsing.
+     */
+    public long getPrescanNanos() {
+        return prescanNanos.sum();
+    }
+
+    public void reset() {
+        parsersCreated.reset();
+        parsersReused.reset();
+        documents.reset();
+        setupNanos.reset();
+        parseNanos.reset();
+        fallbacks.reset();
+        prescanNanos.reset();
+    }
+
+    @Override
+    public String toString() {
+        String s = String.format(
+                "setup %.1f ms (%d parsers created, %d reused), parse %.1f ms (%d documents, %d fallbacks)",
+                getSetupNanos() / 1e6, getParsersCreated(), getParsersReused(),
+                getParseNanos() / 1e6, getDocuments(), getFallbacks());
+        return getPrescanNanos() > 0 ? s + String.format(", prescan %.1f ms", getPrescanNanos() / 1e6) : s;
+    }
+}
@@ -0,0 +1,151 @@
+package mtf.snifitapi.parser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Where every id in a set of files is declared, found by a byte scan instead of
+ * a parse. Ids map to the child of the document element that holds them (the
+ * element itself for top-level ids): its file, byte offset, length and first
+ * line. As in a full parse, the last declaration of a duplicate id wins.
+ */
+public final class PrescanIndex {
+
+    /**
+     * A top-level element, or a whole document for ids declared on the
+     * document element.
+     */
+    public static final class Entry {
+        private final Path file;
+        private final String encoding;
+        private final long offset;
+        private final int length;
+        private final int line;
+        private final String tagName;
+
+        Entry(Path file, String encoding, long offset, int length, int line, String tagName) {
+            this.file = file;
+            this.encoding = encoding;
+            this.offset = offset;
+            this.length = length;
+            this.line = line;
+            this.tagName = tagName;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public String getEncoding() {
+            return encoding;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        /**
+         * Tag of the element, or null for a whole document.
+         */
+        public String getTagName() {
+            return tagName;
+        }
+
+        public boolean isWholeDocument() {
+            return tagName == null;
+        }
+
+        @Override
+        public String toString() {
+            return file.getFileName() + (isWholeDocument() ? "" : "@" + offset + "+" + length + " line " + line);
+        }
+    }
+
+    private final List<Path> files;
+    private final Map<String, Entry> entries;
+    private final long totalBytes;
+
+    private PrescanIndex(List<Path> files, Map<String, Entry> entries, long totalBytes) {
+        this.files = files;
+        this.entries = entries;
+        this.totalBytes = totalBytes;
+    }
+
+    /**
+     * Scans {@code files} in order.
+     *
+     * @throws IOException if a file cannot be read or its layout is not
+     *                     supported by the scan (the message says why)
+     */
+    public static PrescanIndex build(List<Path> files) throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        long totalBytes = 0;
+        for (Path file : files) {
+            byte[] data = Files.readAllBytes(file);
+            totalBytes += data.length;
+            TopLevelScanner.Result result = TopLevelScanner.scan(data);
+            if (result.failure != null) {
+                throw new IOException(file + ": cannot prescan, " + result.failure);
+            }
+
+            Entry document = new Entry(file, result.encoding, 0, data.length, 1, null);
+            Entry[] spans = new Entry[result.spans.size()];
+            for (Map.Entry<String, Integer> id : result.ids.entrySet()) {
+                int span = id.getValue();
+                Entry entry;
+                if (span == TopLevelScanner.DOCUMENT) {
+                    entry = document;
+                } else {
+                    if (spans[span] == null) {
+                        TopLevelScanner.Span s = result.spans.get(span);
+                        spans[span] = new Entry(file, result.encoding, s.offset, s.length, s.line, s.tagName);
+                    }
+                    entry = spans[span];
+                }
+                entries.put(id.getKey(), entry);
+            }
+        }
+        return new PrescanIndex(Collections.unmodifiableList(new ArrayList<>(files)), entries, totalBytes);
+    }
+
+    /**
+     * The element holding the winning declaration of {@code id}, or null.
+     */
+    public Entry get(String id) {
+        return entries.get(id);
+    }
+
+    public Set<String> ids() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public List<Path> getFiles() {
+        return files;
+    }
+
+    /**
+     * Combined size of the scanned files.
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+}
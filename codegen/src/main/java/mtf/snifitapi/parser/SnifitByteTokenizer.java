@@ -0,0 +1,553 @@
+package mtf.snifitapi.parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import mtf.snifitapi.model.XmlNode;
+
+/**
+ * Specialized reader for the BTT definition dialect: single-byte encodings,
+ * attribute-only elements, comments, and nothing else. The file is memory
+ * mapped and scanned byte by byte; every byte is turned into a char through a
+ * 256-entry table built from the declared encoding, so no JAXP or
+ * {@code Reader} sits in between.
+ * <p>
+ * Anything outside that subset (DOCTYPE, CDATA, processing instructions,
+ * non-whitespace text, unknown entities, multi-byte encodings) as well as any
+ * malformed input makes
+ * {@link #parse()} return {@code false}. The caller then discards the partial
+ * result and parses the file with SAX, which also produces the proper error
+ * message for broken files.
+ */
+public class SnifitByteTokenizer {
+
+    private static final byte WS = 1;
+    private static final byte NAME_START = 2;
+    private static final byte NAME = 4;
+    private static final byte INVALID = 8;
+    /** Byte the single-byte encoding leaves unassigned; decodes to U+FFFD. */
+    private static final byte UNDEFINED = 16;
+
+    private static final Map<Charset, DecodeTable> TABLES = new ConcurrentHashMap<>();
+
+    private final File file;
+    private final NodeSink sink;
+    // Null when the events go to a NodeStore
+    private final NodeTreeBuilder builder;
+    private String fallbackReason;
+
+    private ByteBuffer buf;
+    private int pos;
+    private int limit;
+    private int line;
+    private DecodeTable table;
+    private final List<String> openTags = new ArrayList<>();
+    private final List<String> attrNames = new ArrayList<>();
+    private final List<String> attrValues = new ArrayList<>();
+    private final StringBuilder valueBuilder = new StringBuilder();
+
+    public SnifitByteTokenizer(File file) {
+        this(file, (SymbolTable) null);
+    }
+
+    /**
+     * @param symbols table shared with other documents to canonicalize names and
+     *                values through, or null for none
+     */
+    public SnifitByteTokenizer(File file, SymbolTable symbols) {
+        this(file, new NodeTreeBuilder(file.getName(), symbols));
+    }
+
+    /**
+     * Sends the events to {@code sink}; the XmlNode accessors only work when it
+     * is a {@link NodeTreeBuilder}.
+     */
+    SnifitByteTokenizer(File file, NodeSink sink) {
+        this.file = file;
+        this.sink = sink;
+        this.builder = sink instanceof NodeTreeBuilder ? (NodeTreeBuilder) sink : null;
+    }
+
+    public List<XmlNode> getResult() {
+        return getBuilder().getResult();
+    }
+
+    public Map<String, XmlNode> getIdMap() {
+        return getBuilder().getIdMap();
+    }
+
+    NodeTreeBuilder getBuilder() {
+        if (builder == null) {
+            throw new IllegalStateException("Parsed into a NodeStore, there is no XmlNode result");
+        }
+        return builder;
+    }
+
+    /**
+     * Why the last {@link #parse()} gave up, or null if it succeeded.
+     */
+    public String getFallbackReason() {
+        return fallbackReason;
+    }
+
+    /**
+     * Tokenizes the whole file.
+     *
+     * @return true on success; false if the file needs the full XML parser, in
+     *         which case the partial result must not be used
+     */
+    public boolean parse() throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                fallbackReason = "file too large to map";
+                return false;
+            }
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        pos = 0;
+        limit = buf.limit();
+        line = 1;
+        table = tableFor(StandardCharsets.UTF_8);
+
+        try {
+            document();
+            fallbackReason = null;
+            return true;
+        } catch (Unsupported e) {
+            fallbackReason = e.getMessage() + " at line " + line;
+            return false;
+        } finally {
+            buf = null;
+        }
+    }
+
+    private void document() throws Unsupported {
+        if (limit > 0 && (at(0) == 0xEF || at(0) == 0xFE || at(0) == 0xFF)) {
+            throw new Unsupported("byte order mark");
+        }
+        if (startsWith("<?xml") && (flags(peek(5)) & WS) != 0) {
+            xmlDeclaration();
+        }
+
+        boolean seenRoot = false;
+        while (pos < limit) {
+            int b = at(pos);
+            if (b == '<') {
+                int next = peek(1);
+                if (next == '/') {
+                    endTag();
+                } else if (next == '!') {
+                    if (!startsWith("<!--")) {
+                        throw new Unsupported("DOCTYPE or CDATA section");
+                    }
+                    comment();
+                } else if (next == '?') {
+                    throw new Unsupported("processing instruction");
+                } else {
+                    if (openTags.isEmpty() && seenRoot) {
+                        throw new Unsupported("content after the root element");
+                    }
+                    seenRoot = true;
+                    startTag();
+                }
+            } else if ((flags(b) & WS) != 0) {
+                whitespace();
+            } else {
+                throw new Unsupported("character data");
+            }
+        }
+
+        if (!seenRoot || !openTags.isEmpty()) {
+            throw new Unsupported("incomplete document");
+        }
+    }
+
+    private void xmlDeclaration() throws Unsupported {
+        pos += 5;
+        String encoding = null;
+        while (true) {
+            whitespace();
+            if (startsWith("?>")) {
+                pos += 2;
+                break;
+            }
+            String name = name();
+            whitespace();
+            expect('=');
+            whitespace();
+            String value = attributeValue();
+            if ("encoding".equals(name)) {
+                encoding = value;
+            }
+        }
+
+        if (encoding != null) {
+            Charset charset;
+            try {
+                charset = Charset.forName(encoding);
+            } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                throw new Unsupported("unknown encoding " + encoding);
+            }
+            // UTF-8 is fine as long as the file stays ASCII: the table rejects every
+            // byte above 0x7F. Other multi-byte encodings could hide '<' or '"' inside
+            // a character, so they are not scanned at all.
+            if (!charset.equals(StandardCharsets.UTF_8) && charset.newEncoder().maxBytesPerChar() > 1) {
+                throw new Unsupported("multi-byte encoding " + encoding);
+            }
+            table = tableFor(charset);
+        }
+    }
+
+    private void startTag() throws Unsupported {
+        pos++;
+        String tagName = name();
+        attrNames.clear();
+        attrValues.clear();
+
+        boolean empty;
+        while (true) {
+            boolean separated = whitespace();
+            int b = peek(0);
+            if (b == '>') {
+                pos++;
+                empty = false;
+                break;
+            }
+            if (b == '/') {
+                pos++;
+                expect('>');
+                empty = true;
+                break;
+            }
+            if (!separated) {
+                throw new Unsupported("malformed start tag");
+            }
+            String attrName = name();
+            whitespace();
+            expect('=');
+            whitespace();
+            String attrValue = attributeValue();
+            if (attrNames.contains(attrName)) {
+                throw new Unsupported("duplicate attribute " + attrName);
+            }
+            attrNames.add(attrName);
+            attrValues.add(attrValue);
+        }
+
+        // SAX reports the line on which the start tag ends, and so do we
+        sink.startElement(tagName, line);
+        for (int i = 0; i < attrNames.size(); i++) {
+            sink.attribute(attrNames.get(i), attrValues.get(i));
+        }
+
+        if (empty) {
+            sink.endElement(tagName);
+        } else {
+            openTags.add(tagName);
+        }
+    }
+
+    private void endTag() throws Unsupported {
+        pos += 2;
+        String tagName = name();
+        whitespace();
+        expect('>');
+
+        if (openTags.isEmpty() || !openTags.get(openTags.size() - 1).equals(tagName)) {
+            throw new Unsupported("mismatched end tag " + tagName);
+        }
+        openTags.remove(openTags.size() - 1);
+        sink.endElement(tagName);
+    }
+
+    private void comment() throws Unsupported {
+        pos += 4;
+        while (pos < limit) {
+            int b = at(pos);
+            if (b == '-' && peek(1) == '-') {
+                if (peek(2) != '>') {
+                    throw new Unsupported("'--' inside comment");
+                }
+                pos += 3;
+                return;
+            }
+            if ((flags(b) & INVALID) != 0) {
+                throw new Unsupported("illegal character in comment");
+            }
+            newline(b);
+        }
+        throw new Unsupported("unterminated comment");
+    }
+
+    /**
+     * Skips whitespace, counting lines.
+     *
+     * @return whether anything was skipped
+     */
+    private boolean whitespace() {
+        int start = pos;
+        while (pos < limit) {
+            int b = at(pos);
+            if ((flags(b) & WS) == 0) {
+                break;
+            }
+            newline(b);
+        }
+        return pos > start;
+    }
+
+    /**
+     * Advances past the byte at {@code pos}, treating CR, LF and CRLF as a single
+     * line break like the XML end-of-line rules do.
+     */
+    private void newline(int b) {
+        pos++;
+        if (b == '\n') {
+            line++;
+        } else if (b == '\r') {
+            line++;
+            if (pos < limit && at(pos) == '\n') {
+                pos++;
+            }
+        }
+    }
+
+    private String name() throws Unsupported {
+        int start = pos;
+        if (pos >= limit || (flags(at(pos)) & NAME_START) == 0) {
+            throw new Unsupported("malformed name");
+        }
+        pos++;
+        while (pos < limit && (flags(at(pos)) & NAME) != 0) {
+            pos++;
+        }
+        return decode(start, pos);
+    }
+
+    private String attributeValue() throws Unsupported {
+        int quote = peek(0);
+        if (quote != '"' && quote != '\'') {
+            throw new Unsupported("unquoted attribute value");
+        }
+        pos++;
+        int start = pos;
+
+        // Fast path: nothing to normalize, decode the bytes in one go
+        while (pos < limit) {
+            int b = at(pos);
+            if (b == quote) {
+                String value = decode(start, pos);
+                pos++;
+                return value;
+            }
+            if (b == '&' || b == '<' || b == '\t' || b == '\n' || b == '\r' || (flags(b) & INVALID) != 0) {
+                break;
+            }
+            pos++;
+        }
+
+        valueBuilder.setLength(0);
+        for (int i = start; i < pos; i++) {
+            valueBuilder.append(table.chars[at(i)]);
+        }
+        while (pos < limit) {
+            int b = at(pos);
+            if (b == quote) {
+                pos++;
+                return valueBuilder.toString();
+            }
+            if (b == '<' || (flags(b) & INVALID) != 0) {
+                throw new Unsupported("illegal character in attribute value");
+            }
+            if (b == '&') {
+                reference();
+            } else if ((flags(b) & WS) != 0) {
+                // Attribute value normalization: every whitespace char, and CRLF as a
+                // whole, becomes a single space
+                newline(b);
+                valueBuilder.append(' ');
+            } else {
+                valueBuilder.append(table.chars[b]);
+                pos++;
+            }
+        }
+        throw new Unsupported("unterminated attribute value");
+    }
+
+    private void reference() throws Unsupported {
+        int end = pos + 1;
+        while (end < limit && at(end) != ';' && end - pos < 12) {
+            end++;
+        }
+        if (end >= limit || at(end) != ';') {
+            throw new Unsupported("malformed reference");
+        }
+        String ref = decode(pos + 1, end);
+        pos = end + 1;
+
+        switch (ref) {
+            case "lt":
+                valueBuilder.append('<');
+                return;
+            case "gt":
+                valueBuilder.append('>');
+                return;
+            case "amp":
+                valueBuilder.append('&');
+                return;
+            case "quot":
+                valueBuilder.append('"');
+                return;
+            case "apos":
+                valueBuilder.append('\'');
+                return;
+            default:
+                break;
+        }
+        if (!ref.startsWith("#")) {
+            throw new Unsupported("entity reference &" + ref + ";");
+        }
+        boolean hex = ref.startsWith("#x");
+        int codePoint = 0;
+        int digits = 0;
+        for (int i = hex ? 2 : 1; i < ref.length(); i++) {
+            char c = ref.charAt(i);
+            int digit = c >= '0' && c <= '9' ? c - '0'
+                    : hex && c >= 'a' && c <= 'f' ? c - 'a' + 10
+                    : hex && c >= 'A' && c <= 'F' ? c - 'A' + 10 : -1;
+            if (digit < 0) {
+                digits = 0;
+                break;
+            }
+            // Stops before overflowing; anything this large is no character
+            codePoint = Math.min(codePoint * (hex ? 16 : 10) + digit, 0x110000);
+            digits++;
+        }
+        // SAX rejects references to anything outside the XML Char production,
+        // such as &#0;, surrogates and values past U+10FFFF; leave those to it
+        if (digits == 0 || !isXmlChar(codePoint)) {
+            throw new Unsupported("malformed character reference &" + ref + ";");
+        }
+        valueBuilder.appendCodePoint(codePoint);
+    }
+
+    private static boolean isXmlChar(int c) {
+        return c == 0x9 || c == 0xA || c == 0xD || (c >= 0x20 && c <= 0xD7FF) || (c >= 0xE000 && c <= 0xFFFD)
+                || (c >= 0x10000 && c <= 0x10FFFF);
+    }
+
+    private void expect(char c) throws Unsupported {
+        if (peek(0) != c) {
+            throw new Unsupported("expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private boolean startsWith(String s) {
+        if (pos + s.length() > limit) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (at(pos + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String decode(int from, int to) {
+        char[] chars = new char[to - from];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = table.chars[at(from + i)];
+        }
+        return new String(chars);
+    }
+
+    private int at(int index) {
+        return buf.get(index) & 0xFF;
+    }
+
+    /** Byte at {@code pos + offset}, or -1 past the end of the file. */
+    private int peek(int offset) {
+        return pos + offset < limit ? at(pos + offset) : -1;
+    }
+
+    private byte flags(int b) {
+        return b < 0 ? 0 : table.flags[b];
+    }
+
+    private static DecodeTable tableFor(Charset charset) {
+        return TABLES.computeIfAbsent(charset, DecodeTable::new);
+    }
+
+    /**
+     * Char and character-class lookup for every byte value of one encoding.
+     */
+    private static final class DecodeTable {
+        final char[] chars = new char[256];
+        final byte[] flags = new byte[256];
+
+        DecodeTable(Charset charset) {
+            // A UTF-8 file must be ASCII to be scanned byte-wise. Single-byte
+            // encodings may leave values unassigned (our files carry stray UTF-8
+            // Hebrew under an ISO-8859-8 declaration); SAX reads each such byte as
+            // U+FFFD, so the table does too.
+            boolean utf8 = charset.equals(StandardCharsets.UTF_8);
+            CharsetDecoder decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT);
+            for (int b = 0; b < 256; b++) {
+                char c;
+                try {
+                    CharBuffer decoded = decoder.reset().decode(ByteBuffer.wrap(new byte[] { (byte) b }));
+                    c = decoded.length() == 1 ? decoded.get(0) : '\uFFFD';
+                } catch (CharacterCodingException e) {
+                    c = '\uFFFD';
+                }
+                if (c == '\uFFFD') {
+                    chars[b] = c;
+                    flags[b] = utf8 ? INVALID : UNDEFINED;
+                    continue;
+                }
+
+                chars[b] = c;
+                if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                    flags[b] = WS;
+                } else if (c < 0x20) {
+                    flags[b] = INVALID;
+                } else if (Character.isLetter(c) || c == '_' || c == ':') {
+                    flags[b] = NAME_START | NAME;
+                } else if (Character.isDigit(c) || c == '-' || c == '.' || c == 0xB7) {
+                    flags[b] = NAME;
+                }
+            }
+        }
+    }
+
+    /**
+     * Thrown internally when the input leaves the supported subset.
+     */
+    private static final class Unsupported extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported(String reason) {
+            super(reason, null, false, false);
+        }
+    }
+}
@@ -1,20 +1,139 @@
 package mtf.snifitapi.parser;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import mtf.snifitapi.model.NodeSource;
+import mtf.snifitapi.model.NodeStore;
 import mtf.snifitapi.model.SnifitModel;
 import mtf.snifitapi.model.XmlNode;
 
 public class SnifitParser {
 
+    /**
+     * Which XML reader turns the files into {@link XmlNode}s; all build the same
+     * model. SAX is the default: on the bundled xmls the JDK's StAX reader is no
+     * faster, and it is usually slightly slower.
+     */
+    public enum Backend {
+        /** Push parsing through {@link SnifitSaxHandler}. */
+        SAX,
+        /** Pull parsing through {@link SnifitStaxReader}. */
+        STAX,
+        /**
+         * Memory-mapped byte scanning through {@link SnifitByteTokenizer}, falling
+         * back to SAX for files it cannot handle.
+         */
+        MAPPED
+    }
+
+    /** Files at least this large are split once splitting is switched on. */
+    public static final long DEFAULT_SPLIT_THRESHOLD = 4L << 20;
+
+    // Chunks per split thread, so that one slow chunk does not hold up the rest
+    private static final int CHUNKS_PER_THREAD = 4;
+    // Wraps a run of top-level elements so that it parses as a document
+    private static final String CHUNK_TAG = "snifit.chunk";
+
+    // One parser per thread, reset between documents. SAXParser is not thread safe,
+    // and creating one (factory lookup included) costs more than parsing a small file.
+    private final ThreadLocal<SAXParser> parsers = new ThreadLocal<>();
+    private final ThreadLocal<XMLInputFactory> inputFactories = new ThreadLocal<>();
+    private final ParseStats stats = new ParseStats();
+    private SymbolTable symbols = new SymbolTable();
+    private Backend backend = Backend.SAX;
+    private long splitThreshold = DEFAULT_SPLIT_THRESHOLD;
+    // Off by default: each split file gets a pool of its own
+    private int splitThreads = 1;
+
+    public ParseStats getStats() {
+        return stats;
+    }
+
+    /**
+     * The table shared by every document this parser reads, or null when
+     * interning is switched off.
+     */
+    public SymbolTable getSymbolTable() {
+        return symbols;
+    }
+
+    /**
+     * Turns symbol interning on (the default) with a fresh table, or off.
+     */
+    public void setInternSymbols(boolean intern) {
+        this.symbols = intern ? new SymbolTable() : null;
+    }
+
+    public Backend getBackend() {
+        return backend;
+    }
+
+    public void setBackend(Backend backend) {
+        this.backend = backend;
+    }
+
+    public long getSplitThreshold() {
+        return splitThreshold;
+    }
+
+    /**
+     * Files of at least {@code bytes} are split between the children of their
+     * document element and the pieces parsed concurrently on
+     * {@link #setSplitThreads(int)} threads, whatever the backend. Only
+     * XmlNode models are split; files that cannot be split are parsed whole.
+     */
+    public void setSplitThreshold(long bytes) {
+        this.splitThreshold = bytes;
+    }
+
+    public int getSplitThreads() {
+        return splitThreads;
+    }
+
+    /**
+     * Threads for parsing one split file; 1, the default, turns splitting
+     * off. Every split file starts and stops a pool of this many threads, so
+     * this is meant for a few large files rather than for
+     * {@link #parseInto(List, SnifitModel, int)}, which already parses files
+     * concurrently.
+     */
+    public void setSplitThreads(int threads) {
+        this.splitThreads = threads;
+    }
+
     public SnifitModel parse(File file) throws ParserConfigurationException, SAXException, IOException {
         SnifitModel model = new SnifitModel();
         parseInto(file, model);
@@ -22,13 +141,335 @@ public class SnifitParser {
     }
 
     public void parseInto(File file, SnifitModel model) throws ParserConfigurationException, SAXException, IOException {
-        SAXParserFactory factory = SAXParserFactory.newInstance();
-        SAXParser saxParser = factory.newSAXParser();
-        SnifitSaxHandler handler = new SnifitSaxHandler(file);
+        merge(parseFile(file, model), model);
+    }
+
+    /**
+     * Parses the given files one after another on the calling thread, reusing a
+     * single SAX parser for all of them.
+     *
+     * @return the files that failed to parse, with their errors, in iteration order
+     */
+    public Map<Path, Exception> parseAll(Collection<Path> files, SnifitModel model) {
+        Map<Path, Exception> failures = new LinkedHashMap<>();
+        for (Path path : files) {
+            try {
+                parseInto(path.toFile(), model);
+            } catch (Exception e) {
+                failures.put(path, e);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Parses the given files on a pool of at most {@code threads} workers. Every
+     * file gets its own handler; results are merged into the model in list order,
+     * so root node order and duplicate id resolution (last file wins) are the same
+     * as calling {@link #parseInto(File, SnifitModel)} for each file in turn.
+     *
+     * @return the files that failed to parse, with their errors, in list order
+     */
+    public Map<File, Exception> parseInto(List<File> files, SnifitModel model, int threads)
+            throws InterruptedException {
+        Map<File, Exception> failures = new LinkedHashMap<>();
+        if (files.isEmpty()) {
+            return failures;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+        try {
+            List<Future<NodeSink>> results = new ArrayList<>(files.size());
+            for (File file : files) {
+                results.add(pool.submit(() -> parseFile(file, model)));
+            }
+
+            // Merge on the calling thread while the workers are still busy with later
+            // files. Only this thread touches the model, so it needs no locking.
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    merge(results.get(i).get(), model);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    failures.put(files.get(i), cause instanceof Exception ? (Exception) cause : e);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return failures;
+    }
 
-        saxParser.parse(file, handler);
+    /**
+     * Prescans {@code files} and returns a source that parses single
+     * definitions from them when they are asked for. Wrap it in
+     * {@link SnifitModel#SnifitModel(NodeSource)} so that only what a caller
+     * looks up, and what that references, is ever parsed.
+     *
+     * @throws IOException if a file cannot be read, or cannot be prescanned (an
+     *                     encoding that is not ASCII compatible, for one); parse
+     *                     such files up front instead
+     */
+    public OnDemandNodeSource prescan(List<Path> files) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return new OnDemandNodeSource(this, PrescanIndex.build(files));
+        } finally {
+            stats.recordPrescan(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Parses one prescanned element on its own, with SAX whatever the backend.
+     * The slice is given the file's XML declaration on its first line, so line
+     * numbers only need shifting by the line the element starts on.
+     */
+    NodeTreeBuilder parseFragment(PrescanIndex.Entry entry)
+            throws ParserConfigurationException, SAXException, IOException {
+        byte[] data = new byte[entry.getLength()];
+        try (FileChannel channel = FileChannel.open(entry.getFile(), StandardOpenOption.READ)) {
+            ByteBuffer slice = ByteBuffer.wrap(data);
+            long position = entry.getOffset();
+            while (slice.hasRemaining()) {
+                int n = channel.read(slice, position);
+                if (n < 0) {
+                    throw new IOException(entry + ": file is shorter than when it was prescanned");
+                }
+                position += n;
+            }
+        }
+        InputStream document = slice(entry.getEncoding(), "", data, 0, data.length, "");
+        return parseSlice(entry.getFile().toFile(), document, entry.getLine() - 1);
+    }
+
+    /**
+     * Splits a large file between the children of its document element and
+     * parses runs of them concurrently, each wrapped in a synthetic element
+     * behind the file's XML declaration. The document element itself comes
+     * from parsing everything before its first child, closed right there.
+     *
+     * @return the assembled tree, or null if the file cannot be split
+     */
+    private NodeTreeBuilder parseFileSplit(File file) throws ParserConfigurationException, SAXException, IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        TopLevelScanner.Result scan = TopLevelScanner.scan(data);
+        if (scan.failure != null || scan.spans.size() < 2) {
+            return null;
+        }
+        List<TopLevelScanner.Span> spans = scan.spans;
+
+        // Cut at span starts into runs of roughly equal size; every byte between
+        // the first child and the end tag of the document element lands in
+        // exactly one run, so text directly inside it is kept in order
+        int chunkCount = Math.min(spans.size(), splitThreads * CHUNKS_PER_THREAD);
+        long target = (scan.rootEnd - spans.get(0).offset) / chunkCount + 1;
+        List<Integer> cuts = new ArrayList<>();
+        cuts.add(0);
+        for (int i = 1; i < spans.size(); i++) {
+            if (spans.get(i).offset - spans.get(cuts.get(cuts.size() - 1)).offset >= target) {
+                cuts.add(i);
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(splitThreads, cuts.size() + 1));
+        try {
+            InputStream head = slice(null, "", data, 0, spans.get(0).offset, "</" + scan.rootTag + ">");
+            Future<NodeTreeBuilder> headResult = pool.submit(() -> parseSlice(file, head, 0));
+            List<Future<NodeTreeBuilder>> chunkResults = new ArrayList<>(cuts.size());
+            for (int c = 0; c < cuts.size(); c++) {
+                TopLevelScanner.Span first = spans.get(cuts.get(c));
+                int end = c + 1 < cuts.size() ? spans.get(cuts.get(c + 1)).offset : scan.rootEnd;
+                InputStream chunk = slice(scan.encoding, "<" + CHUNK_TAG + ">", data, first.offset, end,
+                        "</" + CHUNK_TAG + ">");
+                chunkResults.add(pool.submit(() -> parseSlice(file, chunk, first.line - 1)));
+            }
+
+            NodeTreeBuilder builder = headResult.get();
+            XmlNode root = builder.getResult().get(0);
+            for (Future<NodeTreeBuilder> chunkResult : chunkResults) {
+                NodeTreeBuilder chunk = chunkResult.get();
+                XmlNode wrapper = chunk.getResult().get(0);
+                for (XmlNode child : wrapper.getChildren()) {
+                    root.addChild(child);
+                }
+                if (!wrapper.getTextContent().isEmpty()) {
+                    root.appendTextContent(wrapper.getTextContent());
+                }
+                builder.getIdMap().putAll(chunk.getIdMap());
+            }
+            return builder;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SAXException) {
+                throw (SAXException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof ParserConfigurationException) {
+                throw (ParserConfigurationException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while parsing " + file.getName());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * {@code data[from, to)} between {@code prefix} and {@code suffix}, behind an
+     * XML declaration for {@code encoding} unless that is null. The declaration
+     * and prefix share the first line, so the slice keeps its line numbers
+     * relative to its first byte. Reads straight from {@code data}, no copy.
+     */
+    private static InputStream slice(String encoding, String prefix, byte[] data, int from, int to, String suffix) {
+        String declaration = encoding != null ? "<?xml version=\"1.0\" encoding=\"" + encoding + "\"?>" : "";
+        return new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                new ByteArrayInputStream((declaration + prefix).getBytes(StandardCharsets.US_ASCII)),
+                new ByteArrayInputStream(data, from, to - from),
+                new ByteArrayInputStream(suffix.getBytes(StandardCharsets.US_ASCII)))));
+    }
+
+    private NodeTreeBuilder parseSlice(File file, InputStream document, int lineOffset)
+            throws ParserConfigurationException, SAXException, IOException {
+        NodeTreeBuilder builder = new NodeTreeBuilder(file.getName(), symbols);
+        builder.setLineOffset(lineOffset);
+        SAXParser saxParser = acquireParser();
+        InputSource source = new InputSource(document);
+        source.setSystemId(file.toURI().toString());
+
+        long start = System.nanoTime();
+        try {
+            saxParser.parse(source, new SnifitSaxHandler(builder));
+        } finally {
+            stats.recordParse(System.nanoTime() - start);
+            saxParser.reset();
+        }
+        return builder;
+    }
+
+    /**
+     * Parses one file into a fresh sink of the kind the model needs: an XmlNode
+     * tree, or a NodeStore of its own for store-backed models. Nothing is added
+     * to the model yet, so this can run on any thread.
+     */
+    private NodeSink parseFile(File file, SnifitModel model)
+            throws ParserConfigurationException, SAXException, IOException {
+        if (model.getStore() == null && splitThreads > 1 && file.length() >= splitThreshold) {
+            NodeTreeBuilder split = parseFileSplit(file);
+            if (split != null) {
+                return split;
+            }
+        }
+        NodeSink sink = newSink(file, model);
+        switch (backend) {
+            case STAX:
+                parseFileStax(file, sink);
+                return sink;
+            case MAPPED:
+                if (parseFileMapped(file, sink)) {
+                    return sink;
+                }
+                stats.recordFallback();
+                sink = newSink(file, model);
+                break;
+            default:
+                break;
+        }
+        parseFileSax(file, sink);
+        return sink;
+    }
+
+    private NodeSink newSink(File file, SnifitModel model) {
+        if (model.getStore() != null) {
+            // Always on heap: it only lives until it is appended to the model's store
+            return new NodeStoreBuilder(file.getName(), new NodeStore());
+        }
+        return new NodeTreeBuilder(file.getName(), symbols);
+    }
+
+    private void merge(NodeSink sink, SnifitModel model) {
+        if (sink instanceof NodeStoreBuilder) {
+            model.appendToStore(((NodeStoreBuilder) sink).getStore());
+        } else {
+            NodeTreeBuilder builder = (NodeTreeBuilder) sink;
+            model.addRootNodes(builder.getResult());
+            model.addIdToNodeMap(builder.getIdMap());
+        }
+    }
+
+    private void parseFileSax(File file, NodeSink sink) throws ParserConfigurationException, SAXException, IOException {
+        SAXParser saxParser = acquireParser();
+        SnifitSaxHandler handler = new SnifitSaxHandler(sink);
+
+        long start = System.nanoTime();
+        try {
+            saxParser.parse(file, handler);
+        } finally {
+            stats.recordParse(System.nanoTime() - start);
+            saxParser.reset();
+        }
+    }
+
+    private void parseFileStax(File file, NodeSink sink) throws IOException, SAXException {
+        XMLInputFactory factory = acquireInputFactory();
+        SnifitStaxReader staxReader = new SnifitStaxReader(sink);
+
+        long start = System.nanoTime();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+            XMLStreamReader reader = factory.createXMLStreamReader(file.toURI().toString(), in);
+            try {
+                staxReader.read(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            // Report through the same exception type as the SAX backend
+            throw new SAXException(file.getName() + ": " + e.getMessage(), e);
+        } finally {
+            stats.recordParse(System.nanoTime() - start);
+        }
+    }
+
+    private boolean parseFileMapped(File file, NodeSink sink) throws IOException {
+        SnifitByteTokenizer tokenizer = new SnifitByteTokenizer(file, sink);
+
+        long start = System.nanoTime();
+        try {
+            return tokenizer.parse();
+        } finally {
+            stats.recordParse(System.nanoTime() - start);
+        }
+    }
+
+    private XMLInputFactory acquireInputFactory() {
+        long start = System.nanoTime();
+        XMLInputFactory factory = inputFactories.get();
+        boolean created = factory == null;
+        if (created) {
+            factory = XMLInputFactory.newInstance();
+            // Match the SAX defaults: qualified names are reported as written
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+            inputFactories.set(factory);
+        }
+        stats.recordSetup(created, System.nanoTime() - start);
+        return factory;
+    }
 
-        model.addRootNodes(handler.getResult());
-        model.addIdToNodeMap(handler.getIdMap());
+    private SAXParser acquireParser() throws ParserConfigurationException, SAXException {
+        long start = System.nanoTime();
+        SAXParser saxParser = parsers.get();
+        boolean created = saxParser == null;
+        if (created) {
+            saxParser = SAXParserFactory.newInstance().newSAXParser();
+            parsers.set(saxParser);
+        }
+        stats.recordSetup(created, System.nanoTime() - start);
+        return saxParser;
     }
 }
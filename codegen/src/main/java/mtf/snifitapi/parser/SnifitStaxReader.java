@@ -0,0 +1,113 @@
+package mtf.snifitapi.parser;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import mtf.snifitapi.model.XmlNode;
+
+/**
+ * Pull-parsing counterpart of {@link SnifitSaxHandler}. Walks an
+ * {@link XMLStreamReader} and builds the same node tree, id map and source
+ * locations, reading attributes straight off the reader instead of through a
+ * SAX {@code Attributes} object.
+ */
+public class SnifitStaxReader {
+
+    private final NodeSink sink;
+    // Null when the events go to a NodeStore
+    private final NodeTreeBuilder builder;
+    private final TextBuffer text = new TextBuffer();
+
+    public SnifitStaxReader(File file) {
+        this(file, null);
+    }
+
+    /**
+     * @param symbols table shared with other documents to canonicalize names and
+     *                values through, or null for none
+     */
+    public SnifitStaxReader(File file, SymbolTable symbols) {
+        this(new NodeTreeBuilder(file.getName(), symbols));
+    }
+
+    public SnifitStaxReader() {
+        this(new NodeTreeBuilder("unknown", null));
+    }
+
+    /**
+     * Sends the events to {@code sink}; the XmlNode accessors only work when it
+     * is a {@link NodeTreeBuilder}.
+     */
+    SnifitStaxReader(NodeSink sink) {
+        this.sink = sink;
+        this.builder = sink instanceof NodeTreeBuilder ? (NodeTreeBuilder) sink : null;
+    }
+
+    public List<XmlNode> getResult() {
+        return getBuilder().getResult();
+    }
+
+    public Map<String, XmlNode> getIdMap() {
+        return getBuilder().getIdMap();
+    }
+
+    NodeTreeBuilder getBuilder() {
+        if (builder == null) {
+            throw new IllegalStateException("Parsed into a NodeStore, there is no XmlNode result");
+        }
+        return builder;
+    }
+
+    /**
+     * Consumes the reader up to the end of the document. The caller owns the
+     * reader and its underlying stream.
+     */
+    public void read(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT: {
+                    String tagName = reader.getLocalName();
+                    String prefix = reader.getPrefix();
+                    if (prefix != null && !prefix.isEmpty()) {
+                        tagName = prefix + ":" + tagName;
+                    }
+                    text.flush(sink);
+                    sink.startElement(tagName, reader.getLocation().getLineNumber());
+
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        String attrName = reader.getAttributeLocalName(i);
+                        String attrPrefix = reader.getAttributePrefix(i);
+                        if (attrPrefix != null && !attrPrefix.isEmpty()) {
+                            attrName = attrPrefix + ":" + attrName;
+                        }
+                        sink.attribute(attrName, reader.getAttributeValue(i));
+                    }
+                    break;
+                }
+                case XMLStreamConstants.END_ELEMENT: {
+                    String tagName = reader.getLocalName();
+                    String prefix = reader.getPrefix();
+                    if (prefix != null && !prefix.isEmpty()) {
+                        tagName = prefix + ":" + tagName;
+                    }
+                    text.flush(sink);
+                    sink.endElement(tagName);
+                    break;
+                }
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                default:
+                    break;
+            }
+        }
+        text.flush(sink);
+    }
+}
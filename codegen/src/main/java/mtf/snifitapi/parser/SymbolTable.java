@@ -0,0 +1,82 @@
+package mtf.snifitapi.parser;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Canonical instances for the strings a parse produces over and over: tag
+ * names, attribute names and the attribute values that keep recurring, such as
+ * {@code length="4"}, {@code codeSet="Cp037"}, shared {@code dataName}s and the
+ * {@code refId}s that repeat the ids they point to. One table is shared by all
+ * documents and threads of a {@link SnifitParser}, so equal strings across
+ * files end up as one object in the model.
+ */
+public class SymbolTable {
+
+    /** Longer attribute values are free text and rarely repeat, so they are kept as they are. */
+    public static final int MAX_VALUE_LENGTH = 64;
+
+    private final ConcurrentHashMap<String, String> symbols = new ConcurrentHashMap<>();
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+
+    /**
+     * Returns the canonical instance equal to {@code s}, registering {@code s}
+     * itself if it is the first one.
+     */
+    public String intern(String s) {
+        lookups.increment();
+        String canonical = symbols.putIfAbsent(s, s);
+        if (canonical == null) {
+            return s;
+        }
+        if (canonical != s) {
+            // The parser handed us a fresh copy, which now becomes garbage
+            duplicates.increment();
+            bytesSaved.add(estimateBytes(s));
+        }
+        return canonical;
+    }
+
+    public String internValue(String value) {
+        return value.length() <= MAX_VALUE_LENGTH ? intern(value) : value;
+    }
+
+    public int size() {
+        return symbols.size();
+    }
+
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    /**
+     * Heap no longer retained by the model because duplicates were replaced by
+     * their canonical instance, estimated for a 64-bit JVM with compressed oops
+     * and compact strings.
+     */
+    public long getBytesSaved() {
+        return bytesSaved.sum();
+    }
+
+    static long estimateBytes(String s) {
+        boolean latin1 = true;
+        for (int i = 0; i < s.length() && latin1; i++) {
+            latin1 = s.charAt(i) < 256;
+        }
+        long array = 16 + (long) s.length() * (latin1 ? 1 : 2);
+        // String object (header, value, hash, coder) plus its aligned byte[]
+        return 24 + ((array + 7) & ~7L);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d symbols, %d lookups, %d duplicates folded, %.1f KB saved",
+                size(), getLookups(), getDuplicates(), getBytesSaved() / 1024.0);
+    }
+}
@@ -0,0 +1,46 @@
+package mtf.snifitapi.parser;
+
+/**
+ * Collects the character data between two tags, which parsers may deliver in
+ * several pieces, so that a backend can pass it on as one run, and only when
+ * it is more than whitespace. Indentation between elements, the bulk of our
+ * files, is checked in place and never turned into a String. The buffer is
+ * reused for the whole document.
+ */
+final class TextBuffer {
+
+    private char[] chars = new char[256];
+    private int length;
+    private boolean blank = true;
+
+    void append(char[] ch, int start, int count) {
+        if (blank) {
+            for (int i = start, end = start + count; i < end; i++) {
+                // Same notion of whitespace as String.trim()
+                if (ch[i] > ' ') {
+                    blank = false;
+                    break;
+                }
+            }
+        }
+        if (length + count > chars.length) {
+            char[] grown = new char[Math.max(chars.length * 2, length + count)];
+            System.arraycopy(chars, 0, grown, 0, length);
+            chars = grown;
+        }
+        System.arraycopy(ch, start, chars, length, count);
+        length += count;
+    }
+
+    /**
+     * Hands the collected run to {@code sink} unless it is all whitespace, and
+     * empties the buffer. Call before every start and end tag.
+     */
+    void flush(NodeSink sink) {
+        if (!blank) {
+            sink.characters(chars, 0, length);
+        }
+        length = 0;
+        blank = true;
+    }
+}
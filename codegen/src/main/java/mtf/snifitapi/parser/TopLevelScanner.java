@@ -0,0 +1,356 @@
+package mtf.snifitapi.parser;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cheap byte scan of a document that finds the children of the document
+ * element without building anything: for each one its byte range, the line
+ * its start tag begins on and its tag name, plus every {@code id} declared in
+ * the document and which of those children holds it.
+ * <p>
+ * Comments, CDATA sections, processing instructions and quoted attribute
+ * values are skipped, so markup inside them is never mistaken for an element.
+ * Only encodings that keep XML markup in single ASCII bytes are supported.
+ * Those, a DOCTYPE (whose entities a slice of the document could not see) and
+ * ids written with character references make the scan fail with a reason
+ * rather than guess.
+ */
+final class TopLevelScanner {
+
+    /** Span index for ids declared on the document element itself. */
+    static final int DOCUMENT = -1;
+
+    private static final byte[] ASCII_MARKUP = "<>/=?!-[]\"' \t\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * One child of the document element.
+     */
+    static final class Span {
+        final int offset;
+        int length;
+        /** Line the start tag begins on, counted as SAX does. */
+        final int line;
+        final String tagName;
+        final String id;
+
+        Span(int offset, int line, String tagName, String id) {
+            this.offset = offset;
+            this.line = line;
+            this.tagName = tagName;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Outcome of a scan; {@link #failure} is set and the rest is incomplete if
+     * the document could not be scanned.
+     */
+    static final class Result {
+        /** Declared encoding, or UTF-8 when there is no declaration. */
+        String encoding = "UTF-8";
+        final List<Span> spans = new ArrayList<>();
+        /** Every declared id, last declaration winning, to its span index. */
+        final Map<String, Integer> ids = new LinkedHashMap<>();
+        /** Tag of the document element. */
+        String rootTag;
+        /** Offset of the document element's end tag. */
+        int rootEnd;
+        String failure;
+    }
+
+    private final byte[] buf;
+    private final int limit;
+    private final Result result = new Result();
+    private Charset charset = StandardCharsets.UTF_8;
+    private int pos;
+    private int line = 1;
+
+    private TopLevelScanner(byte[] buf) {
+        this.buf = buf;
+        this.limit = buf.length;
+    }
+
+    static Result scan(byte[] buf) {
+        TopLevelScanner scanner = new TopLevelScanner(buf);
+        try {
+            scanner.run();
+        } catch (ScanException e) {
+            scanner.result.failure = e.getMessage();
+        }
+        return scanner.result;
+    }
+
+    private void run() {
+        if (startsWith(0, 0xEF, 0xBB, 0xBF)) {
+            pos = 3;
+        } else if (startsWith(0, 0xFE, 0xFF) || startsWith(0, 0xFF, 0xFE)) {
+            throw new ScanException("UTF-16 byte order mark");
+        }
+
+        int depth = 0;
+        Span current = null;
+        while (pos < limit) {
+            if (buf[pos] != '<') {
+                toNext((byte) '<');
+                continue;
+            }
+            if (startsWith(pos, "<!--")) {
+                skipPast("-->");
+            } else if (startsWith(pos, "<![CDATA[")) {
+                skipPast("]]>");
+            } else if (startsWith(pos, "<?")) {
+                int start = pos;
+                skipPast("?>");
+                if (startsWith(start, "<?xml") && isSpace(buf[start + 5])) {
+                    declaration(start, pos);
+                }
+            } else if (startsWith(pos, "<!")) {
+                throw new ScanException("DOCTYPE declarations are not supported");
+            } else if (startsWith(pos, "</")) {
+                int start = pos;
+                skipPast(">");
+                depth--;
+                if (depth == 0) {
+                    result.rootEnd = start;
+                } else if (depth == 1 && current != null) {
+                    current.length = pos - current.offset;
+                    current = null;
+                } else if (depth < 0) {
+                    throw new ScanException("unbalanced end tag at line " + line);
+                }
+            } else {
+                int start = pos;
+                int startLine = line;
+                pos++;
+                int nameStart = pos;
+                skipName();
+                int nameEnd = pos;
+                String id = null;
+                boolean empty = false;
+                while (true) {
+                    skipSpace();
+                    if (pos >= limit) {
+                        throw new ScanException("unterminated start tag at line " + startLine);
+                    }
+                    byte c = buf[pos];
+                    if (c == '>') {
+                        pos++;
+                        break;
+                    }
+                    if (c == '/' && pos + 1 < limit && buf[pos + 1] == '>') {
+                        pos += 2;
+                        empty = true;
+                        break;
+                    }
+                    int attrStart = pos;
+                    skipName();
+                    boolean isId = pos - attrStart == 2 && buf[attrStart] == 'i' && buf[attrStart + 1] == 'd';
+                    skipSpace();
+                    expect('=');
+                    skipSpace();
+                    String value = quoted(isId);
+                    if (isId) {
+                        if (value.indexOf('&') >= 0) {
+                            throw new ScanException("id with a character reference at line " + line);
+                        }
+                        id = value;
+                    }
+                }
+
+                if (depth == 0) {
+                    if (result.rootTag != null) {
+                        throw new ScanException("second document element at line " + startLine);
+                    }
+                    result.rootTag = new String(buf, nameStart, nameEnd - nameStart, charset);
+                    if (id != null) {
+                        result.ids.put(id, DOCUMENT);
+                    }
+                } else if (depth == 1) {
+                    String tagName = new String(buf, nameStart, nameEnd - nameStart, charset);
+                    current = new Span(start, startLine, tagName, id);
+                    result.spans.add(current);
+                    if (id != null) {
+                        result.ids.put(id, result.spans.size() - 1);
+                    }
+                } else if (id != null) {
+                    result.ids.put(id, result.spans.size() - 1);
+                }
+
+                if (!empty) {
+                    depth++;
+                } else if (depth == 1) {
+                    current.length = pos - start;
+                    current = null;
+                }
+            }
+        }
+        if (depth != 0) {
+            throw new ScanException("document ends inside an element");
+        }
+    }
+
+    private void declaration(int start, int end) {
+        String decl = new String(buf, start, end - start, StandardCharsets.US_ASCII);
+        int at = decl.indexOf("encoding");
+        if (at < 0) {
+            return;
+        }
+        int open = at + "encoding".length();
+        while (open < decl.length() && (decl.charAt(open) == '=' || isSpace((byte) decl.charAt(open)))) {
+            open++;
+        }
+        if (open >= decl.length()) {
+            return;
+        }
+        char quote = decl.charAt(open);
+        int close = decl.indexOf(quote, open + 1);
+        if (close < 0) {
+            throw new ScanException("malformed XML declaration");
+        }
+        String encoding = decl.substring(open + 1, close);
+        Charset declared;
+        try {
+            declared = Charset.forName(encoding);
+        } catch (IllegalArgumentException e) {
+            throw new ScanException("unknown encoding " + encoding);
+        }
+        if (!declared.canEncode()
+                || !Arrays.equals(ASCII_MARKUP, new String(ASCII_MARKUP, StandardCharsets.US_ASCII).getBytes(declared))) {
+            throw new ScanException("encoding " + encoding + " is not ASCII compatible");
+        }
+        result.encoding = encoding;
+        charset = declared;
+    }
+
+    private void skipName() {
+        int start = pos;
+        while (pos < limit) {
+            byte c = buf[pos];
+            if (isSpace(c) || c == '>' || c == '/' || c == '=') {
+                break;
+            }
+            pos++;
+        }
+        if (pos == start) {
+            throw new ScanException("expected a name at line " + line);
+        }
+    }
+
+    /**
+     * Skips a quoted attribute value, returning it decoded only if
+     * {@code decode} is set.
+     */
+    private String quoted(boolean decode) {
+        if (pos >= limit || (buf[pos] != '"' && buf[pos] != '\'')) {
+            throw new ScanException("expected a quoted value at line " + line);
+        }
+        byte quote = buf[pos++];
+        int start = pos;
+        while (pos < limit && buf[pos] != quote) {
+            advance();
+        }
+        if (pos >= limit) {
+            throw new ScanException("unterminated attribute value at line " + line);
+        }
+        String value = decode ? new String(buf, start, pos - start, charset) : null;
+        pos++;
+        return value;
+    }
+
+    private void skipPast(String terminator) {
+        byte first = (byte) terminator.charAt(0);
+        while (pos < limit) {
+            toNext(first);
+            if (startsWith(pos, terminator)) {
+                pos += terminator.length();
+                return;
+            }
+            if (pos < limit) {
+                advance();
+            }
+        }
+        throw new ScanException("missing '" + terminator + "' before end of document");
+    }
+
+    private void skipSpace() {
+        while (pos < limit && isSpace(buf[pos])) {
+            advance();
+        }
+    }
+
+    private void expect(char c) {
+        if (pos >= limit || buf[pos] != c) {
+            throw new ScanException("expected '" + c + "' at line " + line);
+        }
+        pos++;
+    }
+
+    // Moves to the next occurrence of c, or the end, counting lines on the way
+    private void toNext(byte c) {
+        byte[] b = buf;
+        int p = pos;
+        int lines = line;
+        while (p < limit) {
+            byte x = b[p];
+            if (x == c) {
+                break;
+            }
+            if (x == '\n' || (x == '\r' && (p + 1 >= limit || b[p + 1] != '\n'))) {
+                lines++;
+            }
+            p++;
+        }
+        pos = p;
+        line = lines;
+    }
+
+    // Moves one byte on, counting CRLF, CR and LF as one line end each
+    private void advance() {
+        byte c = buf[pos++];
+        if (c == '\n' || (c == '\r' && (pos >= limit || buf[pos] != '\n'))) {
+            line++;
+        }
+    }
+
+    private boolean startsWith(int at, String s) {
+        if (at + s.length() > limit) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (buf[at + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean startsWith(int at, int... bytes) {
+        if (at + bytes.length > limit) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if ((buf[at + i] & 0xFF) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+
+    private static final class ScanException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ScanException(String message) {
+            super(message, null, false, false);
+        }
+    }
+}
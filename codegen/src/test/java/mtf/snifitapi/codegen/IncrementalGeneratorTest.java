@@ -0,0 +1,76 @@
+package mtf.snifitapi.codegen;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import mtf.snifitapi.model.SnifitModel;
+import mtf.snifitapi.parser.SnifitParser;
+
+public class IncrementalGeneratorTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static SnifitModel parse(File... files) throws Exception {
+        SnifitModel model = new SnifitModel();
+        SnifitParser parser = new SnifitParser();
+        for (File file : files) {
+            parser.parseInto(file, model);
+        }
+        return model;
+    }
+
+    @Test
+    public void reparsingAnUnchangedFileChangesNothing() throws Exception {
+        SnifitModel model = parse(new File("xmls/dsedata.xml"), new File("xmls/dsefmt.xml"),
+                new File("xmls/matachtakbulim.xml"));
+        IncrementalGenerator generator = new IncrementalGenerator(model, null);
+        generator.generateAll();
+
+        Set<String> changed = model.replaceSourceFile("dsefmt.xml",
+                new SnifitParser().parse(new File("xmls/dsefmt.xml")).getRootNodes());
+        assertTrue(changed.isEmpty());
+
+        IncrementalGenerator.Delta delta = generator.update(changed);
+        assertTrue(delta.getRegenerated().isEmpty());
+        assertTrue(delta.getWritten().isEmpty());
+    }
+
+    @Test
+    public void updateMatchesAFullRegeneration() throws Exception {
+        SnifitModel model = parse(new File("xmls/dsedata.xml"), new File("xmls/dsefmt.xml"),
+                new File("xmls/matachtakbulim.xml"));
+        IncrementalGenerator generator = new IncrementalGenerator(model, null);
+        generator.generateAll();
+
+        // Rename one field
+        List<String> lines = Files.readAllLines(Path.of("xmls/dsefmt.xml"), StandardCharsets.ISO_8859_1);
+        assertTrue(lines.get(63).contains("dataName=\"TID\""));
+        lines.set(63, lines.get(63).replace("dataName=\"TID\"", "dataName=\"TID2\""));
+        File edited = tempDir.resolve("dsefmt.xml").toFile();
+        Files.write(edited.toPath(), lines, StandardCharsets.ISO_8859_1);
+
+        Set<String> changed = model.replaceSourceFile("dsefmt.xml",
+                new SnifitParser().parse(edited).getRootNodes());
+        assertFalse(changed.isEmpty());
+        IncrementalGenerator.Delta delta = generator.update(changed);
+        assertFalse(delta.getRegenerated().isEmpty());
+        assertTrue(delta.getRegenerated().size() < delta.getTargetCount());
+        assertFalse(delta.getWritten().isEmpty());
+
+        SnifitModel fresh = parse(new File("xmls/dsedata.xml"), edited, new File("xmls/matachtakbulim.xml"));
+        assertEquals(new IncrementalGenerator(fresh, null).generateAll(), generator.getOutputs());
+        assertEquals(fresh.getIdToNodeMap().keySet(), model.getIdToNodeMap().keySet());
+    }
+}
@@ -0,0 +1,148 @@
+package mtf.snifitapi.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import mtf.snifitapi.parser.SnifitParser;
+
+public class ModelSnapshotTest {
+
+    @TempDir
+    Path tempDir;
+
+    private List<Path> inputs;
+    private ModelSnapshot.Key key;
+    private SnifitModel parsed;
+
+    @BeforeEach
+    public void parseCopies() throws Exception {
+        inputs = new ArrayList<>();
+        for (String name : new String[] { "dsedata.xml", "dsefmt.xml", "matachtakbulim.xml" }) {
+            Path copy = tempDir.resolve(name);
+            Files.copy(Path.of("xmls", name), copy, StandardCopyOption.COPY_ATTRIBUTES);
+            inputs.add(copy);
+        }
+        key = ModelSnapshot.keyOf(inputs);
+        parsed = new SnifitModel();
+        new SnifitParser().parseAll(inputs, parsed);
+    }
+
+    @Test
+    public void roundTripsTheModel() throws Exception {
+        Path snapshot = tempDir.resolve("model.snap");
+        parsed.writeSnapshot(snapshot, key, Deflater.BEST_SPEED);
+
+        SnifitModel loaded = SnifitModel.readSnapshot(snapshot, inputs);
+        assertNotNull(loaded);
+
+        assertEquals(parsed.getRootNodes().size(), loaded.getRootNodes().size());
+        for (int i = 0; i < parsed.getRootNodes().size(); i++) {
+            assertEquals(parsed.getRootNodes().get(i).toJson(), loaded.getRootNodes().get(i).toJson());
+        }
+        assertEquals(parsed.getIdToNodeMap().keySet(), loaded.getIdToNodeMap().keySet());
+        for (Map.Entry<String, XmlNode> entry : parsed.getIdToNodeMap().entrySet()) {
+            XmlNode node = loaded.getNodeById(entry.getKey());
+            assertEquals(entry.getValue().getSourceFile(), node.getSourceFile());
+            assertEquals(entry.getValue().getLineNumber(), node.getLineNumber());
+        }
+
+        // Ids still point into the tree, not at copies
+        XmlNode list = loaded.getNodeById("MCSG_IFYUNIM_LIST1");
+        XmlNode root = loaded.getRootNodes().get(2);
+        assertSame(list, root.getChildren().get(2));
+    }
+
+    @Test
+    public void touchedButUnchangedInputsKeepTheSnapshot() throws Exception {
+        Path snapshot = tempDir.resolve("model.snap");
+        parsed.writeSnapshot(snapshot, key, Deflater.NO_COMPRESSION);
+
+        Files.setLastModifiedTime(inputs.get(1), FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+        assertNotNull(SnifitModel.readSnapshot(snapshot, inputs));
+    }
+
+    @Test
+    public void changedInputsInvalidateTheSnapshot() throws Exception {
+        Path snapshot = tempDir.resolve("model.snap");
+        parsed.writeSnapshot(snapshot, key, Deflater.BEST_COMPRESSION);
+
+        // Same size, different content, different mtime
+        byte[] content = Files.readAllBytes(inputs.get(2));
+        int at = new String(content, "ISO-8859-1").indexOf("MTFC_Hitmakdut");
+        content[at] = 'X';
+        Files.write(inputs.get(2), content);
+        Files.setLastModifiedTime(inputs.get(2), FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+
+        assertNull(SnifitModel.readSnapshot(snapshot, inputs));
+        assertNull(SnifitModel.readSnapshot(snapshot, inputs.subList(0, 2)));
+    }
+
+    @Test
+    public void inputSavedDuringTheParseInvalidatesTheSnapshot() throws Exception {
+        // Saved after the key was taken, as if while parsing
+        byte[] content = Files.readAllBytes(inputs.get(2));
+        int at = new String(content, "ISO-8859-1").indexOf("MTFC_Hitmakdut");
+        content[at] = 'X';
+        Files.write(inputs.get(2), content);
+        Files.setLastModifiedTime(inputs.get(2), FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+
+        Path snapshot = tempDir.resolve("model.snap");
+        parsed.writeSnapshot(snapshot, key, Deflater.BEST_SPEED);
+        assertNull(SnifitModel.readSnapshot(snapshot, inputs));
+    }
+
+    @Test
+    public void corruptSnapshotsFailAsIOException() throws Exception {
+        Path snapshot = tempDir.resolve("model.snap");
+        parsed.writeSnapshot(snapshot, key, Deflater.NO_COMPRESSION);
+        byte[] good = Files.readAllBytes(snapshot);
+
+        // Any damage past the header reads as a model, a stale key or an
+        // IOException, never as another exception
+        for (int at = 9; at < good.length - 4; at += good.length / 200) {
+            for (int value : new int[] { -2, Integer.MAX_VALUE, 1 << 20 }) {
+                byte[] bad = good.clone();
+                ByteBuffer.wrap(bad).putInt(at, value);
+                Files.write(snapshot, bad);
+                try {
+                    SnifitModel.readSnapshot(snapshot, inputs);
+                } catch (IOException e) {
+                    // parsed instead
+                }
+            }
+        }
+    }
+
+    @Test
+    public void failedWritesLeaveNoFilesBehind() throws Exception {
+        Path snapshot = tempDir.resolve("model.snap");
+        Path tmp = tempDir.resolve("model.snap.tmp");
+        assertThrows(IllegalArgumentException.class, () -> parsed.writeSnapshot(snapshot, key, 12));
+        assertFalse(Files.exists(tmp));
+
+        // An id outside the tree fails halfway through the body
+        parsed.addIdToNodeMap(Map.of("stray", SnifitModel.createNode("fString")));
+        assertThrows(IOException.class, () -> parsed.writeSnapshot(snapshot, key, Deflater.BEST_SPEED));
+        assertFalse(Files.exists(tmp));
+        assertFalse(Files.exists(snapshot));
+    }
+}
@@ -0,0 +1,594 @@
+package mtf.snifitapi.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import mtf.snifitapi.codegen.CsModelGenerator;
+import mtf.snifitapi.codegen.CsSerdeGenerator;
+import mtf.snifitapi.parser.SnifitParser;
+
+public class SnifitModelTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static SnifitModel parseCorpus() throws Exception {
+        SnifitModel model = new SnifitModel();
+        SnifitParser parser = new SnifitParser();
+        for (String name : new String[] { "dsedata.xml", "dsefmt.xml", "matachtakbulim.xml" }) {
+            parser.parseInto(new File("xmls", name), model);
+        }
+        return model;
+    }
+
+    @Test
+    public void attributeViewAndLeafChildrenWriteThroughToTheNode() {
+        XmlNode node = SnifitModel.createNode("fString");
+        node.addAttribute("dataName", "a");
+        node.addAttribute("times", "1");
+        node.addAttribute("justify", "left");
+        Map<String, String> attributes = node.getAttributes();
+        assertEquals(List.of("dataName", "times", "justify"), new ArrayList<>(attributes.keySet()));
+
+        // Replacing keeps the position, adding appends
+        assertEquals("a", attributes.put("dataName", "b"));
+        assertNull(attributes.put("length", "5"));
+        assertEquals("1", attributes.remove("times"));
+        assertEquals(List.of("dataName", "justify", "length"), new ArrayList<>(attributes.keySet()));
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            if (attribute.getKey().equals("justify")) {
+                attribute.setValue("right");
+            }
+        }
+        assertEquals("right", node.getAttribute("justify"));
+        assertEquals("{\"tagName\":\"fString\",\"attributes\":{\"dataName\":\"b\",\"justify\":\"right\","
+                + "\"length\":\"5\"}}", node.toJson());
+
+        // The children list takes changes whether or not the node has
+        // children yet, and decorators stay bound as they would with addChild
+        XmlNode record = SnifitModel.createNode("record");
+        assertTrue(record.getChildren().isEmpty());
+        record.getChildren().add(node);
+        XmlNode decor = SnifitModel.createNode("hebHostDecor");
+        record.getChildren().add(decor);
+        assertSame(decor, node.getDecorator());
+        assertSame(node, ((SnifitModel.Decorator) decor).getOwner());
+
+        // A constant inserted between them takes the decorator from the field
+        XmlNode constant = SnifitModel.createNode("constant");
+        record.getChildren().add(1, constant);
+        assertSame(decor, constant.getDecorator());
+        assertNull(node.getDecorator());
+
+        // Replacing or removing it gives the decorator back
+        XmlNode other = SnifitModel.createNode("refData");
+        assertSame(constant, record.getChildren().set(1, other));
+        assertNull(constant.getDecorator());
+        assertSame(decor, node.getDecorator());
+        record.getChildren().add(1, constant);
+        record.getChildren().remove(1);
+        assertSame(decor, node.getDecorator());
+        assertEquals(List.of(node, other, decor), record.getChildren());
+
+        // Removing the decorator unbinds it
+        record.getChildren().remove(decor);
+        assertNull(node.getDecorator());
+        assertNull(((SnifitModel.Decorator) decor).getOwner());
+        record.getChildren().add(decor);
+        assertSame(decor, node.getDecorator());
+
+        SnifitModel model = new SnifitModel();
+        model.addRootNodes(List.of(record));
+        XmlNode frozen = model.freeze().getRootNodes().get(0).getChildren().get(0);
+        assertThrows(UnsupportedOperationException.class, () -> frozen.getChildren().add(node));
+    }
+
+    @Test
+    public void linkResolvesEveryReferenceLikeALookup() throws Exception {
+        SnifitModel model = parseCorpus();
+
+        LinkReport report = model.link();
+        assertTrue(report.getCycles().isEmpty());
+        for (XmlNode reference : report.getDangling()) {
+            assertEquals("generalSendToHostFlowWithPrint", reference.getRefId());
+        }
+
+        int references = 0;
+        Deque<XmlNode> stack = new ArrayDeque<>(model.getRootNodes());
+        while (!stack.isEmpty()) {
+            XmlNode node = stack.pop();
+            if (node instanceof SnifitModel.Reference) {
+                references++;
+                assertSame(model.getNodeById(node.getRefId()), node.getResolvedRef());
+            }
+            stack.addAll(node.getChildren());
+        }
+        assertEquals(references, report.getReferences());
+    }
+
+    @Test
+    public void linkBreaksCyclesAndReportsDanglingReferences() throws Exception {
+        Path file = tempDir.resolve("cycle.xml");
+        Files.write(file, ("<formats>\n"
+                + "<fmtDef id=\"A\"><fString dataName=\"a\"/><refFmt refId=\"B\"/></fmtDef>\n"
+                + "<fmtDef id=\"B\"><fString dataName=\"b\"/><refFmt refId=\"C\"/></fmtDef>\n"
+                + "<fmtDef id=\"C\"><refFmt refId=\"A\"/><refFmt refId=\"missing\"/></fmtDef>\n"
+                + "</formats>").getBytes(StandardCharsets.UTF_8));
+        SnifitModel model = new SnifitParser().parse(file.toFile());
+
+        LinkReport report = model.link();
+        assertEquals(4, report.getReferences());
+        assertEquals(List.of(Arrays.asList("A", "B", "C", "A")), report.getCycles());
+        XmlNode closing = model.getNodeById("C").getChildren().get(0);
+        assertSame(closing, report.getCyclic().get(0));
+        assertNull(closing.getResolvedRef());
+        assertEquals("missing", report.getDangling().get(0).getRefId());
+        assertSame(model.getNodeById("B"), model.getNodeById("A").getChildren().get(1).getResolvedRef());
+
+        // Generation stops at the reference closing the cycle and tells it
+        // apart from a dangling one, the same linked or not
+        assertTrue(new CsSerdeGenerator(model).generate("A").containsKey("ASerializer"));
+        String linked = new CsModelGenerator(model).generate("A").get("A");
+        assertTrue(linked.contains("public string a {"));
+        assertTrue(linked.contains("public string b {"));
+        assertTrue(linked.contains("    // Cyclic reference to 'A' not expanded\n"));
+        assertTrue(linked.contains("    // Error: Referenced ID 'missing' not found\n"));
+        assertFalse(linked.contains("Referenced ID 'A'"));
+        assertEquals(linked, new CsModelGenerator(new SnifitParser().parse(file.toFile())).generate("A").get("A"));
+    }
+
+    @Test
+    public void generatorsWalkDeepNestingAndLongReferenceChainsOnASmallStack() throws Exception {
+        int chain = 2000;
+        int depth = 2000;
+        StringBuilder xml = new StringBuilder("<formats>\n<fmtDef id=\"F0\">");
+        for (int d = 0; d < depth; d++) {
+            xml.append("<record>");
+        }
+        xml.append("<fString dataName=\"deep\"/>");
+        for (int d = 0; d < depth; d++) {
+            xml.append("</record>");
+        }
+        xml.append("<refFmt refId=\"F1\"/></fmtDef>\n");
+        for (int i = 1; i < chain; i++) {
+            // The last one closes a cycle back to F0, left unlinked
+            xml.append("<fmtDef id=\"F").append(i).append("\"><fString dataName=\"f").append(i)
+                    .append("\"/><refFmt refId=\"F").append((i + 1) % chain).append("\"/></fmtDef>\n");
+        }
+        xml.append("</formats>");
+        Path file = tempDir.resolve("deep.xml");
+        Files.write(file, xml.toString().getBytes(StandardCharsets.UTF_8));
+        SnifitModel model = new SnifitParser().parse(file.toFile());
+
+        Map<String, String> classes = new HashMap<>();
+        Map<String, String> serializers = new HashMap<>();
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                classes.putAll(new CsModelGenerator(model).generate("F0"));
+                serializers.putAll(new CsSerdeGenerator(model).generate("F0"));
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        }, "small-stack", 128 * 1024);
+        thread.start();
+        thread.join();
+        assertNull(failure[0]);
+
+        String f0 = classes.get("F0");
+        assertTrue(f0.contains("public string deep {"));
+        for (int i = 1; i < chain; i++) {
+            assertTrue(f0.contains("public string f" + i + " {"), "f" + i);
+        }
+        assertTrue(serializers.containsKey("F0Serializer"));
+    }
+
+    @Test
+    public void referenceIndexFindsTransitiveDependents() throws Exception {
+        SnifitModel model = parseCorpus();
+        ReferenceIndex index = model.getReferenceIndex();
+        assertSame(index, model.getReferenceIndex());
+
+        assertEquals(5, index.getReferrers("GLFI_HdrBttNew").size());
+        List<String> dependents = new ArrayList<>();
+        for (XmlNode node : index.getDependents("GLFI_HdrBttNew")) {
+            dependents.add(node.getId());
+        }
+        // MTFI_Srika refers to it, and the operation MTOS_Srika to MTFI_Srika
+        assertTrue(dependents.contains("MTFI_Srika"));
+        assertTrue(dependents.contains("MTOS_Srika"));
+        assertFalse(dependents.contains("GLFI_HdrBttNew"));
+
+        // A kColl depends on what it contains
+        XmlNode kColl = model.getNodeById("MCSG_IFYUNIM");
+        String field = kColl.getChildren().get(0).getId();
+        assertTrue(index.getDependents(field).contains(kColl));
+
+        model.replaceSourceFile("dsefmt.xml", new SnifitParser().parse(new File("xmls/dsefmt.xml")).getRootNodes());
+        assertNotSame(index, model.getReferenceIndex());
+    }
+
+    @Test
+    public void nodeIndexMatchesAWalkOfTheTree() throws Exception {
+        SnifitModel model = parseCorpus();
+        NodeIndex index = model.buildNodeIndex(true, true, List.of("codeSet"));
+
+        List<XmlNode> decorators = new ArrayList<>();
+        List<XmlNode> formats = new ArrayList<>();
+        Deque<XmlNode> stack = new ArrayDeque<>();
+        for (int r = model.getRootNodes().size() - 1; r >= 0; r--) {
+            stack.push(model.getRootNodes().get(r));
+        }
+        while (!stack.isEmpty()) {
+            XmlNode node = stack.pop();
+            if ("hebHostDecor".equals(node.getTagName()) && "Cp037".equals(node.getAttribute("codeSet"))) {
+                decorators.add(node);
+            }
+            if ("fmtDef".equals(node.getTagName()) && writes(node, "GL_SNIF")) {
+                formats.add(node);
+            }
+            for (int c = node.getChildren().size() - 1; c >= 0; c--) {
+                stack.push(node.getChildren().get(c));
+            }
+        }
+
+        assertEquals(decorators,
+                index.nodes(NodeIndex.intersect(index.byTag("hebHostDecor"), index.byAttribute("codeSet", "Cp037"))));
+        assertEquals(formats, index.nodes(index.containing(index.byTag("fmtDef"), index.byDataName("GL_SNIF"))));
+        assertFalse(decorators.isEmpty());
+        assertTrue(formats.size() > 1);
+    }
+
+    @Test
+    public void dataPathSlotsDependOnlyOnThePaths() throws Exception {
+        SnifitModel forward = new SnifitModel();
+        SnifitModel backward = new SnifitModel();
+        SnifitParser parser = new SnifitParser();
+        String[] names = { "dsedata.xml", "dsefmt.xml", "matachtakbulim.xml" };
+        for (int i = 0; i < names.length; i++) {
+            parser.parseInto(new File("xmls", names[i]), forward);
+            parser.parseInto(new File("xmls", names[names.length - 1 - i]), backward);
+        }
+        DataPathTrie trie = forward.getDataPathTrie();
+        DataPathTrie other = backward.getDataPathTrie();
+        assertEquals(trie.size(), other.size());
+        for (int slot = 0; slot < trie.size(); slot++) {
+            assertEquals(trie.getNode(slot).getPath(), other.getNode(slot).getPath());
+        }
+
+        // A move target and a dataName share the GLDK_BANK_MARECHET prefix
+        DataPathTrie.PathNode group = trie.getNode("GLDK_BANK_MARECHET");
+        assertTrue(group.getChildren().size() > 1);
+        List<String> under = trie.withPrefix("GLDK_BANK_MARECHET");
+        assertTrue(under.contains("GLDK_BANK_MARECHET.GL_BANK"));
+        for (String path : under) {
+            int slot = trie.slotOf(path);
+            assertTrue(slot >= group.getSlot() && slot < group.getSlotEnd());
+            assertTrue(path.startsWith("GLDK_BANK_MARECHET"));
+        }
+        assertEquals(-1, trie.slotOf("GLDK_BANK_MAR"));
+    }
+
+    @Test
+    public void deepHashesFollowReferencesAndUpdateWithAReplacedFile() throws Exception {
+        SnifitModel model = parseCorpus();
+        StructuralHashes hashes = model.getStructuralHashes();
+        assertEquals(hashes.size(), hashes.getHashed());
+        Map<String, Long> content = new HashMap<>();
+        Map<String, Long> deep = new HashMap<>();
+        for (String id : model.getIdToNodeMap().keySet()) {
+            content.put(id, model.getContentHash(id));
+            deep.put(id, model.getDeepHash(id));
+        }
+
+        // The same definitions parsed again hash the same
+        SnifitModel again = new SnifitParser().parse(new File("xmls/dsefmt.xml"));
+        XmlNode format = model.getNodeById("GLFI_HdrBttNew");
+        assertNotSame(format, again.getNodeById("GLFI_HdrBttNew"));
+        assertEquals(hashes.getContentHash(format),
+                again.getStructuralHashes().getContentHash(again.getNodeById("GLFI_HdrBttNew")));
+
+        // Change one field of a format that MTFI_Srika reaches through refFmt
+        String changed = new String(Files.readAllBytes(Path.of("xmls/dsefmt.xml")), "ISO-8859-8")
+                .replace("<fHostString dataName=\"GKSI_HdrBtt.MQ_MSGID\" /><abcHostDecor length=\"24\" />",
+                        "<fHostString dataName=\"GKSI_HdrBtt.MQ_MSGID\" /><abcHostDecor length=\"25\" />");
+        Path file = tempDir.resolve("dsefmt.xml");
+        Files.write(file, changed.getBytes("ISO-8859-8"));
+        model.replaceSourceFile("dsefmt.xml", new SnifitParser().parse(file.toFile()).getRootNodes());
+        StructuralHashes updated = model.getStructuralHashes();
+        assertTrue(updated.getHashed() < updated.size());
+
+        assertFalse(content.get("GLFI_HdrBttNew") == model.getContentHash("GLFI_HdrBttNew"));
+        assertEquals((long) content.get("MTFI_Srika"), model.getContentHash("MTFI_Srika"));
+        assertFalse(deep.get("MTFI_Srika") == model.getDeepHash("MTFI_Srika"));
+        assertEquals((long) deep.get("emptyFmt"), model.getDeepHash("emptyFmt"));
+
+        // Updating reuses content hashes but agrees with hashing from scratch
+        StructuralHashes scratch = StructuralHashes.build(model);
+        for (XmlNode node : model.getIdToNodeMap().values()) {
+            assertEquals(scratch.getContentHash(node), updated.getContentHash(node));
+            assertEquals(scratch.getDeepHash(node), updated.getDeepHash(node));
+        }
+    }
+
+    @Test
+    public void diffReportsFormatsChangedThroughReferences() throws Exception {
+        String text = new String(Files.readAllBytes(Path.of("xmls/dsefmt.xml")), "ISO-8859-8");
+        String changed = text
+                .replace("<fHostString dataName=\"GKSI_HdrBtt.MQ_MSGID\" /><abcHostDecor length=\"24\" />",
+                        "<fHostString dataName=\"GKSI_HdrBtt.MQ_MSGID\" /><abcHostDecor length=\"25\" />")
+                .replace("<fmtDef id=\"emptyFmt\">", "<fmtDef id=\"emptyFmt2\">");
+        Files.write(tempDir.resolve("dsefmt.xml"), changed.getBytes("ISO-8859-8"));
+
+        SnifitModel before = new SnifitModel();
+        SnifitModel after = new SnifitModel();
+        SnifitParser parser = new SnifitParser();
+        for (String name : new String[] { "dsedata.xml", "dsefmt.xml", "matachtakbulim.xml" }) {
+            parser.parseInto(new File("xmls", name), before);
+            parser.parseInto(name.equals("dsefmt.xml") ? tempDir.resolve(name).toFile() : new File("xmls", name),
+                    after);
+        }
+
+        assertTrue(ModelDiff.compare(before, before).isEmpty());
+        ModelDiff diff = ModelDiff.compare(before, after);
+        Map<String, ModelDiff.Entry> byId = new HashMap<>();
+        for (ModelDiff.Entry entry : diff.getEntries()) {
+            byId.put(entry.getId(), entry);
+        }
+        assertEquals(ModelDiff.Change.ADDED, byId.get("emptyFmt2").getChange());
+        assertEquals(ModelDiff.Change.REMOVED, byId.get("emptyFmt").getChange());
+        assertEquals(ModelDiff.Change.MODIFIED, byId.get("GLFI_HdrBttNew").getChange());
+        ModelDiff.Entry srika = byId.get("MTFI_Srika");
+        assertEquals(ModelDiff.Change.REFERENCE_CHANGED, srika.getChange());
+        assertEquals(List.of("GLFI_HdrBttNew"), srika.getVia());
+        assertNull(byId.get("MCSG_IFYUNIM"));
+        assertEquals(before.getIdToNodeMap().size() + 1, diff.getCompared());
+    }
+
+    @Test
+    public void diffOfACycleDoesNotDependOnRootOrder() throws Exception {
+        Path cycle = tempDir.resolve("cycle.xml");
+        Files.write(cycle, ("<formats>\n"
+                + "<fmtDef id=\"A\"><fString dataName=\"a\"/><refFmt refId=\"B\"/></fmtDef>\n"
+                + "<fmtDef id=\"B\"><fString dataName=\"b\"/><refFmt refId=\"A\"/></fmtDef>\n"
+                + "<fmtDef id=\"C\"><refFmt refId=\"A\"/></fmtDef>\n"
+                + "</formats>").getBytes(StandardCharsets.UTF_8));
+        Path reordered = tempDir.resolve("reordered.xml");
+        Files.write(reordered, ("<formats>\n"
+                + "<fmtDef id=\"C\"><refFmt refId=\"A\"/></fmtDef>\n"
+                + "<fmtDef id=\"B\"><fString dataName=\"b\"/><refFmt refId=\"A\"/></fmtDef>\n"
+                + "<fmtDef id=\"A\"><fString dataName=\"a\"/><refFmt refId=\"B\"/></fmtDef>\n"
+                + "</formats>").getBytes(StandardCharsets.UTF_8));
+        // Sorts first and enters the cycle at B
+        Path unrelated = tempDir.resolve("added.xml");
+        Files.write(unrelated, "<formats><fmtDef id=\"Z\"><refFmt refId=\"B\"/></fmtDef></formats>"
+                .getBytes(StandardCharsets.UTF_8));
+
+        SnifitParser parser = new SnifitParser();
+        SnifitModel before = parser.parse(cycle.toFile());
+        SnifitModel after = new SnifitModel();
+        parser.parseInto(unrelated.toFile(), after);
+        parser.parseInto(reordered.toFile(), after);
+
+        List<String> entries = new ArrayList<>();
+        for (ModelDiff.Entry entry : ModelDiff.compare(before, after).getEntries()) {
+            entries.add(entry.toString());
+        }
+        assertEquals(List.of("ADDED fmtDef Z"), entries);
+
+        // Linking leaves one reference of the cycle unresolved, not changing the hashes
+        long deep = after.getDeepHash("A");
+        after.link();
+        assertEquals(deep, after.getDeepHash("A"));
+        assertEquals(1, ModelDiff.compare(before, after).getEntries().size());
+
+        // A change inside the cycle still reaches every member and what refers to it
+        Files.write(reordered, new String(Files.readAllBytes(reordered), StandardCharsets.UTF_8)
+                .replace("dataName=\"b\"", "dataName=\"b2\"").getBytes(StandardCharsets.UTF_8));
+        SnifitModel changed = parser.parse(reordered.toFile());
+        entries.clear();
+        for (ModelDiff.Entry entry : ModelDiff.compare(before, changed).getEntries()) {
+            entries.add(entry.getChange() + " " + entry.getId());
+        }
+        assertEquals(List.of("REFERENCE_CHANGED A", "MODIFIED B", "REFERENCE_CHANGED C"), entries);
+    }
+
+    @Test
+    public void everyNodeKnowsItsTagKind() throws Exception {
+        SnifitModel model = new SnifitParser().parse(new File("xmls/dsefmt.xml"));
+        Map<TagKind, Integer> kinds = new HashMap<>();
+        Deque<XmlNode> stack = new ArrayDeque<>(model.getRootNodes());
+        while (!stack.isEmpty()) {
+            XmlNode node = stack.pop();
+            assertSame(TagKind.of(node.getTagName()), node.getKind());
+            if (node.getKind().getTagName() != null) {
+                assertEquals(node.getKind().getTagName(), node.getTagName());
+            }
+            kinds.merge(node.getKind(), 1, Integer::sum);
+            stack.addAll(node.getChildren());
+        }
+        assertTrue(kinds.get(TagKind.DECORATOR) > 0);
+        assertTrue(kinds.get(TagKind.FMT_DEF) > 0);
+
+        XmlNode node = new XmlNode("record");
+        assertSame(TagKind.RECORD, node.getKind());
+        node.setTagName("somethingElse");
+        assertSame(TagKind.OTHER, node.getKind());
+    }
+
+    @Test
+    public void heapFootprintCountsEveryNodeAndDuplicateString() throws Exception {
+        SnifitModel model = new SnifitParser().parse(new File("xmls/dsefmt.xml"));
+        HeapFootprint parsed = HeapFootprint.measure(model);
+        int nodes = 0;
+        for (HeapFootprint.TypeFootprint type : parsed.getTypes().values()) {
+            nodes += type.getCount();
+            assertTrue(type.getNodeBytes() >= 16L * type.getCount());
+        }
+        assertEquals(parsed.getNodeCount(), nodes);
+        assertTrue(parsed.getTypes().containsKey("Decorator"));
+        // The parser's symbol table leaves no duplicates to find
+        assertEquals(0, parsed.getDuplicateStrings());
+
+        SnifitModel built = new SnifitModel();
+        XmlNode format = new XmlNode("fmtDef");
+        for (int i = 0; i < 3; i++) {
+            XmlNode field = new XmlNode(new String("fString"));
+            field.addAttribute("dataName", new String("GKSI_HdrBtt.GL_SNIF"));
+            format.addChild(field);
+        }
+        built.setRootNodes(new ArrayList<>(List.of(format)));
+        HeapFootprint footprint = HeapFootprint.measure(built);
+        assertEquals(4, footprint.getNodeCount());
+        assertEquals(4, footprint.getDuplicateStrings());
+        assertEquals("GKSI_HdrBtt.GL_SNIF", footprint.getTopDuplicates().get(0).getValue());
+        assertEquals(2, footprint.getTopDuplicates().get(0).getCopies());
+        assertTrue(footprint.toJson().contains("\"duplicates\":4"));
+    }
+
+    @Test
+    public void prunedModelHoldsWhatTheOperationsReach() throws Exception {
+        SnifitModel model = parseCorpus();
+        Reachability reachability = Reachability.build(model);
+        BitSet closure = reachability.closure(List.of("MTOS_Srika"));
+        List<XmlNode> reached = reachability.nodes(closure);
+        // The context attribute, the context's kColl, and formats through refFmt
+        assertTrue(reached.contains(model.getNodeById("MTCS_MatachTakbulim")));
+        assertTrue(reached.contains(model.getNodeById("MTDS_MatachTakbulim")));
+        assertTrue(reached.contains(model.getNodeById("GLFI_HdrBttNew")));
+        assertFalse(reached.contains(model.getNodeById("MTOS_Hitmakdut")));
+        for (XmlNode node : reached) {
+            for (XmlNode child : node.getChildren()) {
+                assertTrue(reached.contains(child));
+            }
+        }
+
+        FrozenModel pruned = model.prune(List.of("MTOS_Srika"));
+        Set<String> definitions = new HashSet<>();
+        for (XmlNode node : reached) {
+            if (node.getId() != null && model.getNodeById(node.getId()) == node) {
+                definitions.add(node.getId());
+            }
+        }
+        assertEquals(definitions, pruned.getIdToNodeMap().keySet());
+        assertTrue(pruned.getIdToNodeMap().size() < model.getIdToNodeMap().size() / 4);
+        for (String id : List.of("MTFI_Srika", "MTFR_Srika", "MTFS_Srika")) {
+            assertEquals(new CsSerdeGenerator(model).generate(id), new CsSerdeGenerator(pruned).generate(id));
+        }
+        assertThrows(IllegalArgumentException.class, () -> model.prune(List.of("no such id")));
+    }
+
+    @Test
+    public void frozenModelGeneratesTheSameFromManyThreads() throws Exception {
+        SnifitModel model = parseCorpus();
+        FrozenModel frozen = model.freeze();
+
+        assertEquals(model.getIdToNodeMap().keySet(), frozen.getIdToNodeMap().keySet());
+        for (Map.Entry<String, XmlNode> entry : model.getIdToNodeMap().entrySet()) {
+            assertEquals(entry.getValue().toJson(), frozen.getNodeById(entry.getKey()).toJson());
+        }
+        assertNull(frozen.getNodeById("no such id"));
+        assertThrows(UnsupportedOperationException.class,
+                () -> frozen.getRootNodes().get(0).addChild(new XmlNode("x")));
+        assertThrows(UnsupportedOperationException.class,
+                () -> frozen.getNodeById("MTFC_Hitmakdut").getAttributes().put("x", "y"));
+
+        List<String> fmtDefs = new ArrayList<>();
+        for (XmlNode node : frozen.getIdToNodeMap().values()) {
+            if ("fmtDef".equals(node.getTagName())) {
+                fmtDefs.add(node.getId());
+            }
+        }
+        Map<String, String> expected = new HashMap<>();
+        for (String id : fmtDefs) {
+            expected.put(id, new CsSerdeGenerator(model).generate(id).toString());
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Map<String, String>>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                results.add(pool.submit(() -> {
+                    Map<String, String> generated = new HashMap<>();
+                    for (String id : fmtDefs) {
+                        generated.put(id, new CsSerdeGenerator(frozen).generate(id).toString());
+                    }
+                    return generated;
+                }));
+            }
+            for (Future<Map<String, String>> result : results) {
+                assertEquals(expected, result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void overlayShadowsBaseDefinitionsWithoutChangingTheBase() throws Exception {
+        SnifitModel model = parseCorpus();
+        FrozenModel base = model.freeze();
+        String before = new CsSerdeGenerator(base).generate("MTFI_Srika").toString();
+
+        Path override = tempDir.resolve("variant.xml");
+        Files.write(override, ("<dsefmts.xml>\n"
+                + "<fmtDef id=\"GLFI_HdrBttNew\"><record>"
+                + "<fHostString dataName=\"GKSI_HdrBtt.GL_VARIANT\"/><abcHostDecor length=\"3\"/>"
+                + "</record></fmtDef>\n"
+                + "</dsefmts.xml>").getBytes(StandardCharsets.UTF_8));
+        OverlayModel variant = new OverlayModel(base);
+        new SnifitParser().parseInto(override.toFile(), variant);
+
+        assertEquals(1, variant.getLayerRootNodes().size());
+        assertEquals(1, variant.getLayerIdToNodeMap().size());
+        assertSame(variant.getLayerIdToNodeMap().get("GLFI_HdrBttNew"), variant.getNodeById("GLFI_HdrBttNew"));
+        assertSame(base.getNodeById("MTFI_Srika"), variant.getNodeById("MTFI_Srika"));
+        assertEquals(base.getIdToNodeMap().size(), variant.getIdToNodeMap().size());
+        assertEquals(base.getIdToNodeMap().keySet(), variant.getIdToNodeMap().keySet());
+
+        // A base format picks up the override through its reference, linked or not
+        String generated = new CsSerdeGenerator(variant).generate("MTFI_Srika").toString();
+        assertTrue(generated.contains("GL_VARIANT"));
+        assertTrue(variant.link().getDangling().isEmpty());
+        assertEquals(generated, new CsSerdeGenerator(variant).generate("MTFI_Srika").toString());
+        assertEquals(before, new CsSerdeGenerator(base).generate("MTFI_Srika").toString());
+        assertFalse(before.contains("GL_VARIANT"));
+
+        assertEquals(generated, new CsSerdeGenerator(variant.freeze()).generate("MTFI_Srika").toString());
+    }
+
+    private static boolean writes(XmlNode node, String dataName) {
+        for (XmlNode child : node.getChildren()) {
+            if (dataName.equals(child.getAttribute("dataName")) || writes(child, dataName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
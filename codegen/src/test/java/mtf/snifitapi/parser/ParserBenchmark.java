@@ -0,0 +1,89 @@
+package mtf.snifitapi.parser;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import mtf.snifitapi.model.SnifitModel;
+
+/**
+ * Compares the parser backends on a directory of definition files. Not a unit
+ * test; run it after {@code mvn test-compile} with
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes mtf.snifitapi.parser.ParserBenchmark [xmlsDir] [iterations]
+ * </pre>
+ */
+public class ParserBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String xmlsDir = args.length > 0 ? args[0] : "xmls";
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        File[] files = new File(xmlsDir).listFiles((d, name) -> name.endsWith(".xml"));
+        if (files == null || files.length == 0) {
+            System.err.println("No XML files found in " + xmlsDir);
+            return;
+        }
+        Arrays.sort(files);
+        List<File> corpus = Arrays.asList(files);
+
+        System.out.println(corpus.size() + " files, " + iterations + " iterations per backend");
+        for (SnifitParser.Backend backend : SnifitParser.Backend.values()) {
+            SnifitParser parser = new SnifitParser();
+            parser.setBackend(backend);
+
+            // Warm up with as many iterations as are measured
+            run(parser, corpus, iterations);
+            parser.getStats().reset();
+
+            long start = System.nanoTime();
+            run(parser, corpus, iterations);
+            long elapsed = System.nanoTime() - start;
+
+            System.out.printf("%-7s %8.2f ms/corpus  %s%n", backend, elapsed / 1e6 / iterations, parser.getStats());
+        }
+
+        System.out.printf("Retained heap: %d KB per model%n", retainedBytes(corpus) / 1024);
+    }
+
+    /**
+     * Heap held by a parsed model, averaged over a few live copies. The symbol
+     * table is warmed first, since its canonical strings are shared between
+     * models and would otherwise be charged to the first one.
+     */
+    private static long retainedBytes(List<File> corpus) throws Exception {
+        SnifitParser parser = new SnifitParser();
+        run(parser, corpus, 1);
+
+        int copies = 10;
+        SnifitModel[] models = new SnifitModel[copies];
+        long before = usedHeap();
+        for (int i = 0; i < copies; i++) {
+            models[i] = new SnifitModel();
+            for (File file : corpus) {
+                parser.parseInto(file, models[i]);
+            }
+        }
+        long after = usedHeap();
+        return (after - before) / copies;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void run(SnifitParser parser, List<File> corpus, int iterations) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            SnifitModel model = new SnifitModel();
+            for (File file : corpus) {
+                parser.parseInto(file, model);
+            }
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package mtf.snifitapi.parser;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xml.sax.SAXParseException;
+
+import mtf.snifitapi.codegen.CsSerdeGenerator;
+import mtf.snifitapi.model.NodeStore;
+import mtf.snifitapi.model.SnifitModel;
+import mtf.snifitapi.model.XmlNode;
+
+public class SnifitParserTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static List<File> xmlFiles() {
+        File[] files = new File("xmls").listFiles((d, name) -> name.endsWith(".xml"));
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    private static SnifitModel parseSequential() throws Exception {
+        SnifitParser parser = new SnifitParser();
+        SnifitModel model = new SnifitModel();
+        for (File file : xmlFiles()) {
+            parser.parseInto(file, model);
+        }
+        return model;
+    }
+
+    private static void assertSameModel(SnifitModel expected, SnifitModel actual) {
+        assertEquals(expected.getRootNodes().size(), actual.getRootNodes().size());
+        for (int i = 0; i < expected.getRootNodes().size(); i++) {
+            assertEquals(expected.getRootNodes().get(i).toJson(), actual.getRootNodes().get(i).toJson());
+        }
+        assertEquals(expected.getIdToNodeMap().keySet(), actual.getIdToNodeMap().keySet());
+        for (Map.Entry<String, XmlNode> entry : expected.getIdToNodeMap().entrySet()) {
+            XmlNode other = actual.getNodeById(entry.getKey());
+            assertEquals(entry.getValue().getSourceFile(), other.getSourceFile());
+            assertEquals(entry.getValue().getLineNumber(), other.getLineNumber());
+        }
+    }
+
+    @Test
+    public void parallelParseMatchesSequential() throws Exception {
+        SnifitModel expected = parseSequential();
+
+        SnifitModel actual = new SnifitModel();
+        Map<File, Exception> failures = new SnifitParser().parseInto(xmlFiles(), actual, 4);
+
+        assertTrue(failures.isEmpty());
+        assertSameModel(expected, actual);
+    }
+
+    @Test
+    public void parallelParseKeepsLastDuplicateId() throws Exception {
+        SnifitModel model = new SnifitModel();
+        new SnifitParser().parseInto(xmlFiles(), model, 4);
+
+        // GLOP_SetTransId is declared on many opSteps; the last one in document order wins
+        XmlNode node = model.getNodeById("GLOP_SetTransId");
+        assertEquals("matachtakbulim.xml", node.getSourceFile());
+        assertEquals(1280, node.getLineNumber());
+    }
+
+    @Test
+    public void parseAllReusesOneParserPerThread() throws Exception {
+        List<Path> paths = new ArrayList<>();
+        for (File file : xmlFiles()) {
+            paths.add(file.toPath());
+        }
+
+        SnifitParser parser = new SnifitParser();
+        SnifitModel model = new SnifitModel();
+        Map<Path, Exception> failures = parser.parseAll(paths, model);
+
+        assertTrue(failures.isEmpty());
+        assertSameModel(parseSequential(), model);
+        assertEquals(1, parser.getStats().getParsersCreated());
+        assertEquals(paths.size() - 1, parser.getStats().getParsersReused());
+        assertEquals(paths.size(), parser.getStats().getDocuments());
+    }
+
+    @Test
+    public void staxBackendMatchesSax() throws Exception {
+        SnifitParser parser = new SnifitParser();
+        parser.setBackend(SnifitParser.Backend.STAX);
+        SnifitModel model = new SnifitModel();
+        for (File file : xmlFiles()) {
+            parser.parseInto(file, model);
+        }
+
+        assertSameModel(parseSequential(), model);
+    }
+
+    @Test
+    public void mappedBackendMatchesSax() throws Exception {
+        SnifitParser parser = new SnifitParser();
+        parser.setBackend(SnifitParser.Backend.MAPPED);
+        SnifitModel model = new SnifitModel();
+        for (File file : xmlFiles()) {
+            parser.parseInto(file, model);
+        }
+
+        assertSameModel(parseSequential(), model);
+        assertEquals(0, parser.getStats().getFallbacks());
+    }
+
+    @Test
+    public void byteTokenizerHandlesReferencesAndLineEnds() throws Exception {
+        Path xml = tempDir.resolve("refs.xml");
+        Files.writeString(xml, "<?xml version=\"1.0\" encoding=\"ISO-8859-8\"?>\r\n"
+                + "<root>\r\n  <!-- a comment -->\r\n"
+                + "  <fmtDef id=\"a&amp;b\"\r\n     note='x&#65;&lt;\r\ny'>\r\n"
+                + "    <fString dataName=\"A.B\" />\r\n  </fmtDef>\r\n</root>\r\n", StandardCharsets.ISO_8859_1);
+
+        SnifitByteTokenizer tokenizer = new SnifitByteTokenizer(xml.toFile());
+        assertTrue(tokenizer.parse(), tokenizer.getFallbackReason());
+
+        SnifitSaxHandler handler = new SnifitSaxHandler(xml.toFile());
+        SAXParserFactory.newInstance().newSAXParser().parse(xml.toFile(), handler);
+
+        assertEquals(handler.getResult().get(0).toJson(), tokenizer.getResult().get(0).toJson());
+        XmlNode fmtDef = tokenizer.getIdMap().get("a&b");
+        assertEquals(handler.getIdMap().get("a&b").getLineNumber(), fmtDef.getLineNumber());
+        assertEquals("xA< y", fmtDef.getAttributes().get("note"));
+    }
+
+    @Test
+    public void byteTokenizerFallsBackOnUnsupportedSyntax() throws Exception {
+        Path xml = tempDir.resolve("cdata.xml");
+        Files.writeString(xml, "<root><fmtDef id=\"x\"><![CDATA[text]]></fmtDef></root>");
+
+        SnifitByteTokenizer tokenizer = new SnifitByteTokenizer(xml.toFile());
+        assertFalse(tokenizer.parse());
+
+        SnifitParser parser = new SnifitParser();
+        parser.setBackend(SnifitParser.Backend.MAPPED);
+        SnifitModel model = parser.parse(xml.toFile());
+        assertEquals("text", model.getNodeById("x").getTextContent());
+        assertEquals(1, parser.getStats().getFallbacks());
+
+        // References SAX rejects are left to it, so both backends reject them
+        for (String ref : new String[] { "&#0;", "&#xD800;", "&#x110000;", "&#99999999999;", "&#+65;", "&#x;" }) {
+            Path bad = tempDir.resolve("ref.xml");
+            Files.writeString(bad, "<root><fmtDef id=\"x\" note=\"" + ref + "\"/></root>");
+            SnifitByteTokenizer refTokenizer = new SnifitByteTokenizer(bad.toFile());
+            assertFalse(refTokenizer.parse(), ref);
+            assertThrows(SAXParseException.class, () -> parser.parse(bad.toFile()), ref);
+        }
+    }
+
+    @Test
+    public void symbolTableSharesRepeatedValuesAcrossFiles() throws Exception {
+        SnifitParser parser = new SnifitParser();
+        parser.setBackend(SnifitParser.Backend.MAPPED);
+        SnifitModel model = new SnifitModel();
+        for (File file : xmlFiles()) {
+            parser.parseInto(file, model);
+        }
+
+        // refData refId="MCSG_IFYUNIM" points at the kColl id="MCSG_IFYUNIM"
+        XmlNode kColl = model.getNodeById("MCSG_IFYUNIM");
+        XmlNode list = model.getNodeById("MCSG_IFYUNIM_LIST1");
+        assertSame(kColl.getId(), list.getChildren().get(0).getRefId());
+        assertTrue(parser.getSymbolTable().getBytesSaved() > 0);
+    }
+
+    @Test
+    public void storeBackedModelMaterializesLazily() throws Exception {
+        NodeStore store = new NodeStore(true);
+        SnifitModel model = new SnifitModel(store);
+        Map<File, Exception> failures = new SnifitParser().parseInto(xmlFiles(), model, 2);
+        assertTrue(failures.isEmpty());
+
+        int ordinal = store.getNodeById("MTFC_Hitmakdut");
+        NodeStore.Cursor cursor = store.cursor().moveTo(ordinal);
+        assertEquals("fmtDef", cursor.getTagName());
+        assertTrue(cursor.toParent());
+        assertEquals("matachtakbulim.xml", cursor.getTagName());
+
+        // A subtree fetched before the full tree is part of it afterwards
+        XmlNode fmtDef = model.getNodeById("MTFC_Hitmakdut");
+        assertSameModel(parseSequential(), model);
+        assertSame(fmtDef, model.getIdToNodeMap().get("MTFC_Hitmakdut"));
+    }
+
+    @Test
+    public void storeBackedModelTakesFilesParsedAfterItWasRead() throws Exception {
+        SnifitModel model = new SnifitModel(new NodeStore(false));
+        SnifitParser parser = new SnifitParser();
+        List<File> files = xmlFiles();
+        parser.parseInto(files.get(0), model);
+        parser.parseInto(files.get(1), model);
+        int roots = model.getRootNodes().size();
+        assertNull(model.getNodeById("MTFC_Hitmakdut"));
+
+        parser.parseInto(files.get(2), model);
+        assertEquals(roots + 1, model.getRootNodes().size());
+        XmlNode fmtDef = model.getNodeById("MTFC_Hitmakdut");
+        assertEquals("matachtakbulim.xml", fmtDef.getSourceFile());
+        assertSame(fmtDef, model.getIdToNodeMap().get("MTFC_Hitmakdut"));
+        assertSameModel(parseSequential(), model);
+    }
+
+    @Test
+    public void onDemandModelResolvesEveryIdLikeAFullParse() throws Exception {
+        SnifitModel expected = parseSequential();
+        List<Path> paths = new ArrayList<>();
+        for (File file : xmlFiles()) {
+            paths.add(file.toPath());
+        }
+        OnDemandNodeSource source = new SnifitParser().prescan(paths);
+        SnifitModel actual = new SnifitModel(source);
+
+        assertEquals(expected.getIdToNodeMap().keySet(), source.getIndex().ids());
+        XmlNode first = actual.getNodeById("MTFC_Hitmakdut");
+        assertEquals(1, source.getLoadedCount());
+        for (Map.Entry<String, XmlNode> entry : expected.getIdToNodeMap().entrySet()) {
+            XmlNode node = actual.getNodeById(entry.getKey());
+            assertEquals(entry.getValue().toJson(), node.toJson(), entry.getKey());
+            assertEquals(entry.getValue().getSourceFile(), node.getSourceFile());
+            assertEquals(entry.getValue().getLineNumber(), node.getLineNumber(), entry.getKey());
+        }
+        assertSame(first, actual.getNodeById("MTFC_Hitmakdut"));
+        assertEquals(null, actual.getNodeById("no such id"));
+    }
+
+    @Test
+    public void prescanSkipsMarkupInCommentsAndCdata() throws Exception {
+        Path file = tempDir.resolve("tricky.xml");
+        Files.write(file, ("<?xml version=\"1.0\" encoding=\"ISO-8859-8\"?>\r\n"
+                + "<root id=\"doc\">\r\n"
+                + "  <!-- <fmtDef id=\"commented\"> -->\r\n"
+                + "  <fmtDef id=\"a\" note='has > and \"quotes\"'>\n"
+                + "    <![CDATA[ </fmtDef> <x id=\"cdata\"/> ]]>\n"
+                + "    <field\n      id=\"a.inner\"/>\n"
+                + "  </fmtDef>\n"
+                + "  <kColl id=\"b\"/>\n"
+                + "</root>\n").getBytes(StandardCharsets.ISO_8859_1));
+
+        PrescanIndex index = PrescanIndex.build(List.of(file));
+        assertEquals(Set.of("doc", "a", "a.inner", "b"), index.ids());
+        assertTrue(index.get("doc").isWholeDocument());
+        assertSame(index.get("a"), index.get("a.inner"));
+        assertEquals(4, index.get("a").getLine());
+        assertEquals("kColl", index.get("b").getTagName());
+
+        SnifitModel expected = new SnifitParser().parse(file.toFile());
+        SnifitModel actual = new SnifitModel(new SnifitParser().prescan(List.of(file)));
+        for (String id : index.ids()) {
+            assertEquals(expected.getNodeById(id).toJson(), actual.getNodeById(id).toJson());
+            assertEquals(expected.getNodeById(id).getLineNumber(), actual.getNodeById(id).getLineNumber());
+        }
+    }
+
+    @Test
+    public void splitParseMatchesWholeFileParse() throws Exception {
+        SnifitModel expected = parseSequential();
+
+        SnifitParser parser = new SnifitParser();
+        parser.setSplitThreshold(0);
+        parser.setSplitThreads(4);
+        SnifitModel actual = new SnifitModel();
+        for (File file : xmlFiles()) {
+            parser.parseInto(file, actual);
+        }
+
+        assertSameModel(expected, actual);
+        // Head plus several chunks per file
+        assertTrue(parser.getStats().getDocuments() > 3 * 2);
+    }
+
+    @Test
+    public void splitParseKeepsTextLinesAndDuplicateIds() throws Exception {
+        Path file = tempDir.resolve("split.xml");
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"ISO-8859-8\"?>\r\n<root id=\"r\">head\r\n");
+        for (int i = 0; i < 40; i++) {
+            xml.append("  <!-- <fmtDef id=\"c").append(i).append("\"> -->\r\n");
+            xml.append("  <fmtDef id=\"f").append(i % 7).append("\" n=\"").append(i).append("\">\r\n");
+            xml.append("    <fCSString dataName=\"s").append(i).append("\"/>\r\n");
+            xml.append("  </fmtDef>t").append(i).append("\r\n");
+        }
+        xml.append("tail</root>\r\n");
+        Files.write(file, xml.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        SnifitModel expected = new SnifitParser().parse(file.toFile());
+        SnifitParser parser = new SnifitParser();
+        parser.setSplitThreshold(0);
+        parser.setSplitThreads(3);
+        SnifitModel actual = parser.parse(file.toFile());
+
+        assertSameModel(expected, actual);
+        assertEquals(expected.getRootNodes().get(0).getTextContent(), actual.getRootNodes().get(0).getTextContent());
+        assertEquals("33", actual.getNodeById("f5").getAttribute("n"));
+    }
+
+    @Test
+    public void textRunsAreJoinedAndBlankRunsDropped() throws Exception {
+        Path file = tempDir.resolve("text.xml");
+        Files.write(file, "<a>\n  <b>  x<!-- c -->y&amp;z  </b>\n  <c> \t </c>\n</a>".getBytes(StandardCharsets.UTF_8));
+
+        for (SnifitParser.Backend backend : new SnifitParser.Backend[] { SnifitParser.Backend.SAX,
+                SnifitParser.Backend.STAX }) {
+            SnifitParser parser = new SnifitParser();
+            parser.setBackend(backend);
+            XmlNode a = parser.parse(file.toFile()).getRootNodes().get(0);
+            assertEquals("", a.getTextContent());
+            assertEquals("  xy&z  ", a.getChildren().get(0).getTextContent());
+            assertEquals("", a.getChildren().get(1).getTextContent());
+        }
+    }
+
+    @Test
+    public void decoratorsAreBoundToTheFieldTheyFollow() throws Exception {
+        Path file = tempDir.resolve("decor.xml");
+        Files.write(file, ("<fmtDef id=\"F\">"
+                + "<fHostString dataName=\"a\"/><nullCheck/><numHostDecor length=\" 5\" padChar=\"0\" showZero=\"yes\"/>"
+                + "<fHostString dataName=\"b\"/><constant value=\"X\"/><abcHostDecor length=\"2\" justify=\"center\"/>"
+                + "<fHostString dataName=\"c\"/><record/><hebHostDecor length=\"7\"/>"
+                + "<fHostString dataName=\"d\"/><hebHostDecor justify=\"right\"/><numHostDecor length=\"4\"/>"
+                + "<constant value=\"Y\"/><record/><numHostDecor length=\"3\"/>"
+                + "</fmtDef>").getBytes(StandardCharsets.UTF_8));
+
+        SnifitModel stored = new SnifitModel(new NodeStore());
+        new SnifitParser().parseInto(file.toFile(), stored);
+        for (SnifitModel model : new SnifitModel[] { new SnifitParser().parse(file.toFile()), stored }) {
+            List<XmlNode> children = model.getNodeById("F").getChildren();
+            SnifitModel.Decorator num = children.get(0).getDecorator();
+            assertSame(children.get(2), num);
+            assertSame(children.get(0), num.getOwner());
+            assertEquals(5, num.getLength());
+            assertEquals('0', num.getPadChar());
+            assertTrue(num.isShowZero());
+
+            assertEquals(null, children.get(3).getDecorator());
+            assertSame(children.get(5), children.get(4).getDecorator());
+            assertEquals("center", children.get(4).getDecorator().getJustify());
+
+            assertEquals(null, children.get(6).getDecorator());
+            assertEquals(null, ((SnifitModel.Decorator) children.get(8)).getOwner());
+            assertEquals(7, ((SnifitModel.Decorator) children.get(8)).getLength());
+
+            // The first decorator is the field's even without a length; the
+            // one after it decorates nothing
+            assertSame(children.get(10), children.get(9).getDecorator());
+            assertEquals(-1, children.get(9).getDecorator().getLength());
+            assertEquals(null, ((SnifitModel.Decorator) children.get(11)).getOwner());
+
+            // Nor does a constant take a decorator across a record
+            assertEquals(null, children.get(12).getDecorator());
+            assertEquals(null, ((SnifitModel.Decorator) children.get(14)).getOwner());
+
+            // Both passes read the same binding, so they agree on every length
+            String serializer = new CsSerdeGenerator(model).generate("F").get("FSerializer");
+            assertTrue(serializer.contains("string val = obj.a ?? \"\";"));
+            assertTrue(serializer.contains("obj.a = buffer.Substring(offset, 5)"));
+            assertTrue(serializer.contains("sb.Append(\"X\".PadRight(2));"));
+            assertTrue(serializer.contains("offset += 2;"));
+            for (String absent : new String[] { "obj.b ?? ", "obj.b = ", "obj.d ?? ", "obj.d = ", "\"Y\"",
+                    "offset += 3;" }) {
+                assertFalse(serializer.contains(absent), absent);
+            }
+        }
+    }
+
+    @Test
+    public void whitespaceBetweenTagsAllocatesNothing() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        NodeTreeBuilder sink = new NodeTreeBuilder("indent.xml", null);
+        sink.startElement("root", 1);
+        TextBuffer text = new TextBuffer();
+        char[] indent = "\r\n\t\t    ".toCharArray();
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up so the measured loop runs compiled
+        for (int i = 0; i < 20_000; i++) {
+            text.append(indent, 0, indent.length);
+            text.append(indent, 2, 3);
+            text.flush(sink);
+        }
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100_000; i++) {
+            text.append(indent, 0, indent.length);
+            text.append(indent, 2, 3);
+            text.flush(sink);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        // A String per run would be several megabytes
+        assertTrue(allocated < 64 * 1024, allocated + " bytes allocated");
+        assertEquals("", sink.getResult().get(0).getTextContent());
+    }
+}